@@ -0,0 +1,73 @@
+package org.waldur.keycloak.mapper;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Parsing of Waldur responses, from a user with a handful of permissions to one with thousands.
+ * Permission objects carry the fields Waldur returns when {@code field} is ignored, so the cost
+ * of skipping them is included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseParsingBenchmark {
+
+    private static final ObjectMapper jacksonMapper = new ObjectMapper();
+
+    @Param({"5", "10000"})
+    public int permissions;
+
+    private byte[] permissionsJson;
+    private byte[] offeringUsersJson;
+
+    @Setup
+    public void setUp() {
+        StringBuilder scopes = new StringBuilder("[");
+        StringBuilder offeringUsers = new StringBuilder("[");
+        for (int i = 0; i < permissions; i++) {
+            if (i > 0) {
+                scopes.append(',');
+                offeringUsers.append(',');
+            }
+            scopes.append("{\"scope_uuid\":\"").append(UUID.randomUUID().toString().replace("-", ""))
+                    .append("\",\"scope_type\":\"project\",\"role_name\":\"PROJECT.MEMBER\",")
+                    .append("\"expiration_time\":null,\"is_active\":true}");
+            offeringUsers.append("{\"user_username\":\"user").append(i)
+                    .append("\",\"username\":\"user").append(i).append("_hpc\"}");
+        }
+        permissionsJson = scopes.append(']').toString().getBytes(StandardCharsets.UTF_8);
+        offeringUsersJson = offeringUsers.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public List<String> scopeUuids() {
+        return WaldurOIDCMinIOMapper.parseScopeUuids(new ByteArrayInputStream(permissionsJson));
+    }
+
+    @Benchmark
+    public List<OfferingUserDTO> offeringUsers() throws Exception {
+        return jacksonMapper.readValue(offeringUsersJson, new TypeReference<List<OfferingUserDTO>>() {});
+    }
+}
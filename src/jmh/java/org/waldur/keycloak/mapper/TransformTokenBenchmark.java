@@ -0,0 +1,215 @@
+package org.waldur.keycloak.mapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.stream.Stream;
+
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.GroupProvider;
+import org.keycloak.models.GroupProviderFactory;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.representations.AccessToken;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Whole {@code transformAccessToken} runs against a local Waldur stub, with the mappers' own
+ * caches on and off. Without them every token pays for a loopback HTTP round trip; with them
+ * the cost is what the mapper adds on top of its cache. The offering access run also includes
+ * the group and role lookups and membership reads, against a user who already has both.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformTokenBenchmark {
+
+    @Param({"100"})
+    public int permissions;
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    private HttpServer server;
+    private byte[] permissionsJson;
+
+    private final WaldurOIDCMinIOMapper minioMapper = new WaldurOIDCMinIOMapper();
+    private final WaldurOIDCOfferingUserUsernameMapper usernameMapper = new WaldurOIDCOfferingUserUsernameMapper();
+    private final WaldurOIDCOfferingAccessMapper accessMapper = new WaldurOIDCOfferingAccessMapper();
+    private ProtocolMapperModel minioModel;
+    private ProtocolMapperModel usernameModel;
+    private ProtocolMapperModel accessModel;
+
+    private KeycloakSession session;
+    private UserSessionModel userSession;
+
+    @Setup
+    public void setUp() throws Exception {
+        // The mappers log every lookup at INFO, which would otherwise be most of what gets measured.
+        java.util.logging.Logger.getLogger("").setLevel(Level.WARNING);
+
+        StringBuilder scopes = new StringBuilder("[");
+        for (int i = 0; i < permissions; i++) {
+            scopes.append(i > 0 ? "," : "").append("{\"scope_uuid\":\"")
+                    .append(UUID.randomUUID().toString().replace("-", "")).append("\"}");
+        }
+        permissionsJson = scopes.append(']').toString().getBytes(StandardCharsets.UTF_8);
+
+        // Without TCP_NODELAY the stub's replies sit out a delayed ACK, some 40 ms per call.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/user-permissions/", exchange -> respond(exchange, permissionsJson));
+        server.createContext("/api/marketplace-offering-users/", exchange -> respond(exchange,
+                "[{\"user_username\":\"alice\",\"username\":\"alice_hpc\"}]".getBytes(StandardCharsets.UTF_8)));
+        server.createContext("/api/marketplace-provider-offerings/", exchange -> respond(exchange,
+                "{\"has_access\":true}".getBytes(StandardCharsets.UTF_8)));
+        server.start();
+        String baseUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/api/";
+
+        minioModel = WaldurOIDCMinIOMapper.create("minio", baseUrl, "token", "project", "policy", false,
+                "username", true, false, false);
+        minioModel.setId("benchmark-minio-" + cached);
+        minioModel.getConfig().put("cache.waldur.soft-ttl", cached ? "60" : "0");
+
+        usernameModel = WaldurOIDCOfferingUserUsernameMapper.create("username", baseUrl,
+                "0f3c6ad2b8e14d0a9a3c1f1f6f3e2b7c", "token", "preferred_username", false, true, false, false);
+        usernameModel.setId("benchmark-username-" + cached);
+        usernameModel.getConfig().put("sync.waldur.interval", cached ? "300" : "0");
+
+        accessModel = WaldurOIDCOfferingAccessMapper.create("access", baseUrl, "0f3c6ad2b8e14d0a9a3c1f1f6f3e2b7c",
+                "token", "username", "offering-users", true, "offering-user", true, "offering_group", true, false,
+                false);
+        accessModel.setId("benchmark-access-" + cached);
+        if (!cached) {
+            accessModel.getConfig().put("cache.waldur.ttl", "0");
+        }
+
+        GroupModel group = proxy(GroupModel.class, (method, args) -> switch (method) {
+            case "getId" -> "group-id";
+            case "getName" -> "offering-users";
+            default -> null;
+        });
+        RoleModel role = proxy(RoleModel.class, (method, args) -> switch (method) {
+            case "getId" -> "role-id";
+            case "getName" -> "offering-user";
+            default -> null;
+        });
+        RealmModel realm = proxy(RealmModel.class, (method, args) -> switch (method) {
+            case "getId" -> "realm-id";
+            case "getRole", "getRoleById" -> role;
+            case "getGroupById" -> group;
+            default -> null;
+        });
+        ClientModel client = proxy(ClientModel.class, (method, args) -> null);
+        KeycloakContext context = proxy(KeycloakContext.class, (method, args) -> switch (method) {
+            case "getRealm" -> realm;
+            case "getClient" -> client;
+            default -> null;
+        });
+        GroupProvider groups = proxy(GroupProvider.class,
+                (method, args) -> method.equals("getGroupByName") ? group : null);
+        GroupProviderFactory<?> groupProviderFactory = proxy(GroupProviderFactory.class, (method, args) -> null);
+        KeycloakSessionFactory sessionFactory = proxy(KeycloakSessionFactory.class,
+                (method, args) -> method.equals("getProviderFactory") ? groupProviderFactory : null);
+        session = proxy(KeycloakSession.class, (method, args) -> switch (method) {
+            case "getContext" -> context;
+            case "getKeycloakSessionFactory" -> sessionFactory;
+            case "groups" -> groups;
+            default -> null;
+        });
+        UserModel user = proxy(UserModel.class, (method, args) -> switch (method) {
+            case "getId" -> "8a5d4c1e-0b7f-4f8e-9a51-2f6c7e3d9b10";
+            case "getUsername" -> "alice";
+            // Already a direct member with the role, so only the lookup and the membership reads are measured.
+            case "getGroupsStream" -> Stream.of(group);
+            case "isMemberOf", "hasRole", "hasDirectRole" -> true;
+            default -> null;
+        });
+        userSession = proxy(UserSessionModel.class, (method, args) -> method.equals("getUser") ? user : null);
+
+        if (cached) {
+            // The offering user index syncs in the background; let it finish before measuring.
+            usernameToken();
+            Thread.sleep(1000);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Benchmark
+    public AccessToken minioToken() {
+        return minioMapper.transformAccessToken(new AccessToken(), minioModel, session, userSession, null);
+    }
+
+    @Benchmark
+    public AccessToken usernameToken() {
+        return usernameMapper.transformAccessToken(new AccessToken(), usernameModel, session, userSession, null);
+    }
+
+    @Benchmark
+    public AccessToken offeringAccessToken() {
+        return accessMapper.transformAccessToken(new AccessToken(), accessModel, session, userSession, null);
+    }
+
+    private static void respond(HttpExchange exchange, byte[] body) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private interface Answer {
+        Object answer(String method, Object[] args);
+    }
+
+    /** A proxy answering from {@code answer}, with false or zero where it has nothing for a primitive. */
+    private static <T> T proxy(Class<T> type, Answer answer) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+                (instance, method, args) -> {
+                    Object value = answer.answer(method.getName(), args);
+                    if (value != null || !method.getReturnType().isPrimitive()) {
+                        return value;
+                    }
+                    if (method.getReturnType() == boolean.class) {
+                        return false;
+                    }
+                    if (method.getReturnType() == void.class) {
+                        return null;
+                    }
+                    return method.getReturnType() == long.class ? 0L : 0;
+                }));
+    }
+}
@@ -0,0 +1,42 @@
+package org.waldur.keycloak.mapper;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** The Waldur URLs built on every token request, including encoding of a username that needs it. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UrlBuildingBenchmark {
+
+    private final String waldurUrl = "https://waldur.example.com/api/";
+    private final String offeringUuid = "0f3c6ad2b8e14d0a9a3c1f1f6f3e2b7c";
+    private final String username = "alice+test@example.com";
+
+    @Benchmark
+    public String permissionsUrl() {
+        return WaldurOIDCMinIOMapper.buildPermissionsUrl(waldurUrl, username, "project");
+    }
+
+    @Benchmark
+    public String offeringUserUrl() {
+        return WaldurOIDCOfferingUserUsernameMapper.buildOfferingUserUrl(waldurUrl, offeringUuid, username);
+    }
+
+    @Benchmark
+    public String hasResourceAccessUrl() {
+        return WaldurOIDCOfferingAccessMapper.buildHasResourceAccessUrl(waldurUrl, offeringUuid, username);
+    }
+}
@@ -1,12 +1,20 @@
 package org.waldur.keycloak.mapper;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
 class OfferingUserDTO {
     private String username;
 
+    @JsonProperty("user_username")
+    private String userUsername;
+
     public String getUsername() {
         return this.username;
     }
+
+    public String getUserUsername() {
+        return this.userUsername;
+    }
 }
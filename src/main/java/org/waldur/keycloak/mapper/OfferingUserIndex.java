@@ -0,0 +1,186 @@
+package org.waldur.keycloak.mapper;
+
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collector;
+
+import org.jboss.logging.Logger;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * In-memory index of an offering's users, mapping the Waldur username of each user to their
+ * username in the offering. A background job fetches every page of the offering-user list at a
+ * fixed interval and swaps in a new immutable map, so lookups never wait for Waldur.
+ *
+ * One index is kept per preferred username mapper. The mappers' indexes are started when Keycloak
+ * starts, or by the first token request of a mapper added later. An index that has not been
+ * looked up for {@link #IDLE_EXPIRY_MILLIS}, or three sync intervals if longer, stops syncing and
+ * is dropped, so a deleted mapper's index does not poll Waldur for good. Users added to the
+ * offering since the last sync are simply not found until the next one.
+ */
+final class OfferingUserIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(OfferingUserIndex.class.getName());
+
+    private static final ObjectMapper jacksonMapper = new ObjectMapper();
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "waldur-offering-user-sync");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final Map<String, OfferingUserIndex> INDEXES = new ConcurrentHashMap<>();
+
+    /** Constants, so indexes of the same offering share their fetches and pages are revalidated. */
+    private static final Function<InputStream, List<OfferingUserDTO>> OFFERING_USERS_PAGE =
+            OfferingUserIndex::parseOfferingUsers;
+    private static final Collector<OfferingUserDTO, ?, Map<String, String>> TO_INDEX = Collector.of(HashMap::new,
+            (Map<String, String> index, OfferingUserDTO offeringUser) -> {
+                if (offeringUser.getUserUsername() != null && offeringUser.getUsername() != null) {
+                    // Same choice as the per-user lookup, which takes the first match.
+                    index.putIfAbsent(offeringUser.getUserUsername(), offeringUser.getUsername());
+                }
+            }, (first, second) -> {
+                second.forEach(first::putIfAbsent);
+                return first;
+            });
+
+    static final long IDLE_EXPIRY_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final String waldurUrl;
+    private final String offeringUuid;
+    private final String waldurToken;
+    private final boolean tlsValidationEnabled;
+    private final WaldurCallPolicy policy;
+    private final int pageSize;
+
+    private volatile Map<String, String> usernames = Map.of();
+    private volatile ScheduledFuture<?> schedule;
+    private volatile long lastLookupNanos = System.nanoTime();
+
+    OfferingUserIndex(String waldurUrl, String offeringUuid, String waldurToken, boolean tlsValidationEnabled,
+            WaldurCallPolicy policy, int pageSize) {
+        this.waldurUrl = waldurUrl;
+        this.offeringUuid = offeringUuid;
+        this.waldurToken = waldurToken;
+        this.tlsValidationEnabled = tlsValidationEnabled;
+        this.policy = policy;
+        this.pageSize = pageSize;
+    }
+
+    /** The index of the mapper, started with an immediate first sync if it does not exist yet. */
+    static OfferingUserIndex forMapper(String mapperId, String waldurUrl, String offeringUuid, String waldurToken,
+            boolean tlsValidationEnabled, WaldurCallPolicy policy, int syncIntervalSeconds) {
+        return INDEXES.computeIfAbsent(mapperId, id -> {
+            OfferingUserIndex index = new OfferingUserIndex(waldurUrl, offeringUuid, waldurToken,
+                    tlsValidationEnabled, policy, WaldurHttpClient.LIST_PAGE_SIZE);
+            long idleExpiryNanos = TimeUnit.MILLISECONDS.toNanos(
+                    Math.max(IDLE_EXPIRY_MILLIS, TimeUnit.SECONDS.toMillis(3L * syncIntervalSeconds)));
+            index.schedule = SCHEDULER.scheduleWithFixedDelay(() -> index.syncUnlessIdle(id, idleExpiryNanos),
+                    0, syncIntervalSeconds, TimeUnit.SECONDS);
+            return index;
+        });
+    }
+
+    /** Stop syncing the mapper's index and forget it, e.g. because its configuration changed. */
+    static void remove(String mapperId) {
+        OfferingUserIndex index = INDEXES.remove(mapperId);
+        if (index != null) {
+            index.stop();
+        }
+    }
+
+    /** Run a job once on the sync thread, e.g. to start the indexes of all mappers at startup. */
+    static void submit(Runnable job) {
+        SCHEDULER.execute(() -> {
+            try {
+                job.run();
+            } catch (RuntimeException e) {
+                LOGGER.warn("Failed to start offering user indexes", e);
+            }
+        });
+    }
+
+    static boolean isRunning(String mapperId) {
+        return INDEXES.containsKey(mapperId);
+    }
+
+    private void stop() {
+        if (schedule != null) {
+            schedule.cancel(false);
+        }
+    }
+
+    /** Sync, unless nothing looked the index up for {@code idleExpiryNanos}; then stop and drop it. */
+    void syncUnlessIdle(String mapperId, long idleExpiryNanos) {
+        if (System.nanoTime() - lastLookupNanos > idleExpiryNanos) {
+            LOGGER.infof("Offering %s users have not been looked up for a while, no longer syncing them",
+                    offeringUuid);
+            INDEXES.remove(mapperId, this);
+            stop();
+            return;
+        }
+        sync();
+    }
+
+    static String buildListUrl(String waldurUrl, String offeringUuid) {
+        return waldurUrl
+                + "marketplace-offering-users/?"
+                + "offering_uuid=" + URLEncoder.encode(offeringUuid, StandardCharsets.UTF_8)
+                + "&field=user_username&field=username";
+    }
+
+    /** The user's username in the offering, or null when the index does not know the user (yet). */
+    String lookup(String waldurUsername) {
+        lastLookupNanos = System.nanoTime();
+        return usernames.get(waldurUsername);
+    }
+
+    int size() {
+        return usernames.size();
+    }
+
+    /** Fetch every page and swap in the new index; on any failure the previous index stays. */
+    void sync() {
+        Map<String, String> next;
+        try {
+            next = WaldurHttpClientRegistry.get(waldurUrl, waldurToken, tlsValidationEnabled)
+                    .getAllPagesAsync(buildListUrl(waldurUrl, offeringUuid), pageSize,
+                            OFFERING_USERS_PAGE, TO_INDEX, policy)
+                    .join();
+        } catch (RuntimeException e) {
+            LOGGER.warnf("Failed to sync offering %s users, keeping %d indexed users: %s", offeringUuid, size(),
+                    e.getMessage());
+            return;
+        }
+        if (next == null) {
+            LOGGER.warnf("Failed to fetch offering %s users, keeping %d indexed users", offeringUuid, size());
+            return;
+        }
+        usernames = Map.copyOf(next);
+        LOGGER.infof("Indexed %d users of offering %s", next.size(), offeringUuid);
+    }
+
+
+    private static List<OfferingUserDTO> parseOfferingUsers(InputStream body) {
+        try {
+            return jacksonMapper.readValue(body, new TypeReference<List<OfferingUserDTO>>() {});
+        } catch (Exception e) {
+            LOGGER.error(e.getMessage(), e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.waldur.keycloak.mapper;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.Deflater;
+
+import org.jboss.logging.Logger;
+
+/**
+ * How the MinIO mapper writes the scope UUIDs into its claim. The binary forms pack each UUID
+ * into 16 bytes, about 22 base64url characters against 33 to 37 for the comma-joined text. The
+ * consumer has to decode them, so they are meant for custom policy plugins rather than stock MinIO.
+ */
+enum ScopeClaimEncoding {
+
+    /** Comma-joined UUIDs, e.g. {@code "c1...,c2..."}; what MinIO expects. */
+    STRING("string"),
+
+    /** A JSON array of UUID strings. */
+    JSON("json"),
+
+    /** The 16-byte UUIDs concatenated and base64url-encoded without padding. */
+    BASE64URL("base64url"),
+
+    /**
+     * As {@link #BASE64URL}, but raw-deflated (RFC 1951) before encoding. Random (version 4) UUIDs
+     * hardly compress, so this is rarely smaller than {@link #BASE64URL} and is mainly for
+     * consumers that expect deflated claims.
+     */
+    BASE64URL_DEFLATE("base64url-deflate");
+
+    private static final Logger LOGGER = Logger.getLogger(ScopeClaimEncoding.class.getName());
+
+    private final String configValue;
+
+    ScopeClaimEncoding(String configValue) {
+        this.configValue = configValue;
+    }
+
+    String getConfigValue() {
+        return configValue;
+    }
+
+    static List<String> configValues() {
+        return Arrays.stream(values()).map(ScopeClaimEncoding::getConfigValue).toList();
+    }
+
+    static ScopeClaimEncoding fromConfig(String value) {
+        for (ScopeClaimEncoding encoding : values()) {
+            if (encoding.configValue.equals(value)) {
+                return encoding;
+            }
+        }
+        return STRING;
+    }
+
+    /**
+     * Encode the comma-joined scope UUIDs as the claim value. Binary encodings fall back to the
+     * string form when a scope is not a UUID, so the claim is never silently lossy.
+     */
+    Object encode(String joinedScopes) {
+        if (this == STRING) {
+            return joinedScopes;
+        }
+        List<String> scopes = Arrays.asList(joinedScopes.split(","));
+        if (this == JSON) {
+            return scopes;
+        }
+        byte[] packed;
+        try {
+            packed = pack(scopes);
+        } catch (IllegalArgumentException e) {
+            LOGGER.warnf("Scope is not a UUID (%s), using the string claim encoding", e.getMessage());
+            return joinedScopes;
+        }
+        if (this == BASE64URL_DEFLATE) {
+            packed = deflate(packed);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(packed);
+    }
+
+    private static byte[] pack(List<String> scopes) {
+        ByteBuffer buffer = ByteBuffer.allocate(scopes.size() * 16);
+        for (String scope : scopes) {
+            UUID uuid = parseUuid(scope);
+            buffer.putLong(uuid.getMostSignificantBits());
+            buffer.putLong(uuid.getLeastSignificantBits());
+        }
+        return buffer.array();
+    }
+
+    /** Waldur renders UUIDs both with and without dashes. */
+    static UUID parseUuid(String value) {
+        if (value.length() == 32 && value.indexOf('-') < 0) {
+            value = value.substring(0, 8) + "-" + value.substring(8, 12) + "-" + value.substring(12, 16) + "-"
+                    + value.substring(16, 20) + "-" + value.substring(20);
+        }
+        if (value.length() != 36) {
+            throw new IllegalArgumentException(value);
+        }
+        return UUID.fromString(value);
+    }
+
+    private static byte[] deflate(byte[] input) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream output = new ByteArrayOutputStream(input.length);
+            byte[] chunk = new byte[1024];
+            while (!deflater.finished()) {
+                output.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.waldur.keycloak.mapper;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.jboss.logging.Logger;
+
+/**
+ * {@link WaldurCache} with two lifetimes. Entries younger than the soft TTL are served as is.
+ * Entries between the soft and the hard TTL are still served, while a single background
+ * refresh per key replaces them. A refresh is the loader's non-blocking Waldur call itself; it
+ * holds no thread of its own while it waits. Only entries older than the hard TTL, or missing ones, make
+ * the caller wait for Waldur.
+ *
+ * Loaders start the Waldur call and return its future, which completes with null on failure;
+ * failures are never cached and leave any stale entry in place.
+ */
+final class StaleWhileRevalidateCache<K, V> {
+
+    private static final Logger LOGGER = Logger.getLogger(StaleWhileRevalidateCache.class.getName());
+
+    private final String name;
+    private final WaldurCache<K, V> cache;
+    private final Set<K> refreshing = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong staleHits = new AtomicLong();
+
+    /** {@code name} tags the cache's lookups in {@link WaldurMetrics}. */
+    StaleWhileRevalidateCache(String name, int maxSize) {
+        this.name = name;
+        this.cache = new WaldurCache<>(maxSize);
+    }
+
+    CompletableFuture<V> get(K key, long softTtlMillis, long hardTtlMillis,
+            Supplier<CompletableFuture<V>> loader) {
+        V fresh = cache.get(key, softTtlMillis);
+        if (fresh != null) {
+            WaldurMetrics.cacheLookup(name, "hit");
+            return CompletableFuture.completedFuture(fresh);
+        }
+
+        WaldurCache.Entry<V> entry = cache.getEntry(key);
+        if (entry != null && entry.ageMillis() < hardTtlMillis) {
+            staleHits.incrementAndGet();
+            WaldurMetrics.cacheLookup(name, "stale");
+            refreshInBackground(key, loader);
+            return CompletableFuture.completedFuture(entry.getValue());
+        }
+
+        WaldurMetrics.cacheLookup(name, "miss");
+        return loader.get().thenApply(loaded -> {
+            if (loaded != null) {
+                cache.put(key, loaded);
+            }
+            return loaded;
+        });
+    }
+
+    private void refreshInBackground(K key, Supplier<CompletableFuture<V>> loader) {
+        if (!refreshing.add(key)) {
+            return;
+        }
+        CompletableFuture<V> refresh;
+        try {
+            refresh = loader.get();
+        } catch (RuntimeException e) {
+            // The stale entry is still served, and the next lookup tries again.
+            LOGGER.error(e.getMessage(), e);
+            refreshing.remove(key);
+            return;
+        }
+        refresh.whenComplete((loaded, error) -> {
+            if (loaded != null) {
+                cache.put(key, loaded);
+            }
+            refreshing.remove(key);
+        });
+    }
+
+    /** The cached value for the key whatever its age, or null; for use when Waldur is unavailable. */
+    V peek(K key) {
+        WaldurCache.Entry<V> entry = cache.getEntry(key);
+        return entry != null ? entry.getValue() : null;
+    }
+
+    void clear() {
+        cache.clear();
+    }
+
+    long getStaleHits() {
+        return staleHits.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s staleHits=%d", cache, getStaleHits());
+    }
+}
@@ -0,0 +1,150 @@
+package org.waldur.keycloak.mapper;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+/**
+ * Small in-memory cache for Waldur lookup results: bounded by entry count with LRU eviction,
+ * and with a time-to-live applied on read. Values are stored already parsed so a hit skips both
+ * the HTTP call and the JSON parsing. A cache may also be bounded by the total weight of its
+ * values, evicting the least recently used until they fit.
+ *
+ * Access is synchronised on the cache itself; the critical sections are a single map operation,
+ * which is cheap next to the Waldur round trip it replaces.
+ */
+final class WaldurCache<K, V> {
+
+    private final int maxSize;
+    private final long maxWeight;
+    private final ToLongFunction<? super V> weigher;
+    private final LinkedHashMap<K, Entry<V>> entries;
+    private long weight;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    static final class Entry<V> {
+        private final V value;
+        private final long storedAt;
+        private final long weight;
+
+        private Entry(V value, long storedAt, long weight) {
+            this.value = value;
+            this.storedAt = storedAt;
+            this.weight = weight;
+        }
+
+        V getValue() {
+            return value;
+        }
+
+        long ageMillis() {
+            return System.currentTimeMillis() - storedAt;
+        }
+    }
+
+    WaldurCache(int maxSize) {
+        this(maxSize, Long.MAX_VALUE, value -> 0);
+    }
+
+    /** A cache that also keeps the total {@code weigher} weight of its values within {@code maxWeight}. */
+    WaldurCache(int maxSize, long maxWeight, ToLongFunction<? super V> weigher) {
+        this.maxSize = Math.max(1, maxSize);
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                if (size() > WaldurCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    weight -= eldest.getValue().weight;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /** Return the cached value if it is younger than {@code ttlMillis}, or null on a miss. */
+    V get(K key, long ttlMillis) {
+        Entry<V> entry = getEntry(key);
+        if (entry == null || entry.ageMillis() >= ttlMillis) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.getValue();
+    }
+
+    /** Return the raw entry regardless of age, without touching the hit/miss counters. */
+    synchronized Entry<V> getEntry(K key) {
+        return entries.get(key);
+    }
+
+    /** Store the value; one heavier than the whole cache may be is dropped instead, with any older value. */
+    synchronized void put(K key, V value) {
+        Entry<V> entry = new Entry<>(value, System.currentTimeMillis(), weigher.applyAsLong(value));
+        if (entry.weight > maxWeight) {
+            invalidate(key);
+            return;
+        }
+        weight += entry.weight;
+        Entry<V> replaced = entries.put(key, entry);
+        if (replaced != null) {
+            weight -= replaced.weight;
+        }
+        Iterator<Entry<V>> eldest = entries.values().iterator();
+        while (weight > maxWeight && eldest.hasNext()) {
+            weight -= eldest.next().weight;
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    synchronized void invalidate(K key) {
+        Entry<V> removed = entries.remove(key);
+        if (removed != null) {
+            weight -= removed.weight;
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    /** The total weight of the values held; always 0 for a cache bounded by count only. */
+    synchronized long weight() {
+        return weight;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("size=%d/%d hits=%d misses=%d evictions=%d",
+                size(), maxSize, getHits(), getMisses(), getEvictions());
+    }
+}
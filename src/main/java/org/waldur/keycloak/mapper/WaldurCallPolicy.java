@@ -0,0 +1,20 @@
+package org.waldur.keycloak.mapper;
+
+/**
+ * Resilience settings for a Waldur call, taken from the configuration of the mapper making it.
+ * Coalesced calls run with the settings of whichever caller started them.
+ */
+record WaldurCallPolicy(int breakerFailureThreshold, long breakerOpenMillis, boolean adaptiveTimeout,
+        boolean hedging) {
+
+    static final WaldurCallPolicy DEFAULT = new WaldurCallPolicy(
+            WaldurConfigHelper.DEFAULT_BREAKER_THRESHOLD,
+            WaldurConfigHelper.DEFAULT_BREAKER_OPEN_SECONDS * 1000L,
+            WaldurConfigHelper.DEFAULT_ADAPTIVE_TIMEOUT,
+            WaldurConfigHelper.DEFAULT_HEDGING);
+
+    WaldurCallPolicy(int breakerFailureThreshold, long breakerOpenMillis) {
+        this(breakerFailureThreshold, breakerOpenMillis, WaldurConfigHelper.DEFAULT_ADAPTIVE_TIMEOUT,
+                WaldurConfigHelper.DEFAULT_HEDGING);
+    }
+}
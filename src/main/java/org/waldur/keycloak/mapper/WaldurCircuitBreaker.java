@@ -0,0 +1,90 @@
+package org.waldur.keycloak.mapper;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Per-endpoint circuit breaker for Waldur calls. After a run of consecutive failures the breaker
+ * opens and calls fail fast instead of tying up Keycloak worker threads on connect and request
+ * timeouts. Once the open period has passed a single probe call is let through: success closes
+ * the breaker, failure opens it for another period.
+ *
+ * Endpoints are URL templates with UUIDs stripped out (see {@link WaldurHttpClient#endpointOf}),
+ * so every user and offering shares the breaker of the endpoint they call.
+ */
+final class WaldurCircuitBreaker {
+
+    private static final Logger LOGGER = Logger.getLogger(WaldurCircuitBreaker.class.getName());
+
+    private static final Map<String, WaldurCircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final String endpoint;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+
+    WaldurCircuitBreaker(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    static WaldurCircuitBreaker forEndpoint(String endpoint) {
+        return BREAKERS.computeIfAbsent(endpoint, WaldurCircuitBreaker::new);
+    }
+
+    /**
+     * Ask whether a call may go out now. Must be followed by {@link #onSuccess()} or
+     * {@link #onFailure(WaldurCallPolicy)} when it returns true.
+     */
+    synchronized boolean tryAcquire(WaldurCallPolicy policy) {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt < policy.breakerOpenMillis()) {
+                    return false;
+                }
+                LOGGER.infof("Circuit breaker for %s is half-open, probing Waldur", endpoint);
+                state = State.HALF_OPEN;
+                return true;
+            default:
+                // A probe is already out; everyone else keeps failing fast until it returns.
+                return false;
+        }
+    }
+
+    synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            LOGGER.infof("Circuit breaker for %s closed", endpoint);
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    synchronized void onFailure(WaldurCallPolicy policy) {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN
+                || (state == State.CLOSED && consecutiveFailures >= policy.breakerFailureThreshold())) {
+            LOGGER.warnf("Circuit breaker for %s opened after %d consecutive failures", endpoint,
+                    consecutiveFailures);
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    String getEndpoint() {
+        return endpoint;
+    }
+}
@@ -0,0 +1,191 @@
+package org.waldur.keycloak.mapper;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.infinispan.Cache;
+import org.infinispan.commons.api.CacheContainerAdmin;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.Configuration;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.jboss.logging.Logger;
+import org.keycloak.cluster.ClusterEvent;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.cache.infinispan.events.CacheKeyInvalidatedEvent;
+
+/**
+ * Waldur lookup results shared by every node of a Keycloak cluster, kept in a dedicated
+ * Infinispan cache next to Keycloak's own, so a user's result is fetched from Waldur once for
+ * the cluster rather than once per node. The cache is named {@value #CACHE_NAME}; when the
+ * Infinispan configuration does not define it, it is created replicated when Keycloak runs
+ * clustered and local otherwise.
+ *
+ * Entries are keyed by mapper, mapper configuration and user, so results fetched under an older
+ * configuration are never served, and they expire after the lifespan given when they are put.
+ *
+ * Changing a mapper's configuration is also announced to all nodes through the
+ * {@link ClusterProvider}, so that every node, not just the one that saved it, drops its
+ * in-memory state for that mapper.
+ */
+final class WaldurClusterCache {
+
+    private static final Logger LOGGER = Logger.getLogger(WaldurClusterCache.class.getName());
+
+    static final String CACHE_NAME = "waldur-mapper";
+    static final String INVALIDATION_TASK = "waldur-mapper-invalidation";
+
+    private static final int MAX_ENTRIES = 100_000;
+
+    private static final List<Consumer<String>> INVALIDATION_LISTENERS = new CopyOnWriteArrayList<>();
+    private static final AtomicBoolean LISTENING = new AtomicBoolean();
+
+    private static volatile WaldurClusterCache instance;
+
+    private final Cache<String, String> cache;
+
+    WaldurClusterCache(Cache<String, String> cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * The shared cache, obtained through the session's Infinispan connection the first time, or
+     * null when Infinispan is not available and results stay cached per node only.
+     */
+    static WaldurClusterCache get(KeycloakSession session) {
+        WaldurClusterCache clusterCache = instance;
+        if (clusterCache == null) {
+            synchronized (WaldurClusterCache.class) {
+                clusterCache = instance;
+                if (clusterCache == null) {
+                    Cache<String, String> cache = openCache(session);
+                    if (cache == null) {
+                        return null;
+                    }
+                    clusterCache = new WaldurClusterCache(cache);
+                    instance = clusterCache;
+                }
+            }
+        }
+        return clusterCache;
+    }
+
+    private static Cache<String, String> openCache(KeycloakSession session) {
+        InfinispanConnectionProvider provider = session.getProvider(InfinispanConnectionProvider.class);
+        if (provider == null) {
+            return null;
+        }
+        try {
+            Cache<String, String> cache = provider.getCache(CACHE_NAME, false);
+            if (cache != null) {
+                return cache;
+            }
+            Cache<?, ?> workCache = provider.getCache(InfinispanConnectionProvider.WORK_CACHE_NAME);
+            boolean clustered = workCache.getCacheConfiguration().clustering().cacheMode().isClustered();
+            return createCache(workCache.getCacheManager(), clustered);
+        } catch (RuntimeException e) {
+            LOGGER.warnf("Cannot open the %s Infinispan cache, caching Waldur results per node only: %s",
+                    CACHE_NAME, e.getMessage());
+            return null;
+        }
+    }
+
+    static Cache<String, String> createCache(EmbeddedCacheManager cacheManager, boolean clustered) {
+        Configuration configuration = new ConfigurationBuilder()
+                .clustering().cacheMode(clustered ? CacheMode.REPL_SYNC : CacheMode.LOCAL)
+                .memory().maxCount(MAX_ENTRIES)
+                .build();
+        LOGGER.infof("Creating the %s cache (%s)", CACHE_NAME, configuration.clustering().cacheMode());
+        return cacheManager.administration()
+                .withFlags(CacheContainerAdmin.AdminFlag.VOLATILE)
+                .getOrCreateCache(CACHE_NAME, configuration);
+    }
+
+    /**
+     * {@code fetch} going through the cluster cache when the mapper shares its results, or
+     * {@code fetch} itself when it does not or Infinispan is not available.
+     */
+    static Supplier<CompletableFuture<String>> sharing(KeycloakSession session, WaldurMapperConfig config,
+            UserModel user, Supplier<CompletableFuture<String>> fetch) {
+        WaldurClusterCache clusterCache = config.clusterTtlMillis() > 0 ? get(session) : null;
+        if (clusterCache == null) {
+            return fetch;
+        }
+        return () -> clusterCache.getOrFetch(config, user, config.clusterTtlMillis(), fetch);
+    }
+
+    /**
+     * The result another node already fetched, or else {@code fetch}'s result, which is shared
+     * with the other nodes unless it is null.
+     */
+    CompletableFuture<String> getOrFetch(WaldurMapperConfig config, UserModel user, long lifespanMillis,
+            Supplier<CompletableFuture<String>> fetch) {
+        String key = config.mapperId() + "/" + config.fingerprint() + "/" + user.getId();
+        String shared = cache.get(key);
+        WaldurMetrics.cacheLookup("cluster", shared != null);
+        if (shared != null) {
+            LOGGER.debugf("Waldur result of mapper %s found in the cluster cache", config.mapperId());
+            return CompletableFuture.completedFuture(shared);
+        }
+        return fetch.get().thenApply(value -> {
+            if (value != null) {
+                cache.put(key, value, lifespanMillis, TimeUnit.MILLISECONDS);
+            }
+            return value;
+        });
+    }
+
+    /** Call {@code listener} with the mapper id whenever a mapper's configuration changes on any node. */
+    static void onInvalidation(Consumer<String> listener) {
+        INVALIDATION_LISTENERS.add(listener);
+    }
+
+    /** Stop calling a listener passed to {@link #onInvalidation}; pass the same instance. */
+    static void removeInvalidationListener(Consumer<String> listener) {
+        INVALIDATION_LISTENERS.remove(listener);
+    }
+
+    /** Start receiving invalidations from other nodes; only the first call does anything. */
+    static void listen(KeycloakSession session) {
+        if (LISTENING.get()) {
+            return;
+        }
+        ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+        if (cluster != null && LISTENING.compareAndSet(false, true)) {
+            cluster.registerListener(INVALIDATION_TASK, WaldurClusterCache::eventReceived);
+        }
+    }
+
+    /**
+     * Drop the in-memory state for the mapper on this node right away, and tell the other nodes
+     * to do the same.
+     */
+    static void invalidate(KeycloakSession session, String mapperId) {
+        fireInvalidation(mapperId);
+        listen(session);
+        ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+        if (cluster != null) {
+            // Keycloak marshals cluster events with its own schema, so reuse its generic key event.
+            cluster.notify(INVALIDATION_TASK, new CacheKeyInvalidatedEvent(mapperId), true);
+        }
+    }
+
+    static void eventReceived(ClusterEvent event) {
+        if (event instanceof CacheKeyInvalidatedEvent invalidated) {
+            fireInvalidation(invalidated.getId());
+        }
+    }
+
+    private static void fireInvalidation(String mapperId) {
+        LOGGER.debugf("Dropping cached state of mapper %s", mapperId);
+        INVALIDATION_LISTENERS.forEach(listener -> listener.accept(mapperId));
+    }
+}
@@ -0,0 +1,68 @@
+package org.waldur.keycloak.mapper;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.protocol.ProtocolMapperConfigException;
+
+/**
+ * Typed configurations of one mapper type, compiled once per mapper rather than on every token.
+ * Entries are keyed by mapper id and dropped when the mapper is saved on any node; each lookup
+ * also compares the config map with a copy of the one compiled, which costs a map comparison
+ * rather than a parse, so an update missed by the invalidation is never served stale.
+ */
+final class WaldurConfigCache<T> {
+
+    private static final Logger LOGGER = Logger.getLogger(WaldurConfigCache.class.getName());
+
+    private record Compiled<T>(Map<String, String> snapshot, T config) {
+    }
+
+    private final Map<String, Compiled<T>> byMapper = new ConcurrentHashMap<>();
+    private final BiFunction<String, WaldurConfigReader, T> compiler;
+
+    /** {@code compiler} turns a mapper's id and config into its typed configuration. */
+    WaldurConfigCache(BiFunction<String, WaldurConfigReader, T> compiler) {
+        this.compiler = compiler;
+        WaldurClusterCache.onInvalidation(this::invalidate);
+    }
+
+    static String mapperId(ProtocolMapperModel mappingModel) {
+        return mappingModel.getId() != null ? mappingModel.getId() : mappingModel.getName();
+    }
+
+    T get(ProtocolMapperModel mappingModel) {
+        String mapperId = mapperId(mappingModel);
+        Map<String, String> source = mappingModel.getConfig();
+        Compiled<T> compiled = byMapper.get(mapperId);
+        if (compiled != null && compiled.snapshot().equals(source == null ? Map.of() : source)) {
+            return compiled.config();
+        }
+
+        WaldurConfigReader reader = new WaldurConfigReader(source);
+        T config = compiler.apply(mapperId, reader);
+        if (!reader.problems().isEmpty()) {
+            LOGGER.warnf("Mapper %s has invalid settings, using defaults for them: %s", mappingModel.getName(),
+                    String.join("; ", reader.problems()));
+        }
+        byMapper.put(mapperId, new Compiled<>(source == null ? Map.of() : new HashMap<>(source), config));
+        return config;
+    }
+
+    /** Reject a configuration about to be saved when any of its settings is invalid. */
+    void validate(ProtocolMapperModel mappingModel) throws ProtocolMapperConfigException {
+        WaldurConfigReader reader = new WaldurConfigReader(mappingModel.getConfig());
+        compiler.apply(mapperId(mappingModel), reader);
+        if (!reader.problems().isEmpty()) {
+            throw new ProtocolMapperConfigException(String.join("; ", reader.problems()));
+        }
+    }
+
+    void invalidate(String mapperId) {
+        byMapper.remove(mapperId);
+    }
+}
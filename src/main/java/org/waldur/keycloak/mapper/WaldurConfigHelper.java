@@ -0,0 +1,121 @@
+package org.waldur.keycloak.mapper;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper;
+import org.keycloak.provider.ProviderConfigProperty;
+
+/**
+ * Configuration shared by all Waldur mappers, in the spirit of Keycloak's
+ * {@code OIDCAttributeMapperHelper}: property definitions are added to each mapper's list and
+ * read back from the mapper model's config map, once per configuration through a
+ * {@link WaldurConfigCache}.
+ */
+final class WaldurConfigHelper {
+
+    static final String API_URL_KEY = "url.waldur.api.value";
+    static final String API_TOKEN_KEY = "token.waldur.value";
+    static final String API_TLS_VALIDATE_KEY = "tls.waldur.validate";
+    static final String BREAKER_THRESHOLD_KEY = "breaker.waldur.threshold";
+    static final String BREAKER_OPEN_KEY = "breaker.waldur.open";
+    static final String LATENCY_BUDGET_KEY = "budget.waldur.latency";
+    static final String ADAPTIVE_TIMEOUT_KEY = "timeout.waldur.adaptive";
+    static final String HEDGING_KEY = "hedge.waldur.enabled";
+    static final String PERSIST_TTL_KEY = "persist.waldur.ttl";
+    static final String CLUSTER_TTL_KEY = "cluster.waldur.ttl";
+
+    static final int DEFAULT_BREAKER_THRESHOLD = 5;
+    static final int DEFAULT_BREAKER_OPEN_SECONDS = 30;
+    static final int DEFAULT_LATENCY_BUDGET_MILLIS = 0;
+    static final boolean DEFAULT_ADAPTIVE_TIMEOUT = false;
+    static final boolean DEFAULT_HEDGING = false;
+    static final int DEFAULT_PERSIST_TTL_SECONDS = 0;
+    static final int DEFAULT_CLUSTER_TTL_SECONDS = 0;
+
+    private WaldurConfigHelper() {
+    }
+
+    static void addResilienceConfig(List<ProviderConfigProperty> configProperties) {
+        configProperties.add(new ProviderConfigProperty(
+                BREAKER_THRESHOLD_KEY,
+                "Circuit breaker failure threshold",
+                "Consecutive failed calls to a Waldur endpoint after which further calls fail fast without contacting Waldur.",
+                ProviderConfigProperty.INTEGER_TYPE,
+                DEFAULT_BREAKER_THRESHOLD));
+
+        configProperties.add(new ProviderConfigProperty(
+                BREAKER_OPEN_KEY,
+                "Circuit breaker open time (seconds)",
+                "How long calls fail fast once the breaker has opened, before a single probe call is let through.",
+                ProviderConfigProperty.INTEGER_TYPE,
+                DEFAULT_BREAKER_OPEN_SECONDS));
+
+        configProperties.add(new ProviderConfigProperty(
+                LATENCY_BUDGET_KEY,
+                "Token latency budget (milliseconds)",
+                "Longest time a token request waits for Waldur, shared by all Waldur mappers of the request. When it runs out the last cached value is used, or the claim is skipped. 0 waits for the request timeout.",
+                ProviderConfigProperty.INTEGER_TYPE,
+                DEFAULT_LATENCY_BUDGET_MILLIS));
+
+        configProperties.add(new ProviderConfigProperty(
+                ADAPTIVE_TIMEOUT_KEY,
+                "Adaptive request timeout",
+                "Time Waldur calls out after four times the recent p99 response time of their endpoint, between 2 and 15 seconds, instead of always after 15 seconds. All users share the p99, so leave it off where some users' calls take much longer than others'.",
+                ProviderConfigProperty.BOOLEAN_TYPE,
+                DEFAULT_ADAPTIVE_TIMEOUT));
+
+        configProperties.add(new ProviderConfigProperty(
+                HEDGING_KEY,
+                "Hedged requests",
+                "When a Waldur call takes longer than the recent p95 of its endpoint, send the same request again and use whichever answers first. At most 5% of all calls are duplicated.",
+                ProviderConfigProperty.BOOLEAN_TYPE,
+                DEFAULT_HEDGING));
+    }
+
+    static void addPersistenceConfig(List<ProviderConfigProperty> configProperties) {
+        configProperties.add(new ProviderConfigProperty(
+                PERSIST_TTL_KEY,
+                "Stored result freshness (seconds)",
+                "Keep the last Waldur result in the user's attributes and use it without contacting Waldur while it is younger than this, also after restarts and on other cluster nodes. When Waldur is unavailable it is used for up to 24 hours, or this long if longer. 0 disables storing.",
+                ProviderConfigProperty.INTEGER_TYPE,
+                DEFAULT_PERSIST_TTL_SECONDS));
+
+        configProperties.add(new ProviderConfigProperty(
+                CLUSTER_TTL_KEY,
+                "Cluster cache TTL (seconds)",
+                "Share Waldur results between all Keycloak nodes through Keycloak's Infinispan, so each result is fetched once for the cluster. Results are shared for this long. 0 disables sharing.",
+                ProviderConfigProperty.INTEGER_TYPE,
+                DEFAULT_CLUSTER_TTL_SECONDS));
+    }
+
+    /**
+     * Read the settings all mappers share. The Waldur URL and token are required; TLS validation
+     * falls back to {@code tlsValidationDefault} when the mapper has no such setting.
+     */
+    static WaldurMapperConfig readShared(String mapperId, WaldurConfigReader reader, boolean tlsValidationDefault) {
+        return new WaldurMapperConfig(
+                mapperId,
+                reader.baseUrl(API_URL_KEY, "Waldur API URL"),
+                reader.required(API_TOKEN_KEY, "Waldur API token"),
+                reader.flag(API_TLS_VALIDATE_KEY, "TLS validation enabled", tlsValidationDefault),
+                reader.string(OIDCAttributeMapperHelper.TOKEN_CLAIM_NAME),
+                new WaldurCallPolicy(
+                        reader.integer(BREAKER_THRESHOLD_KEY, "Circuit breaker failure threshold",
+                                DEFAULT_BREAKER_THRESHOLD, 1),
+                        reader.integer(BREAKER_OPEN_KEY, "Circuit breaker open time",
+                                DEFAULT_BREAKER_OPEN_SECONDS, 0) * 1000L,
+                        reader.flag(ADAPTIVE_TIMEOUT_KEY, "Adaptive request timeout", DEFAULT_ADAPTIVE_TIMEOUT),
+                        reader.flag(HEDGING_KEY, "Hedged requests", DEFAULT_HEDGING)),
+                reader.integer(LATENCY_BUDGET_KEY, "Token latency budget", DEFAULT_LATENCY_BUDGET_MILLIS, 0),
+                reader.integer(PERSIST_TTL_KEY, "Stored result freshness", DEFAULT_PERSIST_TTL_SECONDS, 0) * 1000L,
+                reader.integer(CLUSTER_TTL_KEY, "Cluster cache TTL", DEFAULT_CLUSTER_TTL_SECONDS, 0) * 1000L,
+                fingerprint(reader.config()));
+    }
+
+    /** Short hash of the whole mapper config, to tell results fetched under another configuration apart. */
+    static String fingerprint(Map<String, String> config) {
+        return Integer.toHexString(config == null ? 0 : new TreeMap<>(config).hashCode());
+    }
+}
@@ -0,0 +1,106 @@
+package org.waldur.keycloak.mapper;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads typed values out of a mapper model's config map. Instead of failing on a bad value it
+ * notes the problem and returns the default, so one reader serves both {@code validateConfig},
+ * which rejects a config with problems, and configs saved before a setting was validated, which
+ * keep working on the defaults.
+ */
+final class WaldurConfigReader {
+
+    private final Map<String, String> config;
+    private final List<String> problems = new ArrayList<>();
+
+    WaldurConfigReader(Map<String, String> config) {
+        this.config = config == null ? Map.of() : config;
+    }
+
+    Map<String, String> config() {
+        return config;
+    }
+
+    List<String> problems() {
+        return problems;
+    }
+
+    /** The value as entered, or the empty string when it is not set. */
+    String string(String key) {
+        String value = config.get(key);
+        return value == null ? "" : value;
+    }
+
+    String required(String key, String label) {
+        String value = string(key);
+        if (value.isBlank()) {
+            problems.add(label + " is required");
+        }
+        return value;
+    }
+
+    /** An http(s) URL ending in a slash, as the Waldur paths are appended to it. */
+    String baseUrl(String key, String label) {
+        String value = required(key, label);
+        if (value.isBlank()) {
+            return value;
+        }
+        try {
+            URI uri = new URI(value);
+            if (!"http".equals(uri.getScheme()) && !"https".equals(uri.getScheme()) || uri.getHost() == null) {
+                problems.add(label + " must be an http or https URL, got " + value);
+            } else if (!value.endsWith("/")) {
+                problems.add(label + " must end with a slash, got " + value);
+            }
+        } catch (URISyntaxException e) {
+            problems.add(label + " is not a valid URL: " + e.getMessage());
+        }
+        return value;
+    }
+
+    boolean flag(String key, String label, boolean defaultValue) {
+        String value = config.get(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        if (!"true".equalsIgnoreCase(value.trim()) && !"false".equalsIgnoreCase(value.trim())) {
+            problems.add(label + " must be true or false, got " + value);
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+
+    int integer(String key, String label, int defaultValue, int min) {
+        String value = config.get(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed < min) {
+                problems.add(label + " must be at least " + min + ", got " + value);
+                return defaultValue;
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            problems.add(label + " must be a whole number, got " + value);
+            return defaultValue;
+        }
+    }
+
+    String choice(String key, String label, List<String> options, String defaultValue) {
+        String value = config.get(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        if (!options.contains(value)) {
+            problems.add(label + " must be one of " + String.join(", ", options) + ", got " + value);
+            return defaultValue;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,157 @@
+package org.waldur.keycloak.mapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Body handlers for compressed Waldur responses. Requests ask for {@value #ACCEPT_ENCODING}; a
+ * response body is decoded according to its {@code Content-Encoding} as it is read, so a streamed
+ * body goes through the decompressor straight into the JSON parser. Both the bytes received and
+ * the bytes they decode to are counted per endpoint.
+ */
+final class WaldurContentDecoding {
+
+    private static final Logger LOGGER = Logger.getLogger(WaldurContentDecoding.class.getName());
+
+    static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private WaldurContentDecoding() {
+    }
+
+    /** The whole body, decoded and read as UTF-8; empty when it cannot be decoded. */
+    static HttpResponse.BodyHandler<String> ofString(String endpoint) {
+        return responseInfo -> {
+            String encoding = encodingOf(responseInfo);
+            return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofByteArray(), bytes -> {
+                try (InputStream in = decoding(new ByteArrayInputStream(bytes), encoding, endpoint)) {
+                    return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                } catch (IOException e) {
+                    LOGGER.errorf("Unable to decode a %s response from %s: %s", encoding, endpoint, e.getMessage());
+                    return "";
+                }
+            });
+        };
+    }
+
+    /** The body as a stream that decodes while it is read. */
+    static HttpResponse.BodyHandler<InputStream> ofInputStream(String endpoint) {
+        return responseInfo -> {
+            String encoding = encodingOf(responseInfo);
+            return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofInputStream(),
+                    body -> decoding(body, encoding, endpoint));
+        };
+    }
+
+    private static String encodingOf(HttpResponse.ResponseInfo responseInfo) {
+        return responseInfo.headers().firstValue("Content-Encoding")
+                .map(value -> value.trim().toLowerCase(Locale.ROOT))
+                .orElse("identity");
+    }
+
+    /**
+     * Wrap the received bytes in a stream that decodes them. Nothing is read until the caller
+     * reads, as the body may still be arriving; the byte counts are recorded on close.
+     */
+    static InputStream decoding(InputStream wire, String encoding, String endpoint) {
+        return new DecodingInputStream(new CountingInputStream(wire), encoding, endpoint);
+    }
+
+    /** A stream that counts the bytes read through it. */
+    static final class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long count() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+
+    private static final class DecodingInputStream extends InputStream {
+        private final CountingInputStream wire;
+        private final String encoding;
+        private final String endpoint;
+        private InputStream decoder;
+        private long decoded;
+        private boolean closed;
+
+        DecodingInputStream(CountingInputStream wire, String encoding, String endpoint) {
+            this.wire = wire;
+            this.encoding = encoding;
+            this.endpoint = endpoint;
+        }
+
+        /** Made on the first read, since a gzip stream reads its header as soon as it is made. */
+        private InputStream decoder() throws IOException {
+            if (decoder == null) {
+                decoder = switch (encoding) {
+                    case "gzip", "x-gzip" -> new GZIPInputStream(wire, 8192);
+                    case "deflate" -> new InflaterInputStream(wire);
+                    case "identity" -> wire;
+                    default -> throw new IOException("Unsupported content encoding " + encoding);
+                };
+            }
+            return decoder;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = decoder().read();
+            if (b >= 0) {
+                decoded++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = decoder().read(buffer, offset, length);
+            if (n > 0) {
+                decoded += n;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                (decoder != null ? decoder : wire).close();
+            } finally {
+                WaldurMetrics.responseBytes(endpoint, wire.count, decoded);
+            }
+        }
+    }
+}
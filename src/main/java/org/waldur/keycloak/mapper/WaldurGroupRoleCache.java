@@ -0,0 +1,127 @@
+package org.waldur.keycloak.mapper;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleContainerModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.provider.ProviderEvent;
+
+/**
+ * Ids of the groups and realm roles the offering access mapper manages, resolved by path or name
+ * once per realm rather than on every token. Resolving a path walks the realm's groups, which
+ * dominates the mapper's cost in realms with many of them; a lookup by id is served from
+ * Keycloak's realm cache.
+ *
+ * Entries of a realm are dropped on every node when one of its groups is moved, renamed or
+ * removed, or one of its roles is renamed. As these events fire before the change is committed,
+ * a cached id is also checked against the name it was resolved from and resolved again when the
+ * group or role is gone or renamed.
+ */
+final class WaldurGroupRoleCache {
+
+    private static final Logger LOGGER = Logger.getLogger(WaldurGroupRoleCache.class.getName());
+
+    /** Prefix of the cluster invalidation ids this cache listens to, followed by a realm id. */
+    static final String INVALIDATION_PREFIX = "realm-model:";
+    private static final String ALL_REALMS = "*";
+
+    private static final Map<String, String> GROUP_IDS = new ConcurrentHashMap<>();
+    private static final Map<String, String> ROLE_IDS = new ConcurrentHashMap<>();
+    private static final AtomicBoolean LISTENING = new AtomicBoolean();
+
+    static {
+        WaldurClusterCache.onInvalidation(id -> {
+            if (id.startsWith(INVALIDATION_PREFIX)) {
+                clear(id.substring(INVALIDATION_PREFIX.length()));
+            }
+        });
+    }
+
+    private WaldurGroupRoleCache() {
+    }
+
+    static GroupModel group(KeycloakSession session, RealmModel realm, String path) {
+        listen(session);
+        return group(realm, path, p -> KeycloakModelUtils.findGroupByPath(session, realm, p));
+    }
+
+    static GroupModel group(RealmModel realm, String path, Function<String, GroupModel> resolve) {
+        String key = realm.getId() + "/" + path;
+        String id = GROUP_IDS.get(key);
+        GroupModel group = id == null ? null : realm.getGroupById(id);
+        WaldurMetrics.cacheLookup("group", group != null);
+        if (group != null && path.endsWith("/" + group.getName())) {
+            return group;
+        }
+        group = resolve.apply(path);
+        if (group != null) {
+            GROUP_IDS.put(key, group.getId());
+        } else {
+            GROUP_IDS.remove(key);
+        }
+        return group;
+    }
+
+    static RoleModel role(KeycloakSession session, RealmModel realm, String name) {
+        listen(session);
+        String key = realm.getId() + "/" + name;
+        String id = ROLE_IDS.get(key);
+        RoleModel role = id == null ? null : realm.getRoleById(id);
+        WaldurMetrics.cacheLookup("role", role != null);
+        if (role != null && name.equals(role.getName())) {
+            return role;
+        }
+        role = realm.getRole(name);
+        if (role != null) {
+            ROLE_IDS.put(key, role.getId());
+        } else {
+            ROLE_IDS.remove(key);
+        }
+        return role;
+    }
+
+    /** Start receiving group and role changes made on this node; only the first call does anything. */
+    private static void listen(KeycloakSession session) {
+        if (session != null && LISTENING.compareAndSet(false, true)) {
+            session.getKeycloakSessionFactory().register(WaldurGroupRoleCache::onEvent);
+        }
+    }
+
+    static void onEvent(ProviderEvent event) {
+        if (event instanceof GroupModel.GroupPathChangeEvent || event instanceof GroupModel.GroupRemovedEvent) {
+            GroupModel.GroupEvent groupEvent = (GroupModel.GroupEvent) event;
+            invalidate(groupEvent.getKeycloakSession(), groupEvent.getRealm().getId());
+        } else if (event instanceof RoleModel.RoleNameChangeEvent renamed) {
+            invalidate(renamed.getKeycloakSession(), renamed.getRealm().getId());
+        } else if (event instanceof RoleContainerModel.RoleRemovedEvent removed) {
+            // The removed role's realm cannot be looked up reliably; roles are rarely removed.
+            invalidate(removed.getKeycloakSession(), ALL_REALMS);
+        } else if (event instanceof RealmModel.RealmRemovedEvent removed) {
+            clear(removed.getRealm().getId());
+        }
+    }
+
+    private static void invalidate(KeycloakSession session, String realmId) {
+        WaldurClusterCache.invalidate(session, INVALIDATION_PREFIX + realmId);
+    }
+
+    static void clear(String realmId) {
+        LOGGER.debugf("Dropping cached group and role ids of realm %s", realmId);
+        if (ALL_REALMS.equals(realmId)) {
+            GROUP_IDS.clear();
+            ROLE_IDS.clear();
+            return;
+        }
+        String prefix = realmId + "/";
+        GROUP_IDS.keySet().removeIf(key -> key.startsWith(prefix));
+        ROLE_IDS.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+}
@@ -1,12 +1,27 @@
 package org.waldur.keycloak.mapper;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collector;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
@@ -14,10 +29,37 @@ import javax.net.ssl.X509TrustManager;
 
 import org.jboss.logging.Logger;
 
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.context.Context;
+
 /**
  * Thin wrapper around the JDK HttpClient that all Waldur mappers share.
  * Centralises connect/request timeouts, the optional trust-all SSL
  * context for non-validated TLS, and the Token-auth header.
+ *
+ * Instances are long-lived and obtained from {@link WaldurHttpClientRegistry}; the underlying
+ * client prefers HTTP/2, multiplexing the calls of concurrent token requests over one connection
+ * per Waldur host, and keeps connections alive between token requests. Responses are asked for
+ * compressed and decoded by {@link WaldurContentDecoding}. Concurrent GETs for
+ * the same URL are coalesced into a single request, and every call has a non-blocking variant so
+ * mappers can overlap their Waldur round trips.
+ *
+ * Every call is traced as a client span carrying a W3C {@code traceparent} to Waldur, and the
+ * parsing of its response as a span of its own; see {@link WaldurTracing}.
+ *
+ * Parsed results are kept per URL with the {@code ETag} and {@code Last-Modified} validators of
+ * their response. The next GET of the URL sends them back as {@code If-None-Match} and
+ * {@code If-Modified-Since}; a 304 answer reuses the kept result without reading or parsing a body.
+ * Results are kept for {@link #REVALIDATION_TTL_MILLIS} at most, weighed by the size of the body
+ * they were parsed from, and only when the response carried a validator.
+ *
+ * Calls time out after a multiple of their endpoint's recent p99 rather than always after
+ * {@link #REQUEST_TIMEOUT}, and may be hedged once they take longer than its p95; see
+ * {@link WaldurLatencyTracker}.
+ *
+ * Every call passes through the {@link WaldurCircuitBreaker} of its endpoint. While a breaker is
+ * open, parsed lookups fail fast with {@link WaldurUnavailableException} so mappers can tell an
+ * outage apart from a negative answer.
  */
 final class WaldurHttpClient {
 
@@ -26,64 +68,523 @@ final class WaldurHttpClient {
     private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
     private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(15);
 
+    /** Page size asked of Waldur list endpoints; larger pages mean fewer round trips. */
+    static final int LIST_PAGE_SIZE = 200;
+
+    /** How many pages of a list are fetched at the same time once the number of pages is known. */
+    private static final int PAGE_WINDOW = 4;
+
+    private static final Pattern NEXT_LINK = Pattern.compile("<([^>]+)>\\s*;\\s*rel=\"next\"");
+
+    private static final Pattern UUID_SEGMENT =
+            Pattern.compile("/([0-9a-fA-F]{32}|[0-9a-fA-F]{8}(-[0-9a-fA-F]{4}){3}-[0-9a-fA-F]{12})(?=/|$)");
+
     private final HttpClient client;
     private final String token;
 
+    private final WaldurSingleFlight<String, String> inFlightBodies = new WaldurSingleFlight<>();
+    private final WaldurSingleFlight<ResultKey, Object> inFlightResults = new WaldurSingleFlight<>();
+
+    /** How many parsed results are kept for revalidation; the least recently used go first. */
+    static final int REVALIDATION_CACHE_SIZE = 10000;
+
+    /** The decoded body bytes the results kept for revalidation may have been parsed from in all. */
+    static final long REVALIDATION_CACHE_BYTES = 32L * 1024 * 1024;
+
+    /** Results parsed from a larger body than this are not kept; such a body is fetched in full each time. */
+    static final long REVALIDATION_MAX_RESULT_BYTES = 1024 * 1024;
+
+    /** How long a kept result is revalidated before it is fetched in full again. */
+    static final long REVALIDATION_TTL_MILLIS = 10 * 60_000;
+
+    private final WaldurCache<ResultKey, Validated> validated =
+            new WaldurCache<>(REVALIDATION_CACHE_SIZE, REVALIDATION_CACHE_BYTES, Validated::bytes);
+
+    /**
+     * A parsed result is shared and kept per URL and per parser (with the collector, for a whole
+     * list), so callers reading the same URL differently each get a result of their own type.
+     * Parsers and collectors are told apart by identity, and Java does not promise to reuse the
+     * instance of a lambda or method reference, so callers pass them from {@code static final}
+     * constants; a parser made anew for each call shares and revalidates nothing.
+     */
+    private record ResultKey(String url, Object reader) {
+    }
+
+    /**
+     * A parsed result with the validators of the response it was parsed from, either of which may
+     * be null, and the size of its decoded body.
+     */
+    private record Validated(String etag, String lastModified, Object result, long bytes) {
+    }
+
+    /** A parsed result, or null, and how many decoded body bytes it was parsed from. */
+    private record Parsed(Object result, long bytes) {
+    }
+
+    /** One page of a Waldur list, with what its pagination headers say about the rest. */
+    private record Page<E>(List<E> items, Long resultCount, String nextUrl) {
+    }
+
     WaldurHttpClient(String token, boolean tlsValidationEnabled) {
         this.client = build(tlsValidationEnabled);
         this.token = token;
     }
 
-    /** Convenience overload for callers that don't need to flip TLS validation. */
-    WaldurHttpClient(String token) {
-        this(token, true);
-    }
-
     /**
      * GET the URL and return the response body as a String, or an empty string when the call fails
      * or the server returns a non-200 status. All exceptions are caught and logged so a flaky
      * Waldur API never throws into the mapper.
      */
     String get(String url) {
+        return getAsync(url).join();
+    }
+
+    /** Non-blocking {@link #get(String)}; the future always completes normally. */
+    CompletableFuture<String> getAsync(String url) {
+        return inFlightBodies.execute(url, () -> fetch(url, WaldurCallPolicy.DEFAULT)
+                .exceptionally(e -> ""));
+    }
+
+    /**
+     * GET the URL and hand the body to {@code parser}, returning its result, or null when the call
+     * fails. Concurrent callers for the same URL and parser share both the request and the parsed
+     * result, so the parser must depend on nothing but the body and must not mutate what it returns.
+     */
+    <T> T get(String url, Function<String, T> parser) {
+        return getAsync(url, parser).join();
+    }
+
+    /** {@link #getAsync(String, Function, WaldurCallPolicy)} with the default call policy. */
+    <T> CompletableFuture<T> getAsync(String url, Function<String, T> parser) {
+        return getAsync(url, parser, WaldurCallPolicy.DEFAULT);
+    }
+
+    /**
+     * Non-blocking {@link #get(String, Function)}. The future completes with null when the call
+     * fails, and exceptionally with {@link WaldurUnavailableException} when the endpoint's circuit
+     * breaker kept it from being made.
+     */
+    @SuppressWarnings("unchecked")
+    <T> CompletableFuture<T> getAsync(String url, Function<String, T> parser, WaldurCallPolicy policy) {
+        ResultKey key = new ResultKey(url, parser);
+        return (CompletableFuture<T>) inFlightResults.execute(key, () -> revalidate(key, policy,
+                WaldurContentDecoding.ofString(endpointOf(url)), response -> {
+                    String body = response.body();
+                    if (body == null || body.isEmpty()) {
+                        return new Parsed(null, 0);
+                    }
+                    Object parsed;
+                    try {
+                        parsed = WaldurTracing.parse(endpointOf(url), () -> parser.apply(body));
+                    } catch (RuntimeException e) {
+                        LOGGER.error(e.getMessage(), e);
+                        parsed = null;
+                    }
+                    if (parsed == null) {
+                        WaldurMetrics.parseFailure(endpointOf(url));
+                    }
+                    return new Parsed(parsed, body.length());
+                }));
+    }
+
+    /**
+     * Like {@link #getAsync(String, Function, WaldurCallPolicy)}, but hands the parser the response
+     * body as a stream while it is still arriving, so large responses never have to be held in
+     * memory as a whole. The parser must not keep the stream; it is closed once the parser returns.
+     */
+    @SuppressWarnings("unchecked")
+    <T> CompletableFuture<T> getStreamAsync(String url, Function<InputStream, T> parser, WaldurCallPolicy policy) {
+        ResultKey key = new ResultKey(url, parser);
+        return (CompletableFuture<T>) inFlightResults.execute(key, () -> revalidate(key, policy,
+                WaldurContentDecoding.ofInputStream(endpointOf(url)), response -> {
+                    if (response.body() == null) {
+                        return new Parsed(null, 0);
+                    }
+                    WaldurContentDecoding.CountingInputStream body =
+                            new WaldurContentDecoding.CountingInputStream(response.body());
+                    return new Parsed(parseStream(url, body, parser), body.count());
+                }));
+    }
+
+    /**
+     * GET the key's URL, sending the validators of the result kept for the key, and complete with
+     * the kept result on a 304 or with the parsed 200 response; null otherwise. A new result is
+     * kept when its response carries a validator and its body was small enough.
+     */
+    private <B> CompletableFuture<Object> revalidate(ResultKey key, WaldurCallPolicy policy,
+            HttpResponse.BodyHandler<B> bodyHandler, Function<HttpResponse<B>, Parsed> parse) {
+        Context parent = Context.current();
+        WaldurCache.Entry<Validated> entry = validated.getEntry(key);
+        Validated cached = entry == null || entry.ageMillis() >= REVALIDATION_TTL_MILLIS ? null : entry.getValue();
+        return sendForResponse(key.url(), policy, bodyHandler, cached)
+                .thenApply(parent.wrapFunction(response -> {
+                    if (response == null) {
+                        return null;
+                    }
+                    if (response.statusCode() == 304) {
+                        return cached.result();
+                    }
+                    Parsed parsed = parse.apply(response);
+                    keep(key, response, parsed);
+                    return parsed.result();
+                }));
+    }
+
+    private void keep(ResultKey key, HttpResponse<?> response, Parsed parsed) {
+        String etag = response.headers().firstValue("ETag").orElse(null);
+        String lastModified = response.headers().firstValue("Last-Modified").orElse(null);
+        if (parsed.result() == null || (etag == null && lastModified == null)
+                || parsed.bytes() > REVALIDATION_MAX_RESULT_BYTES) {
+            validated.invalidate(key);
+        } else {
+            validated.put(key, new Validated(etag, lastModified, parsed.result(), parsed.bytes()));
+        }
+    }
+
+    /**
+     * GET every page of a Waldur list endpoint and collect the items of all pages into one result,
+     * or null when any page fails. The URL must not carry paging parameters of its own.
+     *
+     * The first page tells how many items there are ({@code X-Result-Count}); the remaining pages
+     * are then fetched a few at a time and handed to the collector in order as they arrive, so
+     * only those few pages are ever held in memory. Without a count, the {@code Link} header's
+     * next page is followed one page at a time. Concurrent callers for the same URL, page parser
+     * and collector share the result, as with {@link #getAsync(String, Function, WaldurCallPolicy)}.
+     */
+    @SuppressWarnings("unchecked")
+    <E, R> CompletableFuture<R> getAllPagesAsync(String url, int pageSize, Function<InputStream, List<E>> pageParser,
+            Collector<? super E, ?, R> collector, WaldurCallPolicy policy) {
+        return (CompletableFuture<R>) inFlightResults.execute(new ResultKey(url, List.of(pageParser, collector)),
+                () -> collectPages(url, pageSize, pageParser, collector, policy));
+    }
+
+    private <E, A, R> CompletableFuture<Object> collectPages(String url, int pageSize,
+            Function<InputStream, List<E>> pageParser, Collector<? super E, A, R> collector, WaldurCallPolicy policy) {
+        A accumulated = collector.supplier().get();
+        Consumer<List<E>> collect = items -> items.forEach(item -> collector.accumulator().accept(accumulated, item));
+
+        return fetchPage(withPage(url, 1, pageSize), pageParser, policy)
+                .thenCompose(Context.current().wrapFunction(first -> {
+                    if (first == null) {
+                        return CompletableFuture.completedFuture(false);
+                    }
+                    collect.accept(first.items());
+                    if (first.resultCount() == null || first.items().isEmpty()) {
+                        return followNextLinks(first.nextUrl(), pageParser, collect, policy);
+                    }
+                    // The server may cap the page size, so count pages by what the first one held.
+                    int perPage = first.items().size();
+                    long pages = (first.resultCount() + perPage - 1) / perPage;
+                    List<String> pageUrls = new ArrayList<>();
+                    for (int page = 2; page <= pages; page++) {
+                        pageUrls.add(withPage(url, page, pageSize));
+                    }
+                    return fetchInOrder(pageUrls, pageParser, collect, policy);
+                }))
+                .thenApply(complete -> complete ? collector.finisher().apply(accumulated) : null);
+    }
+
+    /** Fetch the pages at most {@link #PAGE_WINDOW} at a time and collect them in order. */
+    private <E> CompletableFuture<Boolean> fetchInOrder(List<String> pageUrls,
+            Function<InputStream, List<E>> pageParser, Consumer<List<E>> collect, WaldurCallPolicy policy) {
+        List<CompletableFuture<Page<E>>> pages = new ArrayList<>(pageUrls.size());
+        for (int i = 0; i < pageUrls.size(); i++) {
+            pages.add(i < PAGE_WINDOW ? fetchPage(pageUrls.get(i), pageParser, policy) : null);
+        }
+        return collectFrom(0, pages, pageUrls, pageParser, collect, policy);
+    }
+
+    private <E> CompletableFuture<Boolean> collectFrom(int index, List<CompletableFuture<Page<E>>> pages,
+            List<String> pageUrls, Function<InputStream, List<E>> pageParser, Consumer<List<E>> collect,
+            WaldurCallPolicy policy) {
+        if (index == pages.size()) {
+            return CompletableFuture.completedFuture(true);
+        }
+        return pages.get(index).thenCompose(Context.current().wrapFunction(page -> {
+            if (page == null) {
+                return CompletableFuture.completedFuture(false);
+            }
+            collect.accept(page.items());
+            pages.set(index, null);
+            int next = index + PAGE_WINDOW;
+            if (next < pages.size()) {
+                pages.set(next, fetchPage(pageUrls.get(next), pageParser, policy));
+            }
+            return collectFrom(index + 1, pages, pageUrls, pageParser, collect, policy);
+        }));
+    }
+
+    private <E> CompletableFuture<Boolean> followNextLinks(String nextUrl, Function<InputStream, List<E>> pageParser,
+            Consumer<List<E>> collect, WaldurCallPolicy policy) {
+        if (nextUrl == null) {
+            return CompletableFuture.completedFuture(true);
+        }
+        return fetchPage(nextUrl, pageParser, policy).thenCompose(Context.current().wrapFunction(page -> {
+            if (page == null) {
+                return CompletableFuture.completedFuture(false);
+            }
+            collect.accept(page.items());
+            return followNextLinks(page.nextUrl(), pageParser, collect, policy);
+        }));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <E> CompletableFuture<Page<E>> fetchPage(String pageUrl, Function<InputStream, List<E>> pageParser,
+            WaldurCallPolicy policy) {
+        return revalidate(new ResultKey(pageUrl, pageParser), policy,
+                WaldurContentDecoding.ofInputStream(endpointOf(pageUrl)),
+                response -> {
+                    WaldurContentDecoding.CountingInputStream body =
+                            new WaldurContentDecoding.CountingInputStream(response.body());
+                    List<E> items = parseStream(pageUrl, body, pageParser);
+                    if (items == null) {
+                        return new Parsed(null, body.count());
+                    }
+                    Long resultCount = response.headers().firstValue("X-Result-Count")
+                            .map(WaldurHttpClient::parseCount).orElse(null);
+                    String nextUrl = response.headers().allValues("Link").stream()
+                            .map(NEXT_LINK::matcher)
+                            .filter(Matcher::find)
+                            .map(matcher -> matcher.group(1))
+                            .findFirst().orElse(null);
+                    return new Parsed(new Page<>(items, resultCount, nextUrl), body.count());
+                })
+                .thenApply(page -> (Page<E>) page);
+    }
+
+    static String withPage(String url, int page, int pageSize) {
+        return url + (url.contains("?") ? "&" : "?") + "page=" + page + "&page_size=" + pageSize;
+    }
+
+    private static Long parseCount(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static <T> T parseStream(String url, InputStream body, Function<InputStream, T> parser) {
+        T parsed;
+        try (InputStream in = body) {
+            parsed = WaldurTracing.parse(endpointOf(url), () -> parser.apply(in));
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error(e.getMessage(), e);
+            parsed = null;
+        }
+        if (parsed == null) {
+            WaldurMetrics.parseFailure(endpointOf(url));
+        }
+        return parsed;
+    }
+
+    /**
+     * The endpoint a URL belongs to for circuit breaking: scheme, host and path with UUID path
+     * segments replaced by {@code {uuid}} and the query dropped.
+     */
+    static String endpointOf(String url) {
+        int query = url.indexOf('?');
+        String path = query >= 0 ? url.substring(0, query) : url;
+        return UUID_SEGMENT.matcher(path).replaceAll("/{uuid}");
+    }
+
+    private CompletableFuture<String> fetch(String url, WaldurCallPolicy policy) {
+        return send(url, policy, WaldurContentDecoding.ofString(endpointOf(url))).thenApply(body -> body == null ? "" : body);
+    }
+
+    /**
+     * Send the GET and complete with the body of a 200 response, or null for any other status or
+     * failure. Bodies of other responses are discarded unread.
+     */
+    private <B> CompletableFuture<B> send(String url, WaldurCallPolicy policy, HttpResponse.BodyHandler<B> bodyHandler) {
+        return sendForResponse(url, policy, bodyHandler, null)
+                .thenApply(response -> response == null ? null : response.body());
+    }
+
+    /**
+     * {@link #send} for callers that also need the response headers; null unless the status is
+     * 200, or 304 when the validators of {@code cached} were sent. A 304 has no body.
+     */
+    private <B> CompletableFuture<HttpResponse<B>> sendForResponse(String url, WaldurCallPolicy policy,
+            HttpResponse.BodyHandler<B> bodyHandler, Validated cached) {
+        URI uri;
+        HttpRequest.Builder request;
         try {
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(new URI(url))
+            uri = new URI(url);
+            request = HttpRequest.newBuilder()
+                    .uri(uri)
                     .timeout(REQUEST_TIMEOUT)
                     .GET()
                     .setHeader("Authorization", "Token " + token)
-                    .build();
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-            int statusCode = response.statusCode();
-            LOGGER.infof("Waldur GET %s -> %d", url, statusCode);
-            if (statusCode != 200) {
-                return "";
+                    .setHeader("Accept-Encoding", WaldurContentDecoding.ACCEPT_ENCODING);
+            if (cached != null && cached.etag() != null) {
+                request.setHeader("If-None-Match", cached.etag());
+            }
+            if (cached != null && cached.lastModified() != null) {
+                request.setHeader("If-Modified-Since", cached.lastModified());
             }
-            return response.body();
         } catch (Exception e) {
             LOGGER.error(e.getMessage(), e);
-            return "";
+            return CompletableFuture.completedFuture(null);
+        }
+        String endpoint = endpointOf(url);
+        WaldurCircuitBreaker breaker = WaldurCircuitBreaker.forEndpoint(endpoint);
+        if (!breaker.tryAcquire(policy)) {
+            LOGGER.debugf("Circuit breaker for %s is open, skipping GET %s", breaker.getEndpoint(), url);
+            return CompletableFuture.failedFuture(new WaldurUnavailableException(breaker.getEndpoint()));
+        }
+        HttpResponse.BodyHandler<B> okOnly = responseInfo -> responseInfo.statusCode() == 200
+                ? bodyHandler.apply(responseInfo)
+                : HttpResponse.BodySubscribers.replacing(null);
+        WaldurLatencyTracker latency = WaldurLatencyTracker.forEndpoint(endpoint);
+        if (policy.adaptiveTimeout()) {
+            request.timeout(latency.timeout(REQUEST_TIMEOUT));
+        }
+        Span span = WaldurTracing.startRequest(uri, endpoint, request);
+        HttpRequest built = request.build();
+        long hedgeAfterMillis = policy.hedging() ? latency.p95Millis() : -1;
+        WaldurLatencyTracker.onCall();
+        long start = System.nanoTime();
+        return (hedgeAfterMillis < 0 ? attempt(built, okOnly, latency)
+                : hedged(built, okOnly, latency, hedgeAfterMillis, endpoint))
+                .handle((response, error) -> {
+                    long elapsedNanos = System.nanoTime() - start;
+                    WaldurTracing.endRequest(span, response == null ? 0 : response.statusCode(), error);
+                    if (error != null) {
+                        breaker.onFailure(policy);
+                        Throwable cause = error instanceof CompletionException && error.getCause() != null
+                                ? error.getCause() : error;
+                        if (cause instanceof HttpTimeoutException) {
+                            WaldurMetrics.request(endpoint, "timeout", elapsedNanos);
+                            WaldurMetrics.timeout("request");
+                        } else {
+                            WaldurMetrics.request(endpoint, "error", elapsedNanos);
+                        }
+                        LOGGER.error(error.getMessage(), error);
+                        return null;
+                    }
+                    int statusCode = response.statusCode();
+                    WaldurMetrics.request(endpoint, Integer.toString(statusCode), elapsedNanos);
+                    LOGGER.infof("Waldur GET %s -> %d", url, statusCode);
+                    // Client errors are answers; only overload and server errors count against Waldur.
+                    if (statusCode >= 500 || statusCode == 429) {
+                        breaker.onFailure(policy);
+                    } else {
+                        breaker.onSuccess();
+                    }
+                    if (cached != null) {
+                        WaldurMetrics.cacheLookup("revalidation", statusCode == 304);
+                    }
+                    return statusCode == 200 || (statusCode == 304 && cached != null) ? response : null;
+                });
+    }
+
+    /** Send the request once, recording how long its response took, or that it timed out. */
+    private <B> CompletableFuture<HttpResponse<B>> attempt(HttpRequest request, HttpResponse.BodyHandler<B> bodyHandler,
+            WaldurLatencyTracker latency) {
+        return timed(client.sendAsync(request, bodyHandler), latency, System.nanoTime());
+    }
+
+    /** The exchange, completing only once its response time has been recorded. */
+    private static <B> CompletableFuture<HttpResponse<B>> timed(CompletableFuture<HttpResponse<B>> exchange,
+            WaldurLatencyTracker latency, long start) {
+        return exchange.whenComplete((response, error) -> {
+            if (response != null) {
+                latency.record(System.nanoTime() - start);
+            } else if (error instanceof HttpTimeoutException || error.getCause() instanceof HttpTimeoutException) {
+                latency.recordTimeout(System.nanoTime() - start);
+            }
+        });
+    }
+
+    /**
+     * Send the request, and send it again if no response has come after {@code hedgeAfterMillis}
+     * and the hedge budget allows. The first response wins and the other exchange is aborted; the
+     * body of a response that still arrives after the race is decided is closed unread. The call
+     * fails only when every request sent has failed.
+     */
+    private <B> CompletableFuture<HttpResponse<B>> hedged(HttpRequest request, HttpResponse.BodyHandler<B> bodyHandler,
+            WaldurLatencyTracker latency, long hedgeAfterMillis, String endpoint) {
+        CompletableFuture<HttpResponse<B>> winner = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(1);
+        // The client's own futures: cancelling one of those, not a stage derived from it, aborts
+        // the exchange.
+        List<CompletableFuture<HttpResponse<B>>> exchanges = new CopyOnWriteArrayList<>();
+        Runnable send = () -> {
+            long start = System.nanoTime();
+            CompletableFuture<HttpResponse<B>> exchange = client.sendAsync(request, bodyHandler);
+            exchanges.add(exchange);
+            if (winner.isDone()) {
+                exchange.cancel(true);
+            }
+            timed(exchange, latency, start).whenComplete((response, error) -> {
+                if (error == null && winner.complete(response)) {
+                    exchanges.forEach(other -> other.cancel(true));
+                } else if (error == null) {
+                    discard(response);
+                } else if (pending.decrementAndGet() == 0) {
+                    winner.completeExceptionally(error);
+                }
+            });
+        };
+        send.run();
+        CompletableFuture.delayedExecutor(hedgeAfterMillis, TimeUnit.MILLISECONDS).execute(() -> {
+            if (winner.isDone() || !WaldurLatencyTracker.tryHedge()) {
+                return;
+            }
+            LOGGER.debugf("No response from %s after %d ms, hedging", endpoint, hedgeAfterMillis);
+            WaldurMetrics.hedge(endpoint);
+            pending.incrementAndGet();
+            send.run();
+        });
+        return winner;
+    }
+
+    /** Close the body of a response that lost the race, if it is a stream. */
+    private static void discard(HttpResponse<?> response) {
+        if (response.body() instanceof AutoCloseable body) {
+            try {
+                body.close();
+            } catch (Exception e) {
+                LOGGER.debug(e.getMessage(), e);
+            }
         }
     }
 
     private static HttpClient build(boolean tlsValidationEnabled) {
-        HttpClient.Builder builder = HttpClient.newBuilder().connectTimeout(CONNECT_TIMEOUT);
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .connectTimeout(CONNECT_TIMEOUT)
+                .version(HttpClient.Version.HTTP_2);
         if (tlsValidationEnabled) {
             return builder.build();
         }
-        try {
-            TrustManager[] trustAll = new TrustManager[] {
-                new X509TrustManager() {
-                    public X509Certificate[] getAcceptedIssuers() { return new X509Certificate[0]; }
-                    public void checkClientTrusted(X509Certificate[] certs, String authType) {}
-                    public void checkServerTrusted(X509Certificate[] certs, String authType) {}
-                }
-            };
-            SSLContext sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(null, trustAll, new SecureRandom());
-            return builder.sslContext(sslContext).build();
-        } catch (Exception e) {
-            LOGGER.warn("Failed to create permissive SSL context, falling back to default validation");
+        SSLContext sslContext = TrustAllContextHolder.SSL_CONTEXT;
+        if (sslContext == null) {
             return builder.build();
         }
+        return builder.sslContext(sslContext).build();
+    }
+
+    /** Lazily builds the permissive SSL context once per JVM rather than once per client. */
+    private static final class TrustAllContextHolder {
+        private static final SSLContext SSL_CONTEXT = create();
+
+        private static SSLContext create() {
+            try {
+                TrustManager[] trustAll = new TrustManager[] {
+                    new X509TrustManager() {
+                        public X509Certificate[] getAcceptedIssuers() { return new X509Certificate[0]; }
+                        public void checkClientTrusted(X509Certificate[] certs, String authType) {}
+                        public void checkServerTrusted(X509Certificate[] certs, String authType) {}
+                    }
+                };
+                SSLContext sslContext = SSLContext.getInstance("TLS");
+                sslContext.init(null, trustAll, new SecureRandom());
+                return sslContext;
+            } catch (Exception e) {
+                LOGGER.warn("Failed to create permissive SSL context, falling back to default validation");
+                return null;
+            }
+        }
     }
 }
@@ -0,0 +1,81 @@
+package org.waldur.keycloak.mapper;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Process-wide pool of long-lived {@link WaldurHttpClient}s keyed by (base URL, token, TLS mode).
+ * Building a JDK HttpClient spins up a selector thread, a connection pool and a TLS session cache,
+ * so mappers borrow a shared client instead of creating one per token.
+ */
+final class WaldurHttpClientRegistry {
+
+    private static final Logger LOGGER = Logger.getLogger(WaldurHttpClientRegistry.class.getName());
+
+    private static final Map<Key, WaldurHttpClient> CLIENTS = new ConcurrentHashMap<>();
+
+    private static final AtomicLong CREATED = new AtomicLong();
+    private static final AtomicLong REUSED = new AtomicLong();
+    private static final AtomicLong EVICTED = new AtomicLong();
+
+    private WaldurHttpClientRegistry() {
+    }
+
+    private record Key(String baseUrl, String token, boolean tlsValidationEnabled) {
+        @Override
+        public String toString() {
+            // Never leak the API token into logs.
+            return String.format("%s (tls validation %s)", baseUrl, tlsValidationEnabled ? "on" : "off");
+        }
+    }
+
+    /** Snapshot of the pool counters, logged whenever the pool changes shape. */
+    record Stats(int size, long created, long reused, long evicted) {
+    }
+
+    static WaldurHttpClient get(String baseUrl, String token, boolean tlsValidationEnabled) {
+        Key key = new Key(baseUrl, token, tlsValidationEnabled);
+        WaldurHttpClient client = CLIENTS.get(key);
+        if (client != null) {
+            REUSED.incrementAndGet();
+            return client;
+        }
+        WaldurHttpClient[] created = new WaldurHttpClient[1];
+        client = CLIENTS.computeIfAbsent(key, k -> {
+            CREATED.incrementAndGet();
+            created[0] = new WaldurHttpClient(token, tlsValidationEnabled);
+            return created[0];
+        });
+        if (created[0] != null) {
+            LOGGER.infof("Created Waldur HTTP client for %s, pool: %s", key, stats());
+        } else {
+            REUSED.incrementAndGet();
+        }
+        return client;
+    }
+
+    /**
+     * Drop the client for the given settings, typically because the mapper holding them has been
+     * reconfigured. Requests already running on the evicted client complete normally.
+     */
+    static void evict(String baseUrl, String token, boolean tlsValidationEnabled) {
+        Key key = new Key(baseUrl, token, tlsValidationEnabled);
+        if (CLIENTS.remove(key) != null) {
+            EVICTED.incrementAndGet();
+            LOGGER.infof("Evicted Waldur HTTP client for %s, pool: %s", key, stats());
+        }
+    }
+
+    static void clear() {
+        int size = CLIENTS.size();
+        CLIENTS.clear();
+        EVICTED.addAndGet(size);
+    }
+
+    static Stats stats() {
+        return new Stats(CLIENTS.size(), CREATED.get(), REUSED.get(), EVICTED.get());
+    }
+}
@@ -0,0 +1,128 @@
+package org.waldur.keycloak.mapper;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recent response times of a Waldur endpoint, for timeouts and hedging that follow how the
+ * endpoint actually behaves. The last {@link #WINDOW} responses are kept; their percentiles are
+ * recomputed every {@link #REFRESH_EVERY} responses, so reading them costs nothing per call.
+ *
+ * Until {@link #MIN_SAMPLES} responses have been seen, an endpoint has no percentiles: calls get
+ * the fixed request timeout and are not hedged. A call that times out counts as a response that
+ * took as long as the call waited, and each such call in a row doubles the timeout, so an
+ * endpoint that slows down past what it was allowed gets the time it now needs.
+ *
+ * Hedges share one budget for the whole JVM: every call earns a credit and a hedge spends
+ * {@code 1 / HEDGE_RATE} of them, so at most {@link #HEDGE_RATE} of all calls are duplicated,
+ * in bursts of at most {@link #HEDGE_BURST}, however slow Waldur gets.
+ */
+final class WaldurLatencyTracker {
+
+    private static final Map<String, WaldurLatencyTracker> TRACKERS = new ConcurrentHashMap<>();
+
+    static final int WINDOW = 512;
+    static final int MIN_SAMPLES = 20;
+    static final int REFRESH_EVERY = 16;
+
+    /** A call times out after this many times the endpoint's p99, within the bounds below. */
+    static final int TIMEOUT_P99_MULTIPLE = 4;
+    static final Duration MIN_TIMEOUT = Duration.ofSeconds(2);
+
+    static final double HEDGE_RATE = 0.05;
+    static final int HEDGE_BURST = 10;
+
+    private static final int HEDGE_COST = (int) Math.round(1 / HEDGE_RATE);
+    private static final AtomicInteger HEDGE_CREDITS = new AtomicInteger();
+
+    private final long[] samples = new long[WINDOW];
+    private int recorded;
+    private volatile int consecutiveTimeouts;
+
+    private volatile long p95Millis = -1;
+    private volatile long p99Millis = -1;
+
+    static WaldurLatencyTracker forEndpoint(String endpoint) {
+        return TRACKERS.computeIfAbsent(endpoint, e -> new WaldurLatencyTracker());
+    }
+
+    /** Record the time a response took to arrive. */
+    void record(long elapsedNanos) {
+        add(elapsedNanos, false);
+    }
+
+    /** Record a call that timed out after {@code elapsedNanos} without a response. */
+    void recordTimeout(long elapsedNanos) {
+        add(elapsedNanos, true);
+    }
+
+    private void add(long elapsedNanos, boolean timedOut) {
+        long[] snapshot = null;
+        synchronized (this) {
+            consecutiveTimeouts = timedOut ? consecutiveTimeouts + 1 : 0;
+            samples[recorded % WINDOW] = elapsedNanos / 1_000_000;
+            recorded++;
+            if (recorded >= MIN_SAMPLES && recorded % REFRESH_EVERY == 0) {
+                snapshot = Arrays.copyOf(samples, Math.min(recorded, WINDOW));
+            }
+        }
+        if (snapshot != null) {
+            Arrays.sort(snapshot);
+            p95Millis = percentile(snapshot, 0.95);
+            p99Millis = percentile(snapshot, 0.99);
+        }
+    }
+
+    private static long percentile(long[] sorted, double quantile) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(quantile * sorted.length) - 1)];
+    }
+
+    /** The recent p95 in milliseconds, or -1 while there are too few responses to tell. */
+    long p95Millis() {
+        return p95Millis;
+    }
+
+    /**
+     * {@link #TIMEOUT_P99_MULTIPLE} times the recent p99, but at least {@link #MIN_TIMEOUT},
+     * doubled for every call in a row that timed out, and at most {@code ceiling}, which is also
+     * the timeout while there are too few responses.
+     */
+    Duration timeout(Duration ceiling) {
+        long p99 = p99Millis;
+        if (p99 < 0) {
+            return ceiling;
+        }
+        Duration adaptive = Duration.ofMillis(p99 * TIMEOUT_P99_MULTIPLE);
+        if (adaptive.compareTo(MIN_TIMEOUT) < 0) {
+            adaptive = MIN_TIMEOUT;
+        }
+        adaptive = adaptive.multipliedBy(1L << Math.min(consecutiveTimeouts, 16));
+        return adaptive.compareTo(ceiling) > 0 ? ceiling : adaptive;
+    }
+
+    /** Earn the hedge credit of a call. */
+    static void onCall() {
+        HEDGE_CREDITS.updateAndGet(credits -> Math.min(credits + 1, HEDGE_COST * HEDGE_BURST));
+    }
+
+    /** Spend the credits of one hedge, or return false when the budget is used up. */
+    static boolean tryHedge() {
+        int credits;
+        do {
+            credits = HEDGE_CREDITS.get();
+            if (credits < HEDGE_COST) {
+                return false;
+            }
+        } while (!HEDGE_CREDITS.compareAndSet(credits, credits - HEDGE_COST));
+        return true;
+    }
+
+    /** Forget every endpoint's response times and the hedge budget, e.g. between tests. */
+    static void reset() {
+        TRACKERS.clear();
+        HEDGE_CREDITS.set(0);
+    }
+}
@@ -0,0 +1,25 @@
+package org.waldur.keycloak.mapper;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.UserSessionModel;
+
+/**
+ * A mapper whose Waldur lookup can be started ahead of its own {@code setClaim} call, so that
+ * {@link WaldurRequestScope} can run the lookups of every Waldur mapper in a token request side
+ * by side.
+ */
+interface WaldurLookupMapper {
+
+    /**
+     * Start the Waldur lookup for the user without waiting for it. The future completes with null
+     * when Waldur could not be reached, and exceptionally with {@link WaldurUnavailableException}
+     * when the circuit breaker kept the call from being made. It may be called from another Waldur mapper's
+     * {@code setClaim}, so it must only read the user and never write Keycloak state. The session
+     * is the one of the token request and must not be used once the future runs on.
+     */
+    CompletableFuture<?> lookupAsync(KeycloakSession session, ProtocolMapperModel mappingModel,
+            UserSessionModel userSession);
+}
@@ -0,0 +1,23 @@
+package org.waldur.keycloak.mapper;
+
+/**
+ * The settings every Waldur mapper has, read once per mapper configuration by
+ * {@link WaldurConfigHelper#readShared}. {@code mapperId} names the mapper's caches and stored
+ * results; {@code fingerprint} tells results fetched under another configuration apart.
+ */
+record WaldurMapperConfig(
+        String mapperId,
+        String apiUrl,
+        String apiToken,
+        boolean tlsValidationEnabled,
+        String claimName,
+        WaldurCallPolicy callPolicy,
+        long latencyBudgetMillis,
+        long persistTtlMillis,
+        long clusterTtlMillis,
+        String fingerprint) {
+
+    WaldurHttpClient httpClient() {
+        return WaldurHttpClientRegistry.get(apiUrl, apiToken, tlsValidationEnabled);
+    }
+}
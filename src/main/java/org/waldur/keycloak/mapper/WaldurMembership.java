@@ -0,0 +1,121 @@
+package org.waldur.keycloak.mapper;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * Brings a user's group and role membership in line with their offering access, for the offering
+ * access mappers. Changes are made right away, or handed to the {@link WaldurReconciliationQueue}
+ * when one is given. While a change for the same user and group or role is still queued, the
+ * current membership says nothing about the outcome, so every decision is queued after it.
+ */
+final class WaldurMembership {
+
+    private static final Logger LOGGER = Logger.getLogger(WaldurMembership.class.getName());
+
+    static final String MODE_INLINE = "inline";
+    static final String MODE_BACKGROUND = "background";
+
+    private WaldurMembership() {
+    }
+
+    /** Add the user to the group unless they are a member already, or remove a direct member. */
+    static void reconcileGroup(WaldurReconciliationQueue queue, RealmModel realm, UserModel user, GroupModel group,
+            boolean member) {
+        if (queue != null && queue.isPending(change(realm, user, WaldurReconciliationQueue.Kind.GROUP,
+                group.getId()))) {
+            changeGroupMembership(queue, realm, user, group, member);
+        } else if (needsGroupChange(user, group, member)) {
+            changeGroupMembership(queue, realm, user, group, member);
+        } else if (member) {
+            LOGGER.info(String.format("The user %s is already in the group %s", user.getUsername(),
+                    group.getName()));
+        }
+    }
+
+    /** Grant the role unless the user has it already, or revoke a directly granted one. */
+    static void reconcileRole(WaldurReconciliationQueue queue, RealmModel realm, UserModel user, RoleModel role,
+            boolean granted) {
+        if (queue != null && queue.isPending(change(realm, user, WaldurReconciliationQueue.Kind.ROLE,
+                role.getId()))) {
+            changeRoleMapping(queue, realm, user, role, granted);
+        } else if (needsRoleChange(user, role, granted)) {
+            changeRoleMapping(queue, realm, user, role, granted);
+        } else if (granted) {
+            LOGGER.info(String.format("The user %s already has the role %s", user.getUsername(),
+                    role.getName()));
+        }
+    }
+
+    /**
+     * Whether joining ({@code member}) or leaving the group changes anything: a user who is in it
+     * already, also through a subgroup, is not added, and only a direct member can leave. Inline
+     * and background reconciliation both decide by this.
+     */
+    static boolean needsGroupChange(UserModel user, GroupModel group, boolean member) {
+        return member ? !isDirectMember(user, group) && !user.isMemberOf(group) : isDirectMember(user, group);
+    }
+
+    /**
+     * Whether granting or revoking the role changes anything: a user who has it already, also
+     * through a group or composite role, is not granted it, and only a direct grant is revoked.
+     */
+    static boolean needsRoleChange(UserModel user, RoleModel role, boolean granted) {
+        return granted ? !user.hasDirectRole(role) && !user.hasRole(role) : user.hasDirectRole(role);
+    }
+
+    /**
+     * Whether the user is a direct member of the group, asked for the groups named like it rather
+     * than for all of the user's groups. Only direct membership can be left; a user the mapper
+     * added is a direct member, so it is checked before the full {@link UserModel#isMemberOf}.
+     */
+    private static boolean isDirectMember(UserModel user, GroupModel group) {
+        return user.getGroupsStream(group.getName(), null, null).anyMatch(g -> group.getId().equals(g.getId()));
+    }
+
+    private static WaldurReconciliationQueue.Change change(RealmModel realm, UserModel user,
+            WaldurReconciliationQueue.Kind kind, String targetId) {
+        return new WaldurReconciliationQueue.Change(realm.getId(), user.getId(), kind, targetId);
+    }
+
+    /** Join or leave the group now, or queue the change when the queue is given. */
+    private static void changeGroupMembership(WaldurReconciliationQueue queue, RealmModel realm, UserModel user,
+            GroupModel group, boolean member) {
+        if (queue != null) {
+            LOGGER.info(String.format("Queueing %s user %s %s group %s", member ? "adding" : "removing",
+                    user.getUsername(), member ? "to" : "from", group.getName()));
+            queue.enqueue(change(realm, user, WaldurReconciliationQueue.Kind.GROUP, group.getId()), member);
+        } else {
+            if (member) {
+                LOGGER.info(String.format("Adding user %s to group %s", user.getUsername(), group.getName()));
+                WaldurTracing.write("joinGroup", group.getId(), () -> user.joinGroup(group));
+            } else {
+                LOGGER.info(String.format("Removing user %s from group %s", user.getUsername(), group.getName()));
+                WaldurTracing.write("leaveGroup", group.getId(), () -> user.leaveGroup(group));
+            }
+            WaldurMetrics.membershipWrite(WaldurReconciliationQueue.Kind.GROUP, member, MODE_INLINE);
+        }
+    }
+
+    /** Grant or revoke the role now, or queue the change when the queue is given. */
+    private static void changeRoleMapping(WaldurReconciliationQueue queue, RealmModel realm, UserModel user,
+            RoleModel role, boolean granted) {
+        if (queue != null) {
+            LOGGER.info(String.format("Queueing %s role %s for user %s", granted ? "granting" : "revoking",
+                    role.getName(), user.getUsername()));
+            queue.enqueue(change(realm, user, WaldurReconciliationQueue.Kind.ROLE, role.getId()), granted);
+        } else {
+            if (granted) {
+                LOGGER.info(String.format("Granting a role %s to a user %s", role.getName(), user.getUsername()));
+                WaldurTracing.write("grantRole", role.getId(), () -> user.grantRole(role));
+            } else {
+                LOGGER.info(String.format("Revoking role %s for user %s", role.getName(), user.getUsername()));
+                WaldurTracing.write("deleteRoleMapping", role.getId(), () -> user.deleteRoleMapping(role));
+            }
+            WaldurMetrics.membershipWrite(WaldurReconciliationQueue.Kind.ROLE, granted, MODE_INLINE);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package org.waldur.keycloak.mapper;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Micrometer meters of the Waldur mappers. They are registered in the global registry, which
+ * Keycloak exposes on its {@code /metrics} endpoint when started with {@code --metrics-enabled=true};
+ * otherwise recording them costs next to nothing.
+ *
+ * Endpoint tags use {@link WaldurHttpClient#endpointOf(String)}, so UUIDs and query strings never
+ * end up in tag values.
+ */
+final class WaldurMetrics {
+
+    private static final MeterRegistry REGISTRY = Metrics.globalRegistry;
+
+    static final String CLAIM_TIMER = "waldur.mapper.claim";
+    static final String REQUEST_TIMER = "waldur.mapper.requests";
+    static final String TIMEOUT_COUNTER = "waldur.mapper.timeouts";
+    static final String PARSE_FAILURE_COUNTER = "waldur.mapper.parse.failures";
+    static final String MEMBERSHIP_WRITE_COUNTER = "waldur.mapper.membership.writes";
+    static final String CACHE_LOOKUP_COUNTER = "waldur.mapper.cache.lookups";
+    static final String RESPONSE_BYTES_COUNTER = "waldur.mapper.response.bytes";
+    static final String HEDGE_COUNTER = "waldur.mapper.hedges";
+
+    private WaldurMetrics() {
+    }
+
+    /** Time computing a mapper's claim, i.e. everything its first {@code setClaim} call of a request does. */
+    static <T> T timeClaim(String mapperType, Supplier<T> claim) {
+        long start = System.nanoTime();
+        try {
+            return claim.get();
+        } finally {
+            Timer.builder(CLAIM_TIMER)
+                    .description("Time to compute a Waldur mapper's claim")
+                    .tag("mapper", mapperType)
+                    .publishPercentileHistogram()
+                    .register(REGISTRY)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /** Record a Waldur call; {@code status} is the HTTP status code, or "timeout" or "error" without a response. */
+    static void request(String endpoint, String status, long elapsedNanos) {
+        Timer.builder(REQUEST_TIMER)
+                .description("Waldur API calls")
+                .tag("endpoint", endpoint)
+                .tag("status", status)
+                .publishPercentileHistogram()
+                .register(REGISTRY)
+                .record(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Count a timeout; {@code kind} is "request" for a Waldur call, "budget" for a token latency budget. */
+    static void timeout(String kind) {
+        Counter.builder(TIMEOUT_COUNTER)
+                .description("Waldur calls and token latency budgets that ran out of time")
+                .tag("kind", kind)
+                .register(REGISTRY)
+                .increment();
+    }
+
+    /** Count a duplicate request sent because the first one was slower than the endpoint's p95. */
+    static void hedge(String endpoint) {
+        Counter.builder(HEDGE_COUNTER)
+                .description("Hedged Waldur calls")
+                .tag("endpoint", endpoint)
+                .register(REGISTRY)
+                .increment();
+    }
+
+    static void parseFailure(String endpoint) {
+        Counter.builder(PARSE_FAILURE_COUNTER)
+                .description("Waldur responses that could not be parsed")
+                .tag("endpoint", endpoint)
+                .register(REGISTRY)
+                .increment();
+    }
+
+    /** Count the bytes of a response body as received ("wire") and after decompression ("decoded"). */
+    static void responseBytes(String endpoint, long wireBytes, long decodedBytes) {
+        Counter.builder(RESPONSE_BYTES_COUNTER)
+                .description("Bytes of Waldur response bodies")
+                .baseUnit("bytes")
+                .tag("endpoint", endpoint)
+                .tag("form", "wire")
+                .register(REGISTRY)
+                .increment(wireBytes);
+        Counter.builder(RESPONSE_BYTES_COUNTER)
+                .description("Bytes of Waldur response bodies")
+                .baseUnit("bytes")
+                .tag("endpoint", endpoint)
+                .tag("form", "decoded")
+                .register(REGISTRY)
+                .increment(decodedBytes);
+    }
+
+    /**
+     * Count a group or role membership change written to Keycloak; {@code mode} is "inline" or
+     * "background" for changes applied by the reconciliation queue.
+     */
+    static void membershipWrite(WaldurReconciliationQueue.Kind kind, boolean member, String mode) {
+        Counter.builder(MEMBERSHIP_WRITE_COUNTER)
+                .description("Group and role membership changes made by the offering access mapper")
+                .tag("kind", kind.name().toLowerCase())
+                .tag("change", member ? "add" : "remove")
+                .tag("mode", mode)
+                .register(REGISTRY)
+                .increment();
+    }
+
+    /** Count a cache lookup; {@code result} is "hit", "miss" or, for caches that serve stale entries, "stale". */
+    static void cacheLookup(String cache, String result) {
+        Counter.builder(CACHE_LOOKUP_COUNTER)
+                .description("Lookups in the Waldur mappers' caches")
+                .tag("cache", cache)
+                .tag("result", result)
+                .register(REGISTRY)
+                .increment();
+    }
+
+    static void cacheLookup(String cache, boolean hit) {
+        cacheLookup(cache, hit ? "hit" : "miss");
+    }
+}
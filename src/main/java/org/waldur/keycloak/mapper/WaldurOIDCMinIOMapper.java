@@ -1,34 +1,43 @@
 package org.waldur.keycloak.mapper;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import org.keycloak.models.ClientSessionContext;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ProtocolMapperContainerModel;
 import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.models.UserSessionModel;
+import org.keycloak.protocol.ProtocolMapperConfigException;
 import org.keycloak.protocol.oidc.OIDCLoginProtocol;
 import org.keycloak.protocol.oidc.mappers.*;
 import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.representations.AccessToken;
 import org.keycloak.representations.IDToken;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
 import java.util.stream.Collectors;
 
 import org.jboss.logging.Logger;
 
 public class WaldurOIDCMinIOMapper extends AbstractOIDCProtocolMapper
-        implements OIDCAccessTokenMapper, OIDCIDTokenMapper, UserInfoTokenMapper {
+        implements OIDCAccessTokenMapper, OIDCIDTokenMapper, UserInfoTokenMapper, WaldurLookupMapper {
 
     public static final String PROVIDER_ID = "oidc-waldurminiomapper";
 
@@ -40,11 +49,92 @@ public class WaldurOIDCMinIOMapper extends AbstractOIDCProtocolMapper
 
     private static final ObjectMapper jacksonMapper;
 
-    private static final String API_URL_KEY = "url.waldur.api.value";
-    private static final String API_TOKEN_KEY = "token.waldur.value";
+    private static final String API_URL_KEY = WaldurConfigHelper.API_URL_KEY;
+    private static final String API_TOKEN_KEY = WaldurConfigHelper.API_TOKEN_KEY;
     private static final String PERMISSION_SCOPE_TYPE = "scope-type.waldur.validate";
-    private static final String API_TLS_VALIDATE_KEY = "tls.waldur.validate";
+    private static final String API_TLS_VALIDATE_KEY = WaldurConfigHelper.API_TLS_VALIDATE_KEY;
     private static final String USERNAME_SOURCE_KEY = "keycloak.username.source.value";
+    private static final String CACHE_SOFT_TTL_KEY = "cache.waldur.soft-ttl";
+    private static final String CACHE_HARD_TTL_KEY = "cache.waldur.hard-ttl";
+    private static final String CACHE_SIZE_KEY = "cache.waldur.size";
+    private static final String CLAIM_ENCODING_KEY = "claim.waldur.encoding";
+    private static final String CUSTOMER_CLAIM_KEY = "claim.waldur.customer";
+    private static final String PROJECT_CLAIM_KEY = "claim.waldur.project";
+
+    static final String SCOPE_CUSTOMER = "customer";
+    static final String SCOPE_PROJECT = "project";
+    /** Customer and project scopes from one request, each in a claim of its own. */
+    static final String SCOPE_BOTH = "both";
+
+    private static final int DEFAULT_CACHE_SOFT_TTL_SECONDS = 60;
+    private static final int DEFAULT_CACHE_HARD_TTL_SECONDS = 3600;
+    private static final int DEFAULT_CACHE_SIZE = 10000;
+
+    private record ScopesKey(String waldurUrl, String username, String scopeType) {
+    }
+
+    /** One permission of the user: its scope type and the UUID of the scope. */
+    record Scope(String type, String uuid) {
+    }
+
+    /**
+     * Splits permissions by scope type as they are parsed: the customer UUIDs and the project
+     * UUIDs, each joined with commas, separated by a semicolon. Other scope types are dropped.
+     */
+    static final Collector<Scope, ?, String> CUSTOMERS_AND_PROJECTS = Collectors.teeing(
+            Collectors.filtering((Scope scope) -> SCOPE_CUSTOMER.equals(scope.type()),
+                    Collectors.mapping(Scope::uuid, Collectors.joining(","))),
+            Collectors.filtering((Scope scope) -> SCOPE_PROJECT.equals(scope.type()),
+                    Collectors.mapping(Scope::uuid, Collectors.joining(","))),
+            (customers, projects) -> customers + ";" + projects);
+
+    /** The permissions' scope UUIDs joined with commas; a constant, so concurrent fetches share one call. */
+    private static final Collector<CharSequence, ?, String> JOINED = Collectors.joining(",");
+
+    /** Page parsers, kept in constants so concurrent fetches share one call and pages are revalidated. */
+    private static final Function<InputStream, List<Scope>> SCOPES_PAGE = WaldurOIDCMinIOMapper::parseScopes;
+    private static final Function<InputStream, List<String>> SCOPE_UUIDS_PAGE =
+            WaldurOIDCMinIOMapper::parseScopeUuids;
+
+    /**
+     * The mapper's settings, compiled once per configuration. The customer and project claim
+     * names are only used with the {@value #SCOPE_BOTH} scope.
+     */
+    record Config(WaldurMapperConfig waldur, String scopeType, boolean usernameFromId,
+            WaldurUrlTemplate permissionsUrl, int cacheSoftTtlSeconds, int cacheHardTtlSeconds, int cacheSize,
+            ScopeClaimEncoding claimEncoding, String customerClaimName, String projectClaimName) {
+
+        static Config compile(String mapperId, WaldurConfigReader reader) {
+            WaldurMapperConfig waldur = WaldurConfigHelper.readShared(mapperId, reader, false);
+            String scopeType = reader.choice(PERMISSION_SCOPE_TYPE, "Waldur permission scope",
+                    List.of(SCOPE_CUSTOMER, SCOPE_PROJECT, SCOPE_BOTH), SCOPE_PROJECT);
+            String customerClaimName = reader.string(CUSTOMER_CLAIM_KEY);
+            String projectClaimName = reader.string(PROJECT_CLAIM_KEY);
+            int cacheSoftTtlSeconds = reader.integer(CACHE_SOFT_TTL_KEY, "Scope cache soft TTL",
+                    DEFAULT_CACHE_SOFT_TTL_SECONDS, 0);
+            return new Config(waldur, scopeType,
+                    "id".equals(reader.choice(USERNAME_SOURCE_KEY, "Username source", List.of("id", "username"), "id")),
+                    WaldurOIDCMinIOMapper.permissionsUrl(waldur.apiUrl(), scopeType),
+                    cacheSoftTtlSeconds,
+                    Math.max(cacheSoftTtlSeconds, reader.integer(CACHE_HARD_TTL_KEY, "Scope cache hard TTL",
+                            DEFAULT_CACHE_HARD_TTL_SECONDS, 0)),
+                    reader.integer(CACHE_SIZE_KEY, "Scope cache size", DEFAULT_CACHE_SIZE, 1),
+                    ScopeClaimEncoding.fromConfig(reader.choice(CLAIM_ENCODING_KEY, "Claim encoding",
+                            ScopeClaimEncoding.configValues(), ScopeClaimEncoding.STRING.getConfigValue())),
+                    customerClaimName.isBlank() ? waldur.claimName() + "_" + SCOPE_CUSTOMER : customerClaimName,
+                    projectClaimName.isBlank() ? waldur.claimName() + "_" + SCOPE_PROJECT : projectClaimName);
+        }
+
+        boolean bothScopes() {
+            return SCOPE_BOTH.equals(scopeType);
+        }
+    }
+
+    private static final WaldurConfigCache<Config> CONFIGS = new WaldurConfigCache<>(Config::compile);
+
+    /** Joined scope UUIDs, one cache per mapper so that each mapper's TTL and size settings apply. */
+    private static final Map<String, StaleWhileRevalidateCache<ScopesKey, String>> SCOPE_CACHES =
+            new ConcurrentHashMap<>();
 
     static {
         ProviderConfigProperty urlProperty = new ProviderConfigProperty(API_URL_KEY,
@@ -59,7 +149,7 @@ public class WaldurOIDCMinIOMapper extends AbstractOIDCProtocolMapper
 
         ProviderConfigProperty waldurScopeTypeProperty = new ProviderConfigProperty(
                 PERMISSION_SCOPE_TYPE, "Waldur permission scope",
-                "Scope type for user permissions; can be either customer or project. Default is project.",
+                "Scope type for user permissions; can be customer, project or both. Default is project. With both, customer and project UUIDs are fetched in one request and put in claims of their own.",
                 ProviderConfigProperty.STRING_TYPE, "project");
         configProperties.add(waldurScopeTypeProperty);
 
@@ -79,94 +169,306 @@ public class WaldurOIDCMinIOMapper extends AbstractOIDCProtocolMapper
         usernameSourcesProperty.setOptions(usernameSources);
         configProperties.add(usernameSourcesProperty);
 
+        ProviderConfigProperty cacheSoftTtlProperty = new ProviderConfigProperty(
+                CACHE_SOFT_TTL_KEY, "Scope cache soft TTL (seconds)",
+                "Cached scope UUIDs younger than this are used without contacting Waldur. Older ones are still used while they are refreshed in the background. 0 disables the cache.",
+                ProviderConfigProperty.INTEGER_TYPE, DEFAULT_CACHE_SOFT_TTL_SECONDS);
+        configProperties.add(cacheSoftTtlProperty);
+
+        ProviderConfigProperty cacheHardTtlProperty = new ProviderConfigProperty(
+                CACHE_HARD_TTL_KEY, "Scope cache hard TTL (seconds)",
+                "Cached scope UUIDs older than this are discarded and token issuance waits for Waldur.",
+                ProviderConfigProperty.INTEGER_TYPE, DEFAULT_CACHE_HARD_TTL_SECONDS);
+        configProperties.add(cacheHardTtlProperty);
+
+        ProviderConfigProperty cacheSizeProperty = new ProviderConfigProperty(
+                CACHE_SIZE_KEY, "Scope cache size",
+                "Maximum number of cached users; the least recently used entries are evicted first.",
+                ProviderConfigProperty.INTEGER_TYPE, DEFAULT_CACHE_SIZE);
+        configProperties.add(cacheSizeProperty);
+
+        ProviderConfigProperty claimEncodingProperty = new ProviderConfigProperty(
+                CLAIM_ENCODING_KEY, "Claim encoding",
+                "string: comma-separated UUIDs, as MinIO expects. json: an array of UUIDs. base64url: the UUIDs as 16 bytes each, base64url-encoded, about 40% smaller than string. base64url-deflate: the same, deflated first. The binary forms need a consumer that decodes them.",
+                ProviderConfigProperty.LIST_TYPE, ScopeClaimEncoding.STRING.getConfigValue());
+        claimEncodingProperty.setOptions(ScopeClaimEncoding.configValues());
+        configProperties.add(claimEncodingProperty);
+
+        ProviderConfigProperty customerClaimProperty = new ProviderConfigProperty(
+                CUSTOMER_CLAIM_KEY, "Customer claim name",
+                "With the both scope: the claim for customer UUIDs. Defaults to the token claim name followed by _customer.",
+                ProviderConfigProperty.STRING_TYPE, "");
+        configProperties.add(customerClaimProperty);
+
+        ProviderConfigProperty projectClaimProperty = new ProviderConfigProperty(
+                PROJECT_CLAIM_KEY, "Project claim name",
+                "With the both scope: the claim for project UUIDs. Defaults to the token claim name followed by _project.",
+                ProviderConfigProperty.STRING_TYPE, "");
+        configProperties.add(projectClaimProperty);
+
+        WaldurConfigHelper.addResilienceConfig(configProperties);
+        WaldurConfigHelper.addPersistenceConfig(configProperties);
+
         OIDCAttributeMapperHelper.addTokenClaimNameConfig(configProperties);
         OIDCAttributeMapperHelper.addIncludeInTokensConfig(configProperties,
                 WaldurOIDCMinIOMapper.class);
 
+        // Cached scopes may have been fetched with a different URL, scope type or TTL.
+        WaldurClusterCache.onInvalidation(SCOPE_CACHES::remove);
+
         jacksonMapper = new ObjectMapper();
     }
 
-    static String buildPermissionsUrl(String waldurApiUrl, String waldurUserUsername, String scopeType) {
-        return waldurApiUrl
+    static WaldurUrlTemplate permissionsUrl(String waldurApiUrl, String scopeType) {
+        if (SCOPE_BOTH.equals(scopeType)) {
+            // No scope filter; the scope type of each permission tells customers and projects apart.
+            return new WaldurUrlTemplate(waldurApiUrl
+                    + "user-permissions/?field=scope_type&field=scope_uuid"
+                    + "&username=", "");
+        }
+        return new WaldurUrlTemplate(waldurApiUrl
                 + "user-permissions/?field=scope_uuid"
-                + "&username=" + URLEncoder.encode(waldurUserUsername, StandardCharsets.UTF_8)
-                + "&scope_type=" + URLEncoder.encode(scopeType, StandardCharsets.UTF_8);
+                + "&username=",
+                "&scope_type=" + URLEncoder.encode(scopeType, StandardCharsets.UTF_8));
     }
 
-    private List<UserPermissionDTO> fetchUserPermissions(String waldurApiUrl, String waldurToken,
-            String waldurUserUsername, String scopeType, boolean tlsValidationEnabled) {
-
-        final String waldurEndpoint = buildPermissionsUrl(waldurApiUrl, waldurUserUsername, scopeType);
-        final String responseString = new WaldurHttpClient(waldurToken, tlsValidationEnabled).get(waldurEndpoint);
-
-        List<UserPermissionDTO> userPermissions = Collections.emptyList();
+    static String buildPermissionsUrl(String waldurApiUrl, String waldurUserUsername, String scopeType) {
+        return permissionsUrl(waldurApiUrl, scopeType).forUser(waldurUserUsername);
+    }
 
-        if (responseString.isEmpty())
-            return userPermissions;
+    /**
+     * Starts fetching the user's scope UUIDs from every page of their permissions, joined with
+     * commas; completes with null when Waldur could not be reached or parsed. Pages are parsed as
+     * they stream in, so only the claim value itself grows with the number of permissions. With
+     * both scopes, the result is split as {@link #CUSTOMERS_AND_PROJECTS} does.
+     */
+    private CompletableFuture<String> fetchScopes(Config config, String waldurUserUsername) {
+        final String waldurEndpoint = config.permissionsUrl().forUser(waldurUserUsername);
+        if (config.bothScopes()) {
+            return config.waldur().httpClient()
+                    .getAllPagesAsync(waldurEndpoint, WaldurHttpClient.LIST_PAGE_SIZE,
+                            SCOPES_PAGE, CUSTOMERS_AND_PROJECTS, config.waldur().callPolicy());
+        }
+        return config.waldur().httpClient()
+                .getAllPagesAsync(waldurEndpoint, WaldurHttpClient.LIST_PAGE_SIZE,
+                        SCOPE_UUIDS_PAGE, JOINED, config.waldur().callPolicy());
+    }
 
-        try {
-            userPermissions = jacksonMapper.readValue(responseString,
-                    new TypeReference<List<UserPermissionDTO>>() {});
-        } catch (JsonMappingException e) {
-            LOGGER.error("Unable to extract data from the entity");
+    /** Pulls the scope_uuid of each permission on a page out of the response, skipping every other field. */
+    static List<String> parseScopeUuids(InputStream responseStream) {
+        List<String> scopes = new ArrayList<>();
+        try (JsonParser parser = jacksonMapper.getFactory().createParser(responseStream)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                LOGGER.error("Unable to extract data from the entity: expected a list of permissions");
+                return null;
+            }
+            JsonToken element;
+            while ((element = parser.nextToken()) == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.currentName();
+                    JsonToken value = parser.nextToken();
+                    if ("scope_uuid".equals(field) && value == JsonToken.VALUE_STRING) {
+                        scopes.add(parser.getText());
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+            if (element != JsonToken.END_ARRAY) {
+                // Anything but permission objects up to the end of the list; a partial list would drop scopes.
+                LOGGER.error("Unable to extract data from the entity: expected a list of permission objects");
+                return null;
+            }
+        } catch (IOException e) {
+            LOGGER.error("Unable to process data from the entity");
             LOGGER.error(e.getMessage());
-        } catch (JsonProcessingException e) {
+            return null;
+        }
+        return scopes;
+    }
+
+    /** Pulls the scope_type and scope_uuid of each permission on a page out of the response, skipping every other field. */
+    static List<Scope> parseScopes(InputStream responseStream) {
+        List<Scope> scopes = new ArrayList<>();
+        try (JsonParser parser = jacksonMapper.getFactory().createParser(responseStream)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                LOGGER.error("Unable to extract data from the entity: expected a list of permissions");
+                return null;
+            }
+            JsonToken element;
+            while ((element = parser.nextToken()) == JsonToken.START_OBJECT) {
+                String type = null;
+                String uuid = null;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.currentName();
+                    JsonToken value = parser.nextToken();
+                    if ("scope_type".equals(field) && value == JsonToken.VALUE_STRING) {
+                        type = parser.getText();
+                    } else if ("scope_uuid".equals(field) && value == JsonToken.VALUE_STRING) {
+                        uuid = parser.getText();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                if (type != null && uuid != null) {
+                    scopes.add(new Scope(type, uuid));
+                }
+            }
+            if (element != JsonToken.END_ARRAY) {
+                // Anything but permission objects up to the end of the list; a partial list would drop scopes.
+                LOGGER.error("Unable to extract data from the entity: expected a list of permission objects");
+                return null;
+            }
+        } catch (IOException e) {
             LOGGER.error("Unable to process data from the entity");
             LOGGER.error(e.getMessage());
+            return null;
         }
-        return userPermissions;
+        return scopes;
     }
 
-    private void transformToken(IDToken token, Map<String, String> config,
+    /** Starts resolving the joined scope UUIDs for the user, from the stored result or the cache when possible. */
+    @Override
+    public CompletableFuture<String> lookupAsync(KeycloakSession session, ProtocolMapperModel mappingModel,
             UserSessionModel userSession) {
-        final String waldurUrl = config.get(API_URL_KEY);
-        final String waldurToken = config.get(API_TOKEN_KEY);
-        String scopeType = config.get(PERMISSION_SCOPE_TYPE);
-        final String usernameSource = config.get(USERNAME_SOURCE_KEY);
-        final boolean tlsValidationEnabled = Boolean.parseBoolean(config.get(API_TLS_VALIDATE_KEY));
-        final String claimName = config.get(OIDCAttributeMapperHelper.TOKEN_CLAIM_NAME);
-
-        if (!Arrays.asList("customer", "project").contains(scopeType)) {
-            LOGGER.warn(
-                    String.format("Unsupported scope type %s, defaulting to project", scopeType));
-            scopeType = "project";
+        final Config config = CONFIGS.get(mappingModel);
+        final WaldurMapperConfig waldur = config.waldur();
+        if (waldur.persistTtlMillis() > 0) {
+            String stored = WaldurUserAttributeCache.read(session, userSession.getUser(), waldur, waldur.persistTtlMillis());
+            WaldurMetrics.cacheLookup("stored", stored != null);
+            if (stored != null) {
+                return CompletableFuture.completedFuture(stored);
+            }
         }
 
-        UserModel user = userSession.getUser();
-        String waldurUserUsername = "";
+        final ScopesKey key = scopesKey(config, userSession.getUser());
 
-        if (usernameSource.equals("id"))
-            waldurUserUsername = user.getId();
-        if (usernameSource.equals("username"))
-            waldurUserUsername = user.getUsername();
+        LOGGER.info(
+                String.format("Processing user %s, scope type: %s", key.username(), key.scopeType()));
 
+        final Supplier<CompletableFuture<String>> fetch = WaldurClusterCache.sharing(session, waldur,
+                userSession.getUser(), () -> WaldurUserAttributeCache.fetching(session, waldur, userSession.getUser(),
+                        fetchScopes(config, key.username())));
+        if (config.cacheSoftTtlSeconds() <= 0) {
+            return fetch.get();
+        }
+        StaleWhileRevalidateCache<ScopesKey, String> cache = SCOPE_CACHES.computeIfAbsent(
+                waldur.mapperId(), id -> new StaleWhileRevalidateCache<>("scopes", config.cacheSize()));
+        LOGGER.debugf("Scope cache stats: %s", cache);
+        return cache.get(key, config.cacheSoftTtlSeconds() * 1000L, config.cacheHardTtlSeconds() * 1000L, fetch);
+    }
 
-        LOGGER.info(
-                String.format("Processing user %s, scope type: %s", waldurUserUsername, scopeType));
+    private static ScopesKey scopesKey(Config config, UserModel user) {
+        return new ScopesKey(config.waldur().apiUrl(), config.usernameFromId() ? user.getId() : user.getUsername(),
+                config.scopeType());
+    }
 
-        List<UserPermissionDTO> userPermissions = fetchUserPermissions(waldurUrl, waldurToken,
-                waldurUserUsername, scopeType, tlsValidationEnabled);
+    /**
+     * The last scopes cached for the user whatever their age, or else stored for them within the
+     * fallback age, or null when there are none.
+     */
+    private static String lastKnownScopes(KeycloakSession session, Config config, UserSessionModel userSession) {
+        StaleWhileRevalidateCache<ScopesKey, String> cache = SCOPE_CACHES.get(config.waldur().mapperId());
+        String scopes = cache == null ? null : cache.peek(scopesKey(config, userSession.getUser()));
+        if (scopes == null && config.waldur().persistTtlMillis() > 0) {
+            scopes = WaldurUserAttributeCache.readFallback(session, userSession.getUser(), config.waldur());
+        }
+        if (scopes != null) {
+            LOGGER.info("Waldur unavailable, using the last cached scopes");
+        }
+        return scopes;
+    }
 
-        if (userPermissions.isEmpty()) {
-            LOGGER.error(String.format("Unable to retrieve user permissions for %s.", waldurUserUsername));
-            return;
+    /**
+     * Returns the claims to add by name, with the user's scope UUIDs in the configured claim
+     * encoding, or null when there is nothing to put in the claim.
+     */
+    private Map<String, Object> transformToken(ProtocolMapperModel mappingModel, UserSessionModel userSession,
+            KeycloakSession keycloakSession, ClientSessionContext clientSessionCtx) {
+        final Config config = CONFIGS.get(mappingModel);
+        String scopes = WaldurRequestScope.await(clientSessionCtx,
+                WaldurRequestScope.<String>lookup(keycloakSession, clientSessionCtx, userSession, mappingModel, this),
+                config.waldur().latencyBudgetMillis(),
+                () -> lastKnownScopes(keycloakSession, config, userSession));
+
+        if (scopes == null || scopes.isEmpty()) {
+            LOGGER.error(String.format("Unable to retrieve user permissions for %s.", userSession.getUser().getUsername()));
+            return null;
         }
 
-        List<String> scopeUUIDs = userPermissions.stream().map(permission -> permission.getScopeUUID())
-                .map(uuid -> uuid.toString()).collect(Collectors.toList());
+        WaldurUserAttributeCache.writeFetched(keycloakSession, userSession.getUser(), config.waldur());
 
-        String scopes = String.join(",", scopeUUIDs);
+        if (!config.bothScopes()) {
+            return Map.of(config.waldur().claimName(), config.claimEncoding().encode(scopes));
+        }
+        Map<String, Object> claims = new HashMap<>();
+        int separator = scopes.indexOf(';');
+        String customers = separator < 0 ? scopes : scopes.substring(0, separator);
+        String projects = separator < 0 ? "" : scopes.substring(separator + 1);
+        if (!customers.isEmpty()) {
+            claims.put(config.customerClaimName(), config.claimEncoding().encode(customers));
+        }
+        if (!projects.isEmpty()) {
+            claims.put(config.projectClaimName(), config.claimEncoding().encode(projects));
+        }
+        return claims.isEmpty() ? null : claims;
+    }
 
-        token.getOtherClaims().put(claimName, scopes);
+    @Override
+    public AccessToken transformAccessToken(AccessToken token, ProtocolMapperModel mappingModel,
+            KeycloakSession session, UserSessionModel userSession, ClientSessionContext clientSessionCtx) {
+        WaldurRequestScope.building(clientSessionCtx, WaldurRequestScope.Token.ACCESS);
+        return super.transformAccessToken(token, mappingModel, session, userSession, clientSessionCtx);
+    }
+
+    @Override
+    public IDToken transformIDToken(IDToken token, ProtocolMapperModel mappingModel, KeycloakSession session,
+            UserSessionModel userSession, ClientSessionContext clientSessionCtx) {
+        WaldurRequestScope.building(clientSessionCtx, WaldurRequestScope.Token.ID);
+        return super.transformIDToken(token, mappingModel, session, userSession, clientSessionCtx);
+    }
+
+    @Override
+    public AccessToken transformUserInfoToken(AccessToken token, ProtocolMapperModel mappingModel,
+            KeycloakSession session, UserSessionModel userSession, ClientSessionContext clientSessionCtx) {
+        WaldurRequestScope.building(clientSessionCtx, WaldurRequestScope.Token.USERINFO);
+        return super.transformUserInfoToken(token, mappingModel, session, userSession, clientSessionCtx);
     }
 
     @Override
     protected void setClaim(IDToken token, ProtocolMapperModel mappingModel,
             UserSessionModel userSession, KeycloakSession keycloakSession,
             ClientSessionContext clientSessionCtx) {
-        Map<String, String> config = mappingModel.getConfig();
+        Map<String, Object> claims = WaldurRequestScope.memoize(clientSessionCtx, mappingModel,
+                () -> WaldurTracing.claim(keycloakSession, WaldurOIDCMinIOMapper.class, mappingModel,
+                        () -> WaldurMetrics.timeClaim(PROVIDER_ID,
+                                () -> this.transformToken(mappingModel, userSession, keycloakSession, clientSessionCtx))));
+        if (claims == null) {
+            return;
+        }
+
+        token.getOtherClaims().putAll(claims);
+    }
 
-        this.transformToken(token, config, userSession);
+    @Override
+    public void validateConfig(KeycloakSession session, RealmModel realm, ProtocolMapperContainerModel client,
+            ProtocolMapperModel mapperModel) throws ProtocolMapperConfigException {
+        CONFIGS.validate(mapperModel);
+        WaldurClusterCache.invalidate(session, WaldurConfigCache.mapperId(mapperModel));
+
+        ProtocolMapperModel previous = mapperModel.getId() == null ? null
+                : client.getProtocolMapperById(mapperModel.getId());
+        if (previous == null) {
+            return;
+        }
+        Map<String, String> oldConfig = previous.getConfig();
+        Map<String, String> newConfig = mapperModel.getConfig();
+        if (!Objects.equals(oldConfig.get(API_URL_KEY), newConfig.get(API_URL_KEY))
+                || !Objects.equals(oldConfig.get(API_TOKEN_KEY), newConfig.get(API_TOKEN_KEY))
+                || !Objects.equals(oldConfig.get(API_TLS_VALIDATE_KEY), newConfig.get(API_TLS_VALIDATE_KEY))) {
+            WaldurHttpClientRegistry.evict(oldConfig.get(API_URL_KEY), oldConfig.get(API_TOKEN_KEY),
+                    Boolean.parseBoolean(oldConfig.get(API_TLS_VALIDATE_KEY)));
+        }
     }
 
     public static ProtocolMapperModel create(String name, String url, String apiToken,
@@ -0,0 +1,595 @@
+package org.waldur.keycloak.mapper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.ClientSessionContext;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ProtocolMapperContainerModel;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.protocol.ProtocolMapperConfigException;
+import org.keycloak.protocol.oidc.OIDCLoginProtocol;
+import org.keycloak.protocol.oidc.mappers.AbstractOIDCProtocolMapper;
+import org.keycloak.protocol.oidc.mappers.OIDCAccessTokenMapper;
+import org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper;
+import org.keycloak.protocol.oidc.mappers.OIDCIDTokenMapper;
+import org.keycloak.protocol.oidc.mappers.UserInfoTokenMapper;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.IDToken;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.opentelemetry.context.Context;
+
+/**
+ * The offering access mapper for many offerings at once: a table maps each offering to a group,
+ * a role or both. The access checks of all offerings run side by side, a few at a time, and every
+ * group and role is reconciled in one pass. The claim lists the groups the user was granted.
+ *
+ * A group or role shared by several offerings is granted when the user has access to any of
+ * them, and only taken away when the user has access to none of them.
+ */
+public class WaldurOIDCMultiOfferingAccessMapper extends AbstractOIDCProtocolMapper
+        implements OIDCAccessTokenMapper, OIDCIDTokenMapper, UserInfoTokenMapper, WaldurLookupMapper {
+
+    public static final String PROVIDER_ID = "oidc-waldur-multi-offering-access-mapper";
+
+    private static final List<ProviderConfigProperty> configProperties = new ArrayList<>();
+
+    private static final Logger LOGGER = Logger.getLogger(WaldurOIDCMultiOfferingAccessMapper.class.getName());
+
+    private static final ObjectMapper jacksonMapper = new ObjectMapper();
+
+    private static final String API_URL_KEY = WaldurConfigHelper.API_URL_KEY;
+    private static final String API_TOKEN_KEY = WaldurConfigHelper.API_TOKEN_KEY;
+    private static final String OFFERINGS_KEY = "offerings.waldur.value";
+    private static final String USERNAME_SOURCE_KEY = "keycloak.username.source.value";
+    private static final String PARALLELISM_KEY = "parallelism.waldur.value";
+    private static final String CACHE_TTL_KEY = "cache.waldur.ttl";
+    private static final String CACHE_SIZE_KEY = "cache.waldur.size";
+    private static final String RECONCILE_MODE_KEY = "reconcile.waldur.mode";
+
+    private static final int DEFAULT_PARALLELISM = 4;
+    private static final int DEFAULT_CACHE_TTL_SECONDS = 60;
+    private static final int DEFAULT_CACHE_SIZE = 10000;
+
+    private record AccessKey(String waldurUrl, String offeringUuid, String username) {
+    }
+
+    /** One row of the offering table; the group or the role name may be empty. */
+    record Offering(String uuid, WaldurUrlTemplate accessUrl, String groupName, String roleName) {
+    }
+
+    /** The mapper's settings, compiled once per configuration. TLS validation is always on. */
+    record Config(WaldurMapperConfig waldur, List<Offering> offerings, boolean usernameFromId, int parallelism,
+            int cacheTtlSeconds, int cacheSize, boolean backgroundReconcile) {
+
+        static Config compile(String mapperId, WaldurConfigReader reader) {
+            WaldurMapperConfig waldur = WaldurConfigHelper.readShared(mapperId, reader, true);
+            return new Config(waldur, parseOfferings(reader, waldur.apiUrl()),
+                    "id".equals(reader.choice(USERNAME_SOURCE_KEY, "Username source", List.of("id", "username"), "id")),
+                    reader.integer(PARALLELISM_KEY, "Concurrent Waldur calls", DEFAULT_PARALLELISM, 1),
+                    reader.integer(CACHE_TTL_KEY, "Access cache TTL", DEFAULT_CACHE_TTL_SECONDS, 0),
+                    reader.integer(CACHE_SIZE_KEY, "Access cache size", DEFAULT_CACHE_SIZE, 1),
+                    WaldurMembership.MODE_BACKGROUND.equals(reader.choice(RECONCILE_MODE_KEY, "Membership update mode",
+                            List.of(WaldurMembership.MODE_INLINE, WaldurMembership.MODE_BACKGROUND),
+                            WaldurMembership.MODE_INLINE)));
+        }
+    }
+
+    private static final WaldurConfigCache<Config> CONFIGS = new WaldurConfigCache<>(Config::compile);
+
+    /** Access decisions, one cache per mapper so that each mapper's TTL and size settings apply. */
+    private static final Map<String, WaldurCache<AccessKey, Boolean>> ACCESS_CACHES = new ConcurrentHashMap<>();
+
+    /** Background membership changes; Keycloak keeps one mapper instance per session factory. */
+    private final WaldurReconciliationQueue.Holder reconciliation = new WaldurReconciliationQueue.Holder();
+
+    static {
+        ProviderConfigProperty property;
+
+        property = new ProviderConfigProperty(
+                API_URL_KEY,
+                "Waldur API URL",
+                "URL to the Waldur API including trailing backslash, e.g. https://waldur.example.com/api/",
+                ProviderConfigProperty.STRING_TYPE,
+                "");
+        configProperties.add(property);
+
+        property = new ProviderConfigProperty(
+                API_TOKEN_KEY,
+                "Waldur API token",
+                "Token for Waldur API",
+                ProviderConfigProperty.STRING_TYPE,
+                "");
+        configProperties.add(property);
+
+        property = new ProviderConfigProperty(
+                OFFERINGS_KEY,
+                "Offerings",
+                "Waldur offering UUID as the key; as the value, the precreated Keycloak group and realm role for users with access to it, written as group,role. Either may be left out, e.g. hpc-users or ,hpc-role.",
+                ProviderConfigProperty.MAP_TYPE,
+                "");
+        configProperties.add(property);
+
+        List<String> usernameSources = List.of("id", "username");
+        property = new ProviderConfigProperty(
+                USERNAME_SOURCE_KEY,
+                "Username source",
+                "Source of the keycloak username",
+                ProviderConfigProperty.LIST_TYPE,
+                "id");
+        property.setOptions(usernameSources);
+        configProperties.add(property);
+
+        property = new ProviderConfigProperty(
+                PARALLELISM_KEY,
+                "Concurrent Waldur calls",
+                "How many offerings are checked with Waldur at the same time for one token.",
+                ProviderConfigProperty.INTEGER_TYPE,
+                DEFAULT_PARALLELISM);
+        configProperties.add(property);
+
+        property = new ProviderConfigProperty(
+                CACHE_TTL_KEY,
+                "Access cache TTL (seconds)",
+                "How long an offering access decision from Waldur is reused before asking again. 0 disables the cache.",
+                ProviderConfigProperty.INTEGER_TYPE,
+                DEFAULT_CACHE_TTL_SECONDS);
+        configProperties.add(property);
+
+        property = new ProviderConfigProperty(
+                CACHE_SIZE_KEY,
+                "Access cache size",
+                "Maximum number of cached access decisions; the least recently used entries are evicted first.",
+                ProviderConfigProperty.INTEGER_TYPE,
+                DEFAULT_CACHE_SIZE);
+        configProperties.add(property);
+
+        property = new ProviderConfigProperty(
+                RECONCILE_MODE_KEY,
+                "Membership update mode",
+                "inline changes group and role membership while the token is issued. background queues the changes and applies them in batches shortly after; the claim reflects the access decisions either way.",
+                ProviderConfigProperty.LIST_TYPE,
+                WaldurMembership.MODE_INLINE);
+        property.setOptions(List.of(WaldurMembership.MODE_INLINE, WaldurMembership.MODE_BACKGROUND));
+        configProperties.add(property);
+
+        WaldurConfigHelper.addResilienceConfig(configProperties);
+        WaldurConfigHelper.addPersistenceConfig(configProperties);
+
+        OIDCAttributeMapperHelper.addTokenClaimNameConfig(configProperties);
+        OIDCAttributeMapperHelper.addIncludeInTokensConfig(configProperties, WaldurOIDCMultiOfferingAccessMapper.class);
+
+        // Cached decisions may have been made with a different offering table, URL or TTL.
+        WaldurClusterCache.onInvalidation(ACCESS_CACHES::remove);
+    }
+
+    /**
+     * The offering table, stored by the admin console as a JSON list of key/value pairs, with the
+     * offering UUID as the key and {@code group,role} as the value.
+     */
+    static List<Offering> parseOfferings(WaldurConfigReader reader, String apiUrl) {
+        String table = reader.required(OFFERINGS_KEY, "Offerings");
+        if (table.isBlank()) {
+            return List.of();
+        }
+        List<Map<String, String>> rows;
+        try {
+            rows = jacksonMapper.readValue(table, new TypeReference<List<Map<String, String>>>() {
+            });
+        } catch (JsonProcessingException e) {
+            reader.problems().add("Offerings must be a list of offering UUIDs with their group and role: "
+                    + e.getOriginalMessage());
+            return List.of();
+        }
+        List<Offering> offerings = new ArrayList<>();
+        Set<String> seen = new LinkedHashSet<>();
+        for (Map<String, String> row : rows) {
+            String uuid = Objects.requireNonNullElse(row.get("key"), "").trim();
+            String[] targets = Objects.requireNonNullElse(row.get("value"), "").split(",", 2);
+            String groupName = targets[0].trim();
+            String roleName = targets.length > 1 ? targets[1].trim() : "";
+            if (uuid.isEmpty()) {
+                reader.problems().add("Offerings has a row without an offering UUID");
+            } else if (!seen.add(uuid)) {
+                reader.problems().add("Offering " + uuid + " is listed more than once");
+            } else if (groupName.isEmpty() && roleName.isEmpty()) {
+                reader.problems().add("Offering " + uuid + " has neither a group nor a role");
+            } else {
+                offerings.add(new Offering(uuid, WaldurOIDCOfferingAccessMapper.hasResourceAccessUrl(apiUrl, uuid),
+                        groupName, roleName));
+            }
+        }
+        return List.copyOf(offerings);
+    }
+
+    /**
+     * Run {@code check} for every item with at most {@code parallelism} checks in flight. Items
+     * whose check fails or completes with null are left out of the result.
+     */
+    static <T> CompletableFuture<Map<T, Boolean>> checkAll(List<T> items, int parallelism,
+            Function<T, CompletableFuture<Boolean>> check) {
+        Map<T, Boolean> results = new ConcurrentHashMap<>();
+        int lanes = Math.max(1, Math.min(parallelism, items.size()));
+        CompletableFuture<?>[] running = new CompletableFuture<?>[lanes];
+        for (int lane = 0; lane < lanes; lane++) {
+            running[lane] = checkFrom(lane, lanes, items, check, results);
+        }
+        return CompletableFuture.allOf(running).thenApply(done -> results);
+    }
+
+    /** Check the items of one lane, {@code index}, {@code index + stride} and so on, one after the other. */
+    private static <T> CompletableFuture<Void> checkFrom(int index, int stride, List<T> items,
+            Function<T, CompletableFuture<Boolean>> check, Map<T, Boolean> results) {
+        if (index >= items.size()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        T item = items.get(index);
+        CompletableFuture<Boolean> result;
+        try {
+            result = check.apply(item);
+        } catch (RuntimeException e) {
+            LOGGER.error(e.getMessage(), e);
+            result = CompletableFuture.completedFuture(null);
+        }
+        return result
+                .handle((access, error) -> {
+                    if (access != null) {
+                        results.put(item, access);
+                    }
+                    return null;
+                })
+                .thenCompose(Context.current().wrapFunction(
+                        ignored -> checkFrom(index + stride, stride, items, check, results)));
+    }
+
+    /** Access to one offering, from the cache when it has it, which is then noted in {@code fromCache}. */
+    private static CompletableFuture<Boolean> hasAccess(WaldurCache<AccessKey, Boolean> cache, Config config,
+            Offering offering, String username, AtomicBoolean fromCache) {
+        AccessKey cacheKey = new AccessKey(config.waldur().apiUrl(), offering.uuid(), username);
+        if (cache != null) {
+            Boolean cached = cache.get(cacheKey, config.cacheTtlSeconds() * 1000L);
+            WaldurMetrics.cacheLookup("access", cached != null);
+            if (cached != null) {
+                fromCache.set(true);
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+        return config.waldur().httpClient()
+                .getAsync(offering.accessUrl().forUser(username), WaldurOIDCOfferingAccessMapper.HAS_ACCESS,
+                        config.waldur().callPolicy())
+                .thenApply(access -> {
+                    if (access != null && cache != null) {
+                        cache.put(cacheKey, access);
+                    }
+                    return access;
+                });
+    }
+
+    /**
+     * Starts resolving the user's access to every offering of the table, from the stored result,
+     * the cluster or the cache when possible. The future completes with the decisions by offering
+     * UUID; offerings Waldur gave no answer for are left out.
+     */
+    @Override
+    public CompletableFuture<Map<String, Boolean>> lookupAsync(KeycloakSession session,
+            ProtocolMapperModel mappingModel, UserSessionModel userSession) {
+        final Config config = CONFIGS.get(mappingModel);
+        final WaldurMapperConfig waldur = config.waldur();
+        final UserModel user = userSession.getUser();
+        if (waldur.persistTtlMillis() > 0) {
+            String stored = WaldurUserAttributeCache.read(session, user, waldur, waldur.persistTtlMillis());
+            WaldurMetrics.cacheLookup("stored", stored != null);
+            if (stored != null) {
+                return CompletableFuture.completedFuture(decode(stored));
+            }
+        }
+
+        WaldurCache<AccessKey, Boolean> cache = config.cacheTtlSeconds() <= 0 ? null
+                : ACCESS_CACHES.computeIfAbsent(waldur.mapperId(), id -> new WaldurCache<>(config.cacheSize()));
+        String username = resolveUsername(config, user);
+
+        // Only complete results are shared with the cluster; a partial one is still used here.
+        AtomicReference<Map<String, Boolean>> fetched = new AtomicReference<>(Map.of());
+        // Only results Waldur gave for every offering just now are stored for the user.
+        AtomicBoolean fromCache = new AtomicBoolean();
+        return WaldurClusterCache.sharing(session, waldur, user,
+                () -> WaldurUserAttributeCache.fetching(session, waldur, user,
+                        checkAll(config.offerings(), config.parallelism(),
+                                offering -> hasAccess(cache, config, offering, username, fromCache))
+                                .thenApply(results -> {
+                                    Map<String, Boolean> decisions = byUuid(config, results);
+                                    fetched.set(decisions);
+                                    return decisions.size() == config.offerings().size() ? encode(decisions) : null;
+                                }),
+                        () -> !fromCache.get()))
+                .get()
+                .thenApply(shared -> shared != null ? decode(shared) : fetched.get());
+    }
+
+    private static Map<String, Boolean> byUuid(Config config, Map<Offering, Boolean> results) {
+        Map<String, Boolean> decisions = new LinkedHashMap<>();
+        for (Offering offering : config.offerings()) {
+            Boolean access = results.get(offering);
+            if (access != null) {
+                decisions.put(offering.uuid(), access);
+            }
+        }
+        return decisions;
+    }
+
+    /** Decisions as stored and shared: {@code uuid=true,uuid=false}. */
+    static String encode(Map<String, Boolean> decisions) {
+        return decisions.entrySet().stream()
+                .map(entry -> entry.getKey() + "=" + entry.getValue())
+                .collect(Collectors.joining(","));
+    }
+
+    static Map<String, Boolean> decode(String encoded) {
+        Map<String, Boolean> decisions = new LinkedHashMap<>();
+        for (String pair : encoded.split(",")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                decisions.put(pair.substring(0, separator), Boolean.valueOf(pair.substring(separator + 1)));
+            }
+        }
+        return decisions;
+    }
+
+    private static String resolveUsername(Config config, UserModel user) {
+        return config.usernameFromId() ? user.getId() : user.getUsername();
+    }
+
+    /** The last access decision cached for the user and offering whatever its age, or null when there is none. */
+    private static Boolean lastKnownAccess(Config config, Offering offering, UserModel user,
+            Map<String, Boolean> stored) {
+        WaldurCache<AccessKey, Boolean> cache = ACCESS_CACHES.get(config.waldur().mapperId());
+        WaldurCache.Entry<Boolean> entry = cache == null ? null
+                : cache.getEntry(new AccessKey(config.waldur().apiUrl(), offering.uuid(),
+                        resolveUsername(config, user)));
+        if (entry != null) {
+            LOGGER.infof("No answer from Waldur, using access to offering %s cached %d s ago", offering.uuid(),
+                    entry.ageMillis() / 1000);
+            return entry.getValue();
+        }
+        return stored.get(offering.uuid());
+    }
+
+    /**
+     * Fold one offering's access into the decision for its group or role: granted when any of its
+     * offerings grants access, unknown while any is unknown, and otherwise denied.
+     */
+    static void combine(Map<String, Boolean> targets, String name, Boolean access) {
+        if (name.isEmpty()) {
+            return;
+        }
+        if (!targets.containsKey(name)) {
+            targets.put(name, access);
+            return;
+        }
+        Boolean current = targets.get(name);
+        if (Boolean.TRUE.equals(current) || Boolean.TRUE.equals(access)) {
+            targets.put(name, true);
+        } else if (current == null || access == null) {
+            targets.put(name, null);
+        }
+    }
+
+    /**
+     * Reconciles the user's groups and roles with their access to every offering and returns the
+     * names of the groups granted, or null when there is nothing to put in the claim.
+     */
+    private List<String> transformToken(ProtocolMapperModel mappingModel, KeycloakSession keycloakSession,
+            UserSessionModel userSession, ClientSessionContext clientSessionCtx) {
+        final Config config = CONFIGS.get(mappingModel);
+        final WaldurMapperConfig waldur = config.waldur();
+        final WaldurReconciliationQueue queue = config.backgroundReconcile()
+                ? reconciliation.get(keycloakSession.getKeycloakSessionFactory())
+                : null;
+
+        UserModel user = userSession.getUser();
+        RealmModel realm = keycloakSession.getContext().getRealm();
+
+        Map<String, Boolean> decisions = WaldurRequestScope.await(clientSessionCtx,
+                WaldurRequestScope.<Map<String, Boolean>>lookup(keycloakSession, clientSessionCtx, userSession,
+                        mappingModel, this),
+                waldur.latencyBudgetMillis(),
+                Map::of);
+        WaldurUserAttributeCache.writeFetched(keycloakSession, user, waldur);
+
+        Map<String, Boolean> stored = null;
+        Map<String, Boolean> groups = new LinkedHashMap<>();
+        Map<String, Boolean> roles = new LinkedHashMap<>();
+        for (Offering offering : config.offerings()) {
+            Boolean access = decisions.get(offering.uuid());
+            if (access == null) {
+                if (stored == null) {
+                    String value = waldur.persistTtlMillis() > 0
+                            ? WaldurUserAttributeCache.readFallback(keycloakSession, user, waldur) : null;
+                    stored = value == null ? Map.of() : decode(value);
+                }
+                access = lastKnownAccess(config, offering, user, stored);
+            }
+            if (access == null) {
+                // Without an answer from Waldur, leave the offering's group and role as they are.
+                LOGGER.warn(String.format("Access of user %s to offering %s is unknown, skipping it",
+                        user.getUsername(), offering.uuid()));
+            }
+            combine(groups, offering.groupName(), access);
+            combine(roles, offering.roleName(), access);
+        }
+
+        List<String> granted = new ArrayList<>();
+        groups.forEach((groupName, access) -> {
+            if (access == null) {
+                return;
+            }
+            GroupModel group = WaldurGroupRoleCache.group(keycloakSession, realm, "/" + groupName);
+            if (group == null) {
+                LOGGER.error(String.format("The group %s does not exist, skipping it", groupName));
+                return;
+            }
+            WaldurMembership.reconcileGroup(queue, realm, user, group, access);
+            if (access) {
+                granted.add(group.getName());
+            }
+        });
+        roles.forEach((roleName, access) -> {
+            if (access == null) {
+                return;
+            }
+            RoleModel role = WaldurGroupRoleCache.role(keycloakSession, realm, roleName);
+            if (role == null) {
+                LOGGER.error(String.format("The role %s does not exist in the realm, skipping it", roleName));
+                return;
+            }
+            WaldurMembership.reconcileRole(queue, realm, user, role, access);
+        });
+
+        return granted.isEmpty() ? null : List.copyOf(granted);
+    }
+
+    @Override
+    public AccessToken transformAccessToken(AccessToken token, ProtocolMapperModel mappingModel,
+            KeycloakSession session, UserSessionModel userSession, ClientSessionContext clientSessionCtx) {
+        WaldurRequestScope.building(clientSessionCtx, WaldurRequestScope.Token.ACCESS);
+        return super.transformAccessToken(token, mappingModel, session, userSession, clientSessionCtx);
+    }
+
+    @Override
+    public IDToken transformIDToken(IDToken token, ProtocolMapperModel mappingModel, KeycloakSession session,
+            UserSessionModel userSession, ClientSessionContext clientSessionCtx) {
+        WaldurRequestScope.building(clientSessionCtx, WaldurRequestScope.Token.ID);
+        return super.transformIDToken(token, mappingModel, session, userSession, clientSessionCtx);
+    }
+
+    @Override
+    public AccessToken transformUserInfoToken(AccessToken token, ProtocolMapperModel mappingModel,
+            KeycloakSession session, UserSessionModel userSession, ClientSessionContext clientSessionCtx) {
+        WaldurRequestScope.building(clientSessionCtx, WaldurRequestScope.Token.USERINFO);
+        return super.transformUserInfoToken(token, mappingModel, session, userSession, clientSessionCtx);
+    }
+
+    @Override
+    protected void setClaim(IDToken token, ProtocolMapperModel mappingModel, UserSessionModel userSession,
+            KeycloakSession keycloakSession, ClientSessionContext clientSessionCtx) {
+        List<String> groups = WaldurRequestScope.memoize(clientSessionCtx, mappingModel,
+                () -> WaldurTracing.claim(keycloakSession, WaldurOIDCMultiOfferingAccessMapper.class, mappingModel,
+                        () -> WaldurMetrics.timeClaim(PROVIDER_ID,
+                                () -> this.transformToken(mappingModel, keycloakSession, userSession, clientSessionCtx))));
+        if (groups == null) {
+            return;
+        }
+
+        token.getOtherClaims().put(CONFIGS.get(mappingModel).waldur().claimName(), groups);
+    }
+
+    @Override
+    public void validateConfig(KeycloakSession session, RealmModel realm, ProtocolMapperContainerModel client,
+            ProtocolMapperModel mapperModel) throws ProtocolMapperConfigException {
+        CONFIGS.validate(mapperModel);
+        WaldurClusterCache.invalidate(session, WaldurConfigCache.mapperId(mapperModel));
+
+        ProtocolMapperModel previous = mapperModel.getId() == null ? null
+                : client.getProtocolMapperById(mapperModel.getId());
+        if (previous == null) {
+            return;
+        }
+        Map<String, String> oldConfig = previous.getConfig();
+        Map<String, String> newConfig = mapperModel.getConfig();
+        if (!Objects.equals(oldConfig.get(API_URL_KEY), newConfig.get(API_URL_KEY))
+                || !Objects.equals(oldConfig.get(API_TOKEN_KEY), newConfig.get(API_TOKEN_KEY))) {
+            WaldurHttpClientRegistry.evict(oldConfig.get(API_URL_KEY), oldConfig.get(API_TOKEN_KEY), true);
+        }
+    }
+
+    /** {@code offerings} maps each offering UUID to its {@code group,role}. */
+    public static ProtocolMapperModel create(
+            String name,
+            String url,
+            String apiToken,
+            Map<String, String> offerings,
+            String usernameSource,
+            String claimName,
+            boolean accessToken,
+            boolean idToken,
+            boolean userInfo) {
+        ProtocolMapperModel mapper = new ProtocolMapperModel();
+        mapper.setName(name);
+        mapper.setProtocolMapper(PROVIDER_ID);
+        mapper.setProtocol(OIDCLoginProtocol.LOGIN_PROTOCOL);
+
+        List<Map<String, String>> rows = offerings.entrySet().stream()
+                .map(entry -> Map.of("key", entry.getKey(), "value", entry.getValue()))
+                .toList();
+        Map<String, String> config = new HashMap<String, String>();
+        config.put(API_URL_KEY, url);
+        config.put(API_TOKEN_KEY, apiToken);
+        try {
+            config.put(OFFERINGS_KEY, jacksonMapper.writeValueAsString(rows));
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException(e);
+        }
+        config.put(USERNAME_SOURCE_KEY, usernameSource);
+        config.put(OIDCAttributeMapperHelper.TOKEN_CLAIM_NAME, claimName);
+
+        config.put(OIDCAttributeMapperHelper.INCLUDE_IN_ACCESS_TOKEN, Boolean.toString(accessToken));
+        config.put(OIDCAttributeMapperHelper.INCLUDE_IN_ID_TOKEN, Boolean.toString(idToken));
+        config.put(OIDCAttributeMapperHelper.INCLUDE_IN_USERINFO, Boolean.toString(userInfo));
+
+        mapper.setConfig(config);
+        return mapper;
+    }
+
+    @Override
+    public List<ProviderConfigProperty> getConfigProperties() {
+        return configProperties;
+    }
+
+    @Override
+    public String getDisplayCategory() {
+        return TOKEN_MAPPER_CATEGORY;
+    }
+
+    @Override
+    public String getDisplayType() {
+        return "Waldur multi-offering access mapper";
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    @Override
+    public String getHelpText() {
+        return "Mapper for access to many Waldur offerings, each with its own group and role";
+    }
+
+    @Override
+    public void close() {
+        reconciliation.close();
+    }
+}
@@ -6,17 +6,22 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 import org.jboss.logging.Logger;
 import org.keycloak.models.ClientSessionContext;
 import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ProtocolMapperContainerModel;
 import org.keycloak.models.ProtocolMapperModel;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.RoleModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.models.UserSessionModel;
-import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.protocol.ProtocolMapperConfigException;
 import org.keycloak.protocol.oidc.OIDCLoginProtocol;
 import org.keycloak.protocol.oidc.mappers.AbstractOIDCProtocolMapper;
 import org.keycloak.protocol.oidc.mappers.OIDCAccessTokenMapper;
@@ -24,12 +29,13 @@ import org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper;
 import org.keycloak.protocol.oidc.mappers.OIDCIDTokenMapper;
 import org.keycloak.protocol.oidc.mappers.UserInfoTokenMapper;
 import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.representations.AccessToken;
 import org.keycloak.representations.IDToken;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 public class WaldurOIDCOfferingAccessMapper extends AbstractOIDCProtocolMapper
-        implements OIDCAccessTokenMapper, OIDCIDTokenMapper, UserInfoTokenMapper {
+        implements OIDCAccessTokenMapper, OIDCIDTokenMapper, UserInfoTokenMapper, WaldurLookupMapper {
 
     public static final String PROVIDER_ID = "oidc-waldur-offering-access-mapper";
 
@@ -37,14 +43,62 @@ public class WaldurOIDCOfferingAccessMapper extends AbstractOIDCProtocolMapper
 
     private static final Logger LOGGER = Logger.getLogger(WaldurOIDCOfferingAccessMapper.class.getName());
 
-    private static final String API_URL_KEY = "url.waldur.api.value";
-    private static final String API_TOKEN_KEY = "token.waldur.value";
+    private static final ObjectMapper jacksonMapper = new ObjectMapper();
+
+    private static final String API_URL_KEY = WaldurConfigHelper.API_URL_KEY;
+    private static final String API_TOKEN_KEY = WaldurConfigHelper.API_TOKEN_KEY;
     private static final String OFFERING_UUID_KEY = "uuid.waldur.offering.value";
     private static final String USERNAME_SOURCE_KEY = "keycloak.username.source.value";
     private static final String GROUP_NAME_KEY = "name.keycloak.group.value";
     private static final String GROUP_ADD_KEY = "keycloak.group.add";
     private static final String ROLE_NAME_KEY = "name.keycloak.role.value";
     private static final String ROLE_ADD_KEY = "keycloak.role.add";
+    private static final String CACHE_TTL_KEY = "cache.waldur.ttl";
+    private static final String CACHE_SIZE_KEY = "cache.waldur.size";
+    private static final String RECONCILE_MODE_KEY = "reconcile.waldur.mode";
+
+    private static final String RECONCILE_MODE_INLINE = WaldurMembership.MODE_INLINE;
+    private static final String RECONCILE_MODE_BACKGROUND = WaldurMembership.MODE_BACKGROUND;
+
+    private static final int DEFAULT_CACHE_TTL_SECONDS = 60;
+    private static final int DEFAULT_CACHE_SIZE = 10000;
+
+    private record AccessKey(String waldurUrl, String offeringUuid, String username) {
+    }
+
+    /** The mapper's settings, compiled once per configuration. TLS validation is always on. */
+    record Config(WaldurMapperConfig waldur, String offeringUuid, boolean usernameFromId,
+            WaldurUrlTemplate accessUrl, String groupName, String groupPath, boolean addGroup, String roleName,
+            boolean grantRole, int cacheTtlSeconds, int cacheSize, boolean backgroundReconcile) {
+
+        static Config compile(String mapperId, WaldurConfigReader reader) {
+            WaldurMapperConfig waldur = WaldurConfigHelper.readShared(mapperId, reader, true);
+            String offeringUuid = reader.required(OFFERING_UUID_KEY, "Waldur offering UUID");
+            boolean addGroup = reader.flag(GROUP_ADD_KEY, "Add a user to the group", false);
+            String groupName = addGroup ? reader.required(GROUP_NAME_KEY, "Keycloak group name") : reader.string(GROUP_NAME_KEY);
+            boolean grantRole = reader.flag(ROLE_ADD_KEY, "Grant a role to a user", false);
+            String roleName = grantRole ? reader.required(ROLE_NAME_KEY, "Keycloak role name") : reader.string(ROLE_NAME_KEY);
+            return new Config(waldur, offeringUuid,
+                    "id".equals(reader.choice(USERNAME_SOURCE_KEY, "Username source", List.of("id", "username"), "id")),
+                    hasResourceAccessUrl(waldur.apiUrl(), offeringUuid),
+                    groupName, "/" + groupName, addGroup, roleName, grantRole,
+                    reader.integer(CACHE_TTL_KEY, "Access cache TTL", DEFAULT_CACHE_TTL_SECONDS, 0),
+                    reader.integer(CACHE_SIZE_KEY, "Access cache size", DEFAULT_CACHE_SIZE, 1),
+                    RECONCILE_MODE_BACKGROUND.equals(reader.choice(RECONCILE_MODE_KEY, "Membership update mode",
+                            List.of(RECONCILE_MODE_INLINE, RECONCILE_MODE_BACKGROUND), RECONCILE_MODE_INLINE)));
+        }
+    }
+
+    private static final WaldurConfigCache<Config> CONFIGS = new WaldurConfigCache<>(Config::compile);
+
+    /** Access decisions, one cache per mapper so that each mapper's TTL and size settings apply. */
+    private static final Map<String, WaldurCache<AccessKey, Boolean>> ACCESS_CACHES = new ConcurrentHashMap<>();
+
+    /** The access answer parser, kept in a constant so concurrent checks of a user share one call. */
+    static final Function<String, Boolean> HAS_ACCESS = WaldurOIDCOfferingAccessMapper::parseHasAccess;
+
+    /** Background membership changes; Keycloak keeps one mapper instance per session factory. */
+    private final WaldurReconciliationQueue.Holder reconciliation = new WaldurReconciliationQueue.Holder();
 
     static {
         ProviderConfigProperty property;
@@ -115,66 +169,190 @@ public class WaldurOIDCOfferingAccessMapper extends AbstractOIDCProtocolMapper
                 false);
         configProperties.add(property);
 
+        property = new ProviderConfigProperty(
+                CACHE_TTL_KEY,
+                "Access cache TTL (seconds)",
+                "How long an offering access decision from Waldur is reused before asking again. 0 disables the cache.",
+                ProviderConfigProperty.INTEGER_TYPE,
+                DEFAULT_CACHE_TTL_SECONDS);
+        configProperties.add(property);
+
+        property = new ProviderConfigProperty(
+                CACHE_SIZE_KEY,
+                "Access cache size",
+                "Maximum number of cached access decisions; the least recently used entries are evicted first.",
+                ProviderConfigProperty.INTEGER_TYPE,
+                DEFAULT_CACHE_SIZE);
+        configProperties.add(property);
+
+        property = new ProviderConfigProperty(
+                RECONCILE_MODE_KEY,
+                "Membership update mode",
+                "inline changes group and role membership while the token is issued. background queues the changes and applies them in batches shortly after; the claim reflects the access decision either way.",
+                ProviderConfigProperty.LIST_TYPE,
+                RECONCILE_MODE_INLINE);
+        property.setOptions(List.of(RECONCILE_MODE_INLINE, RECONCILE_MODE_BACKGROUND));
+        configProperties.add(property);
+
+        WaldurConfigHelper.addResilienceConfig(configProperties);
+        WaldurConfigHelper.addPersistenceConfig(configProperties);
+
         OIDCAttributeMapperHelper.addTokenClaimNameConfig(configProperties);
         OIDCAttributeMapperHelper.addIncludeInTokensConfig(configProperties, WaldurOIDCOfferingAccessMapper.class);
+
+        // Cached decisions may have been made with a different offering, URL or TTL.
+        WaldurClusterCache.onInvalidation(ACCESS_CACHES::remove);
     }
 
-    static String buildHasResourceAccessUrl(String waldurUrl, String offeringUuid, String username) {
-        return waldurUrl
+    static WaldurUrlTemplate hasResourceAccessUrl(String waldurUrl, String offeringUuid) {
+        return new WaldurUrlTemplate(waldurUrl
                 + "marketplace-provider-offerings/"
                 + URLEncoder.encode(offeringUuid, StandardCharsets.UTF_8)
-                + "/user_has_resource_access/?username="
-                + URLEncoder.encode(username, StandardCharsets.UTF_8);
+                + "/user_has_resource_access/?username=",
+                "");
+    }
+
+    static String buildHasResourceAccessUrl(String waldurUrl, String offeringUuid, String username) {
+        return hasResourceAccessUrl(waldurUrl, offeringUuid).forUser(username);
     }
 
-    private boolean hasAccessToResource(String waldurUrl, String offeringUuid, String waldurToken, String username) {
-        if (offeringUuid.isEmpty()) {
+    private CompletableFuture<Boolean> hasAccessToResource(WaldurCache<AccessKey, Boolean> cache,
+            KeycloakSession session, Config config, UserModel user, String username) {
+        if (config.offeringUuid().isEmpty()) {
             LOGGER.error("Offering UUID is empty, skipping resource access check");
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
 
-        String waldurEndpoint = buildHasResourceAccessUrl(waldurUrl, offeringUuid, username);
-        String responseBody = new WaldurHttpClient(waldurToken).get(waldurEndpoint);
-        if (responseBody.isEmpty()) {
-            return false;
+        AccessKey cacheKey = new AccessKey(config.waldur().apiUrl(), config.offeringUuid(), username);
+        if (cache != null) {
+            Boolean cached = cache.get(cacheKey, config.cacheTtlSeconds() * 1000L);
+            WaldurMetrics.cacheLookup("access", cached != null);
+            if (cached != null) {
+                LOGGER.debugf("User has resource access (cached): %s", cached);
+                return CompletableFuture.completedFuture(cached);
+            }
+            LOGGER.debugf("Access cache miss, cache stats: %s", cache);
         }
+
+        String waldurEndpoint = config.accessUrl().forUser(username);
+        return WaldurClusterCache.sharing(session, config.waldur(), user,
+                () -> WaldurUserAttributeCache.fetching(session, config.waldur(), user, config.waldur().httpClient()
+                        .getAsync(waldurEndpoint, HAS_ACCESS,
+                                config.waldur().callPolicy())
+                        .thenApply(result -> result == null ? null : result.toString())))
+                .get()
+                .thenApply(shared -> {
+                    if (shared == null) {
+                        // Waldur did not answer; unknown rather than no access.
+                        return null;
+                    }
+                    Boolean result = Boolean.valueOf(shared);
+                    LOGGER.infof("User has resource access: %s", result);
+                    if (cache != null) {
+                        cache.put(cacheKey, result);
+                    }
+                    return result;
+                });
+    }
+
+    static Boolean parseHasAccess(String responseBody) {
         try {
-            UserHasAccessDTO userHasAccess = new ObjectMapper().readValue(responseBody, UserHasAccessDTO.class);
-            boolean result = userHasAccess.getHasAccess();
-            LOGGER.infof("User has resource access: %s", result);
-            return result;
+            return jacksonMapper.readValue(responseBody, UserHasAccessDTO.class).getHasAccess();
         } catch (Exception e) {
             LOGGER.error(e.getMessage(), e);
-            return false;
+            return null;
         }
     }
 
-    private void transformToken(IDToken token, Map<String, String> config, KeycloakSession keycloakSession,
+    /** Starts resolving whether the user has access to the offering, from the stored result or the cache when possible. */
+    @Override
+    public CompletableFuture<Boolean> lookupAsync(KeycloakSession session, ProtocolMapperModel mappingModel,
             UserSessionModel userSession) {
-        final String waldurUrl = config.get(API_URL_KEY);
-        final String offeringUuid = config.get(OFFERING_UUID_KEY);
-        final String usernameSource = config.get(USERNAME_SOURCE_KEY);
-        final String groupName = config.get(GROUP_NAME_KEY);
-        final boolean addGroup = Boolean.parseBoolean(config.get(GROUP_ADD_KEY));
-        final String waldurToken = config.get(API_TOKEN_KEY);
-        final String roleName = config.get(ROLE_NAME_KEY);
-        final boolean grantRole = Boolean.parseBoolean(config.get(ROLE_ADD_KEY));
-        final String claimName = config.get(OIDCAttributeMapperHelper.TOKEN_CLAIM_NAME);
+        final Config config = CONFIGS.get(mappingModel);
+        final WaldurMapperConfig waldur = config.waldur();
+        if (waldur.persistTtlMillis() > 0) {
+            String stored = WaldurUserAttributeCache.read(session, userSession.getUser(), waldur, waldur.persistTtlMillis());
+            WaldurMetrics.cacheLookup("stored", stored != null);
+            if (stored != null) {
+                return CompletableFuture.completedFuture(Boolean.valueOf(stored));
+            }
+        }
 
-        UserModel user = userSession.getUser();
-        String username = "";
+        WaldurCache<AccessKey, Boolean> cache = null;
+        if (config.cacheTtlSeconds() > 0) {
+            cache = ACCESS_CACHES.computeIfAbsent(waldur.mapperId(), id -> new WaldurCache<>(config.cacheSize()));
+        }
 
-        if (usernameSource.equals("id"))
-            username = user.getId();
-        if (usernameSource.equals("username"))
-            username = user.getUsername();
+        return this.hasAccessToResource(cache, session, config, userSession.getUser(),
+                resolveUsername(config, userSession.getUser()));
+    }
 
-        RealmModel realm = keycloakSession.getContext().getRealm();
-        String groupPath = String.format("/%s", groupName);
-        GroupModel group = KeycloakModelUtils.findGroupByPath(keycloakSession, realm, groupPath);
-        RoleModel role = realm.getRole(roleName);
+    private static String resolveUsername(Config config, UserModel user) {
+        return config.usernameFromId() ? user.getId() : user.getUsername();
+    }
+
+    /**
+     * The last access decision cached for the user whatever its age, or else stored for them within
+     * the fallback age, or null when there is none.
+     */
+    private static Boolean lastKnownAccess(KeycloakSession session, Config config, UserSessionModel userSession) {
+        WaldurCache<AccessKey, Boolean> cache = ACCESS_CACHES.get(config.waldur().mapperId());
+        WaldurCache.Entry<Boolean> entry = cache == null ? null
+                : cache.getEntry(new AccessKey(config.waldur().apiUrl(), config.offeringUuid(),
+                        resolveUsername(config, userSession.getUser())));
+        if (entry != null) {
+            LOGGER.infof("Waldur unavailable, using access decision cached %d s ago", entry.ageMillis() / 1000);
+            return entry.getValue();
+        }
+        if (config.waldur().persistTtlMillis() > 0) {
+            String stored = WaldurUserAttributeCache.readFallback(session, userSession.getUser(), config.waldur());
+            if (stored != null) {
+                LOGGER.info("Waldur unavailable, using the access decision stored for the user");
+                return Boolean.valueOf(stored);
+            }
+        }
+        return null;
+    }
 
-        boolean hasAccessToResource = this.hasAccessToResource(waldurUrl, offeringUuid, waldurToken, username);
+    /**
+     * Reconciles the user's group and role with their offering access and returns the group name to
+     * put in the claim, or null when no claim should be emitted.
+     */
+    private String transformToken(ProtocolMapperModel mappingModel, KeycloakSession keycloakSession,
+            UserSessionModel userSession, ClientSessionContext clientSessionCtx) {
+        final Config config = CONFIGS.get(mappingModel);
+        final String groupName = config.groupName();
+        final boolean addGroup = config.addGroup();
+        final String roleName = config.roleName();
+        final boolean grantRole = config.grantRole();
+        final WaldurReconciliationQueue queue = config.backgroundReconcile()
+                ? reconciliation.get(keycloakSession.getKeycloakSessionFactory())
+                : null;
+
+        UserModel user = userSession.getUser();
+
+        RealmModel realm = keycloakSession.getContext().getRealm();
+        String groupPath = config.groupPath();
+        GroupModel group = addGroup ? WaldurGroupRoleCache.group(keycloakSession, realm, groupPath) : null;
+        RoleModel role = grantRole ? WaldurGroupRoleCache.role(keycloakSession, realm, roleName) : null;
+
+        Boolean access = WaldurRequestScope.await(clientSessionCtx,
+                WaldurRequestScope.<Boolean>lookup(keycloakSession, clientSessionCtx, userSession, mappingModel, this),
+                config.waldur().latencyBudgetMillis(),
+                () -> lastKnownAccess(keycloakSession, config, userSession));
+        if (access == null) {
+            // The lookup finished but Waldur failed to answer it.
+            access = lastKnownAccess(keycloakSession, config, userSession);
+        }
+        if (access == null) {
+            // Without an answer from Waldur, leave group and role membership as they are.
+            LOGGER.warn(String.format("Offering access of user %s is unknown, skipping user processing",
+                    user.getUsername()));
+            return null;
+        }
+        boolean hasAccessToResource = access;
+        WaldurUserAttributeCache.writeFetched(keycloakSession, user, config.waldur());
+        String claimValue = null;
 
         if (addGroup) {
             if (group == null) {
@@ -182,19 +360,9 @@ public class WaldurOIDCOfferingAccessMapper extends AbstractOIDCProtocolMapper
                         groupName,
                         groupPath));
             } else {
+                WaldurMembership.reconcileGroup(queue, realm, user, group, hasAccessToResource);
                 if (hasAccessToResource) {
-                    if (user.isMemberOf(group)) {
-                        LOGGER.info(
-                                String.format("The user %s is already in the group %s", user.getUsername(),
-                                        group.getName()));
-                    } else {
-                        LOGGER.info(String.format("Adding user %s to group %s", user.getUsername(), group.getName()));
-                        user.joinGroup(group);
-                    }
-                    token.getOtherClaims().put(claimName, group.getName());
-                } else if (user.isMemberOf(group)) {
-                    LOGGER.info(String.format("Removing user %s from group %s", user.getUsername(), group.getName()));
-                    user.leaveGroup(group);
+                    claimValue = group.getName();
                 }
             }
         }
@@ -204,31 +372,65 @@ public class WaldurOIDCOfferingAccessMapper extends AbstractOIDCProtocolMapper
                 LOGGER.error(
                         String.format("The role %s does not exist in the realm, skipping user processing", roleName));
             } else {
-                if (hasAccessToResource) {
-                    if (user.hasRole(role)) {
-                        LOGGER.info(
-                                String.format("The user %s already has the role %s", user.getUsername(),
-                                        role.getName()));
-                    } else {
-                        LOGGER.info(
-                                String.format("Granting a role %s to a user %s", role.getName(), user.getUsername()));
-                        user.grantRole(role);
-                    }
-                } else if (user.hasRole(role)) {
-                    LOGGER.info(String.format("Revoking role %s for user %s", role.getName(), user.getUsername()));
-                    user.deleteRoleMapping(role);
-                }
+                WaldurMembership.reconcileRole(queue, realm, user, role, hasAccessToResource);
             }
         }
 
+        return claimValue;
+    }
+
+    @Override
+    public AccessToken transformAccessToken(AccessToken token, ProtocolMapperModel mappingModel,
+            KeycloakSession session, UserSessionModel userSession, ClientSessionContext clientSessionCtx) {
+        WaldurRequestScope.building(clientSessionCtx, WaldurRequestScope.Token.ACCESS);
+        return super.transformAccessToken(token, mappingModel, session, userSession, clientSessionCtx);
+    }
+
+    @Override
+    public IDToken transformIDToken(IDToken token, ProtocolMapperModel mappingModel, KeycloakSession session,
+            UserSessionModel userSession, ClientSessionContext clientSessionCtx) {
+        WaldurRequestScope.building(clientSessionCtx, WaldurRequestScope.Token.ID);
+        return super.transformIDToken(token, mappingModel, session, userSession, clientSessionCtx);
+    }
+
+    @Override
+    public AccessToken transformUserInfoToken(AccessToken token, ProtocolMapperModel mappingModel,
+            KeycloakSession session, UserSessionModel userSession, ClientSessionContext clientSessionCtx) {
+        WaldurRequestScope.building(clientSessionCtx, WaldurRequestScope.Token.USERINFO);
+        return super.transformUserInfoToken(token, mappingModel, session, userSession, clientSessionCtx);
     }
 
     @Override
     protected void setClaim(IDToken token, ProtocolMapperModel mappingModel, UserSessionModel userSession,
             KeycloakSession keycloakSession, ClientSessionContext clientSessionCtx) {
-        Map<String, String> config = mappingModel.getConfig();
+        String claimValue = WaldurRequestScope.memoize(clientSessionCtx, mappingModel,
+                () -> WaldurTracing.claim(keycloakSession, WaldurOIDCOfferingAccessMapper.class, mappingModel,
+                        () -> WaldurMetrics.timeClaim(PROVIDER_ID,
+                                () -> this.transformToken(mappingModel, keycloakSession, userSession, clientSessionCtx))));
+        if (claimValue == null) {
+            return;
+        }
 
-        this.transformToken(token, config, keycloakSession, userSession);
+        token.getOtherClaims().put(CONFIGS.get(mappingModel).waldur().claimName(), claimValue);
+    }
+
+    @Override
+    public void validateConfig(KeycloakSession session, RealmModel realm, ProtocolMapperContainerModel client,
+            ProtocolMapperModel mapperModel) throws ProtocolMapperConfigException {
+        CONFIGS.validate(mapperModel);
+        WaldurClusterCache.invalidate(session, WaldurConfigCache.mapperId(mapperModel));
+
+        ProtocolMapperModel previous = mapperModel.getId() == null ? null
+                : client.getProtocolMapperById(mapperModel.getId());
+        if (previous == null) {
+            return;
+        }
+        Map<String, String> oldConfig = previous.getConfig();
+        Map<String, String> newConfig = mapperModel.getConfig();
+        if (!Objects.equals(oldConfig.get(API_URL_KEY), newConfig.get(API_URL_KEY))
+                || !Objects.equals(oldConfig.get(API_TOKEN_KEY), newConfig.get(API_TOKEN_KEY))) {
+            WaldurHttpClientRegistry.evict(oldConfig.get(API_URL_KEY), oldConfig.get(API_TOKEN_KEY), true);
+        }
     }
 
     public static ProtocolMapperModel create(
@@ -252,6 +454,7 @@ public class WaldurOIDCOfferingAccessMapper extends AbstractOIDCProtocolMapper
 
         Map<String, String> config = new HashMap<String, String>();
         config.put(API_URL_KEY, url);
+        config.put(OFFERING_UUID_KEY, offeringUuid);
         config.put(API_TOKEN_KEY, apiToken);
         config.put(USERNAME_SOURCE_KEY, usernameSource);
         config.put(GROUP_NAME_KEY, groupName);
@@ -292,4 +495,9 @@ public class WaldurOIDCOfferingAccessMapper extends AbstractOIDCProtocolMapper
     public String getHelpText() {
         return "Mapper for offering access from Waldur";
     }
+
+    @Override
+    public void close() {
+        reconciliation.close();
+    }
 }
@@ -5,11 +5,17 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 
 import org.keycloak.models.ClientSessionContext;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ProtocolMapperContainerModel;
 import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserSessionModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.protocol.ProtocolMapperConfigException;
 import org.keycloak.protocol.oidc.OIDCLoginProtocol;
 import org.keycloak.protocol.oidc.mappers.*;
 import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.representations.AccessToken;
 import org.keycloak.representations.IDToken;
 
 import java.net.URLEncoder;
@@ -19,11 +25,14 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 import org.jboss.logging.Logger;
 
 public class WaldurOIDCOfferingUserUsernameMapper extends AbstractOIDCProtocolMapper
-        implements OIDCAccessTokenMapper, OIDCIDTokenMapper, UserInfoTokenMapper {
+        implements OIDCAccessTokenMapper, OIDCIDTokenMapper, UserInfoTokenMapper, WaldurLookupMapper {
 
     public static final String PROVIDER_ID = "oidc-waldurusernamemapper";
 
@@ -33,10 +42,32 @@ public class WaldurOIDCOfferingUserUsernameMapper extends AbstractOIDCProtocolMa
 
     private static final ObjectMapper jacksonMapper;
 
-    private static final String API_URL_KEY = "url.waldur.api.value";
+    private static final String API_URL_KEY = WaldurConfigHelper.API_URL_KEY;
     private static final String OFFERING_UUID_KEY = "uuid.waldur.offering.value";
-    private static final String API_TOKEN_KEY = "token.waldur.value";
-    private static final String API_TLS_VALIDATE_KEY = "tls.waldur.validate";
+    private static final String API_TOKEN_KEY = WaldurConfigHelper.API_TOKEN_KEY;
+    private static final String API_TLS_VALIDATE_KEY = WaldurConfigHelper.API_TLS_VALIDATE_KEY;
+    private static final String SYNC_INTERVAL_KEY = "sync.waldur.interval";
+
+    private static final int DEFAULT_SYNC_INTERVAL_SECONDS = 300;
+
+    /** The mapper's settings, compiled once per configuration. */
+    record Config(WaldurMapperConfig waldur, String offeringUuid, int syncIntervalSeconds,
+            WaldurUrlTemplate offeringUserUrl) {
+
+        static Config compile(String mapperId, WaldurConfigReader reader) {
+            WaldurMapperConfig waldur = WaldurConfigHelper.readShared(mapperId, reader, false);
+            String offeringUuid = reader.required(OFFERING_UUID_KEY, "Waldur Offering UUID");
+            return new Config(waldur, offeringUuid,
+                    reader.integer(SYNC_INTERVAL_KEY, "Offering user sync interval", DEFAULT_SYNC_INTERVAL_SECONDS, 0),
+                    WaldurOIDCOfferingUserUsernameMapper.offeringUserUrl(waldur.apiUrl(), offeringUuid));
+        }
+    }
+
+    private static final WaldurConfigCache<Config> CONFIGS = new WaldurConfigCache<>(Config::compile);
+
+    /** The offering user parser, kept in a constant so concurrent lookups of a user share one call. */
+    private static final Function<String, List<OfferingUserDTO>> OFFERING_USERS =
+            WaldurOIDCOfferingUserUsernameMapper::parseOfferingUsers;
 
     static {
         ProviderConfigProperty urlProperty = new ProviderConfigProperty(
@@ -71,72 +102,198 @@ public class WaldurOIDCOfferingUserUsernameMapper extends AbstractOIDCProtocolMa
                 false);
         configProperties.add(tlsValidationProperty);
 
+        ProviderConfigProperty syncIntervalProperty = new ProviderConfigProperty(
+                SYNC_INTERVAL_KEY,
+                "Offering user sync interval (seconds)",
+                "How often the full list of offering users is fetched into memory, so tokens are issued without asking Waldur. Users missing from it are looked up one by one. 0 disables the sync.",
+                ProviderConfigProperty.INTEGER_TYPE,
+                DEFAULT_SYNC_INTERVAL_SECONDS);
+        configProperties.add(syncIntervalProperty);
+
+        WaldurConfigHelper.addResilienceConfig(configProperties);
+        WaldurConfigHelper.addPersistenceConfig(configProperties);
+
         OIDCAttributeMapperHelper.addTokenClaimNameConfig(configProperties);
         OIDCAttributeMapperHelper.addIncludeInTokensConfig(configProperties, WaldurOIDCOfferingUserUsernameMapper.class);
 
+        // The index may have been built for a different offering, URL or interval.
+        WaldurClusterCache.onInvalidation(OfferingUserIndex::remove);
+
         jacksonMapper = new ObjectMapper();
     }
 
-    static String buildOfferingUserUrl(String waldurUrl, String offeringUuid, String username) {
-        return waldurUrl
+    static WaldurUrlTemplate offeringUserUrl(String waldurUrl, String offeringUuid) {
+        return new WaldurUrlTemplate(waldurUrl
                 + "marketplace-offering-users/?"
                 + "offering_uuid=" + URLEncoder.encode(offeringUuid, StandardCharsets.UTF_8)
-                + "&user_username=" + URLEncoder.encode(username, StandardCharsets.UTF_8)
-                + "&field=username";
+                + "&user_username=",
+                "&field=username");
     }
 
-    private List<OfferingUserDTO> fetchUsernames(String url, String waldurToken, boolean tlsValidationEnabled) {
-        String body = new WaldurHttpClient(waldurToken, tlsValidationEnabled).get(url);
-        if (body.isEmpty()) {
-            return Collections.emptyList();
-        }
+    static String buildOfferingUserUrl(String waldurUrl, String offeringUuid, String username) {
+        return offeringUserUrl(waldurUrl, offeringUuid).forUser(username);
+    }
+
+    private CompletableFuture<List<OfferingUserDTO>> fetchUsernames(WaldurMapperConfig waldur, String url) {
+        return waldur.httpClient()
+                .getAsync(url, OFFERING_USERS, waldur.callPolicy())
+                .thenApply(offeringUsers -> offeringUsers == null
+                        ? Collections.<OfferingUserDTO>emptyList() : offeringUsers);
+    }
+
+    private static List<OfferingUserDTO> parseOfferingUsers(String body) {
         try {
             return jacksonMapper.readValue(body, new TypeReference<List<OfferingUserDTO>>() {});
         } catch (Exception e) {
             LOGGER.error(e.getMessage(), e);
-            return Collections.emptyList();
+            return null;
         }
     }
 
-    private void transformToken(
-            IDToken token,
-            Map<String, String> config,
+    private static OfferingUserIndex index(Config config) {
+        WaldurMapperConfig waldur = config.waldur();
+        return OfferingUserIndex.forMapper(waldur.mapperId(), waldur.apiUrl(), config.offeringUuid(),
+                waldur.apiToken(), waldur.tlsValidationEnabled(), waldur.callPolicy(), config.syncIntervalSeconds());
+    }
+
+    /**
+     * Start the offering user index of every mapper of this type in a client scope in the
+     * background, so tokens issued right after Keycloak starts find their users in it. Clients are
+     * not scanned, as there may be very many; the index of a mapper set on a client starts with
+     * its first token.
+     */
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        OfferingUserIndex.submit(() -> KeycloakModelUtils.runJobInTransaction(factory, session ->
+                session.realms().getRealmsStream()
+                        .flatMap(RealmModel::getClientScopesStream)
+                        .flatMap(ProtocolMapperContainerModel::getProtocolMappersStream)
+                        .filter(model -> PROVIDER_ID.equals(model.getProtocolMapper()))
+                        .map(CONFIGS::get)
+                        .filter(config -> config.syncIntervalSeconds() > 0)
+                        .forEach(WaldurOIDCOfferingUserUsernameMapper::index)));
+    }
+
+    /**
+     * Starts resolving the user's preferred username in the offering, from the offering user index
+     * or the stored result when they have it; completes with null when it cannot.
+     */
+    @Override
+    public CompletableFuture<String> lookupAsync(KeycloakSession session, ProtocolMapperModel mappingModel,
             UserSessionModel userSession) {
-        final String waldurUrl = config.get(API_URL_KEY);
-        final String offeringUuid = config.get(OFFERING_UUID_KEY);
-        final String waldurToken = config.get(API_TOKEN_KEY);
-        final boolean tlsValidationEnabled = Boolean.parseBoolean(config.get(API_TLS_VALIDATE_KEY));
+        final Config config = CONFIGS.get(mappingModel);
+        final WaldurMapperConfig waldur = config.waldur();
 
         String waldurUserUsername = userSession.getUser().getUsername();
 
-        final String waldurEndpoint = buildOfferingUserUrl(waldurUrl, offeringUuid, waldurUserUsername);
+        if (config.syncIntervalSeconds() > 0) {
+            String indexed = index(config).lookup(waldurUserUsername);
+            WaldurMetrics.cacheLookup("index", indexed != null);
+            if (indexed != null) {
+                LOGGER.debugf("Preferred username of %s found in the offering user index", waldurUserUsername);
+                return CompletableFuture.completedFuture(indexed);
+            }
+        }
+
+        if (waldur.persistTtlMillis() > 0) {
+            String stored = WaldurUserAttributeCache.read(session, userSession.getUser(), waldur, waldur.persistTtlMillis());
+            WaldurMetrics.cacheLookup("stored", stored != null);
+            if (stored != null) {
+                return CompletableFuture.completedFuture(stored);
+            }
+        }
+
+        final String waldurEndpoint = config.offeringUserUrl().forUser(waldurUserUsername);
 
         LOGGER.info(String.format("Processing user %s", waldurUserUsername));
         LOGGER.info(String.format("Waldur URL: %s", waldurEndpoint));
 
-        List<OfferingUserDTO> offeringUserDTOList = fetchUsernames(waldurEndpoint, waldurToken, tlsValidationEnabled);
+        return WaldurClusterCache.sharing(session, waldur, userSession.getUser(),
+                () -> WaldurUserAttributeCache.fetching(session, waldur, userSession.getUser(),
+                        fetchUsernames(waldur, waldurEndpoint)
+                                .thenApply(offeringUserDTOList -> offeringUserDTOList.isEmpty()
+                                        ? null : offeringUserDTOList.get(0).getUsername())))
+                .get();
+    }
 
-        if (offeringUserDTOList.isEmpty()) {
+    /** Returns the user's preferred username in the offering, or null when it could not be resolved. */
+    private String transformToken(ProtocolMapperModel mappingModel, UserSessionModel userSession,
+            KeycloakSession keycloakSession, ClientSessionContext clientSessionCtx) {
+        final WaldurMapperConfig waldur = CONFIGS.get(mappingModel).waldur();
+        // Only a stored username can stand in when Waldur is unavailable.
+        String username = WaldurRequestScope.await(clientSessionCtx,
+                WaldurRequestScope.<String>lookup(keycloakSession, clientSessionCtx, userSession, mappingModel, this),
+                waldur.latencyBudgetMillis(),
+                () -> waldur.persistTtlMillis() > 0
+                        ? WaldurUserAttributeCache.readFallback(keycloakSession, userSession.getUser(), waldur)
+                        : null);
+
+        if (username == null) {
             LOGGER.error(String.format("Unable to retrieve a username."));
-            return;
+            return null;
         }
 
-        OfferingUserDTO offeringUserDTO = offeringUserDTOList.get(0);
-        String username = offeringUserDTO.getUsername();
-
         LOGGER.info(String.format("Waldur preferred username: %s", username));
 
-        final String claimName = config.get(OIDCAttributeMapperHelper.TOKEN_CLAIM_NAME);
+        WaldurUserAttributeCache.writeFetched(keycloakSession, userSession.getUser(), waldur);
+
+        return username;
+    }
+
+    @Override
+    public AccessToken transformAccessToken(AccessToken token, ProtocolMapperModel mappingModel,
+            KeycloakSession session, UserSessionModel userSession, ClientSessionContext clientSessionCtx) {
+        WaldurRequestScope.building(clientSessionCtx, WaldurRequestScope.Token.ACCESS);
+        return super.transformAccessToken(token, mappingModel, session, userSession, clientSessionCtx);
+    }
+
+    @Override
+    public IDToken transformIDToken(IDToken token, ProtocolMapperModel mappingModel, KeycloakSession session,
+            UserSessionModel userSession, ClientSessionContext clientSessionCtx) {
+        WaldurRequestScope.building(clientSessionCtx, WaldurRequestScope.Token.ID);
+        return super.transformIDToken(token, mappingModel, session, userSession, clientSessionCtx);
+    }
 
-        token.getOtherClaims().put(claimName, username);
+    @Override
+    public AccessToken transformUserInfoToken(AccessToken token, ProtocolMapperModel mappingModel,
+            KeycloakSession session, UserSessionModel userSession, ClientSessionContext clientSessionCtx) {
+        WaldurRequestScope.building(clientSessionCtx, WaldurRequestScope.Token.USERINFO);
+        return super.transformUserInfoToken(token, mappingModel, session, userSession, clientSessionCtx);
     }
 
     @Override
     protected void setClaim(IDToken token, ProtocolMapperModel mappingModel, UserSessionModel userSession,
             KeycloakSession keycloakSession, ClientSessionContext clientSessionCtx) {
-        Map<String, String> config = mappingModel.getConfig();
+        String username = WaldurRequestScope.memoize(clientSessionCtx, mappingModel,
+                () -> WaldurTracing.claim(keycloakSession, WaldurOIDCOfferingUserUsernameMapper.class, mappingModel,
+                        () -> WaldurMetrics.timeClaim(PROVIDER_ID,
+                                () -> this.transformToken(mappingModel, userSession, keycloakSession, clientSessionCtx))));
+        if (username == null) {
+            return;
+        }
 
-        this.transformToken(token, config, userSession);
+        token.getOtherClaims().put(CONFIGS.get(mappingModel).waldur().claimName(), username);
+    }
+
+    @Override
+    public void validateConfig(KeycloakSession session, RealmModel realm, ProtocolMapperContainerModel client,
+            ProtocolMapperModel mapperModel) throws ProtocolMapperConfigException {
+        CONFIGS.validate(mapperModel);
+        WaldurClusterCache.invalidate(session, WaldurConfigCache.mapperId(mapperModel));
+
+        ProtocolMapperModel previous = mapperModel.getId() == null ? null
+                : client.getProtocolMapperById(mapperModel.getId());
+        if (previous == null) {
+            return;
+        }
+        Map<String, String> oldConfig = previous.getConfig();
+        Map<String, String> newConfig = mapperModel.getConfig();
+        if (!Objects.equals(oldConfig.get(API_URL_KEY), newConfig.get(API_URL_KEY))
+                || !Objects.equals(oldConfig.get(API_TOKEN_KEY), newConfig.get(API_TOKEN_KEY))
+                || !Objects.equals(oldConfig.get(API_TLS_VALIDATE_KEY), newConfig.get(API_TLS_VALIDATE_KEY))) {
+            WaldurHttpClientRegistry.evict(oldConfig.get(API_URL_KEY), oldConfig.get(API_TOKEN_KEY),
+                    Boolean.parseBoolean(oldConfig.get(API_TLS_VALIDATE_KEY)));
+        }
     }
 
     public static ProtocolMapperModel create(
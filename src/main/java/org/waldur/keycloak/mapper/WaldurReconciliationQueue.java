@@ -0,0 +1,200 @@
+package org.waldur.keycloak.mapper;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Group and role membership changes decided during token issuance, applied off the token path.
+ * Pending changes are keyed by user and group or role, so repeated decisions for the same user
+ * collapse into one write, and a later decision replaces an earlier one. A single daemon worker
+ * drains them in batches, each batch in its own Keycloak transaction.
+ *
+ * Each offering access mapper owns its queue through a {@link Holder}: it is made when the mapper
+ * first queues a change and shut down when Keycloak closes the mapper, together with the session
+ * factory the queue writes through.
+ *
+ * Nothing is persisted: changes still pending at shutdown, or in a batch that fails, are lost
+ * and are simply decided again on the user's next token request.
+ */
+final class WaldurReconciliationQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(WaldurReconciliationQueue.class.getName());
+
+    private static final long FLUSH_INTERVAL_MILLIS = 500;
+    private static final int MAX_BATCH_SIZE = 200;
+
+    enum Kind {
+        GROUP,
+        ROLE
+    }
+
+    /** What to change; the desired membership is the value it maps to in the pending set. */
+    record Change(String realmId, String userId, Kind kind, String targetId) {
+    }
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final ScheduledExecutorService worker;
+    private final Map<Change, Boolean> pending = new ConcurrentHashMap<>();
+    /** Changes of the batch being applied, whose outcome is not visible to token requests yet. */
+    private final Set<Change> applying = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong applied = new AtomicLong();
+
+    WaldurReconciliationQueue(KeycloakSessionFactory sessionFactory, long flushIntervalMillis) {
+        this.sessionFactory = sessionFactory;
+        this.worker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "waldur-reconciliation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        worker.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** The queue of one mapper, made on first use and shut down when the mapper is closed. */
+    static final class Holder {
+        private volatile WaldurReconciliationQueue queue;
+
+        WaldurReconciliationQueue get(KeycloakSessionFactory sessionFactory) {
+            WaldurReconciliationQueue current = queue;
+            if (current == null) {
+                synchronized (this) {
+                    current = queue;
+                    if (current == null) {
+                        current = new WaldurReconciliationQueue(sessionFactory, FLUSH_INTERVAL_MILLIS);
+                        queue = current;
+                    }
+                }
+            }
+            return current;
+        }
+
+        synchronized void close() {
+            if (queue != null) {
+                queue.close();
+                queue = null;
+            }
+        }
+    }
+
+    /** Whether a change for the same user and group or role is queued or being applied. */
+    boolean isPending(Change change) {
+        return pending.containsKey(change) || applying.contains(change);
+    }
+
+    void enqueue(Change change, boolean member) {
+        if (pending.put(change, member) != null) {
+            coalesced.incrementAndGet();
+        }
+        // One early flush drains everything queued until it runs, so at most one is waiting at a time.
+        if (pending.size() >= MAX_BATCH_SIZE && flushRequested.compareAndSet(false, true)) {
+            worker.execute(() -> {
+                flushRequested.set(false);
+                flush();
+            });
+        }
+    }
+
+    /** Apply everything pending; runs on the worker thread only, or in tests. */
+    void flush() {
+        while (!pending.isEmpty()) {
+            Map<Change, Boolean> batch = new LinkedHashMap<>();
+            Iterator<Map.Entry<Change, Boolean>> entries = pending.entrySet().iterator();
+            while (entries.hasNext() && batch.size() < MAX_BATCH_SIZE) {
+                Map.Entry<Change, Boolean> entry = entries.next();
+                // Only take the entry if nobody replaced it meanwhile; a newer decision waits for the next batch.
+                if (pending.remove(entry.getKey(), entry.getValue())) {
+                    batch.put(entry.getKey(), entry.getValue());
+                    applying.add(entry.getKey());
+                }
+            }
+            try {
+                WaldurTracing.batch(batch.size(),
+                        () -> KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> apply(session, batch)));
+                applied.addAndGet(batch.size());
+                LOGGER.debugf("Applied %d membership changes, %s", batch.size(), this);
+            } catch (RuntimeException e) {
+                LOGGER.error(String.format("Failed to apply %d membership changes", batch.size()), e);
+            } finally {
+                applying.removeAll(batch.keySet());
+            }
+        }
+    }
+
+    /** Stop the worker; changes still pending are dropped. */
+    void close() {
+        worker.shutdownNow();
+    }
+
+    private static void apply(KeycloakSession session, Map<Change, Boolean> batch) {
+        batch.forEach((change, member) -> {
+            RealmModel realm = session.realms().getRealm(change.realmId());
+            UserModel user = realm == null ? null : session.users().getUserById(realm, change.userId());
+            if (user == null) {
+                return;
+            }
+            if (change.kind() == Kind.GROUP) {
+                GroupModel group = realm.getGroupById(change.targetId());
+                if (group == null || !WaldurMembership.needsGroupChange(user, group, member)) {
+                    return;
+                }
+                if (member) {
+                    LOGGER.info(String.format("Adding user %s to group %s", user.getUsername(), group.getName()));
+                    WaldurTracing.write("joinGroup", group.getId(), () -> user.joinGroup(group));
+                } else {
+                    LOGGER.info(String.format("Removing user %s from group %s", user.getUsername(), group.getName()));
+                    WaldurTracing.write("leaveGroup", group.getId(), () -> user.leaveGroup(group));
+                }
+                WaldurMetrics.membershipWrite(change.kind(), member, "background");
+            } else {
+                RoleModel role = realm.getRoleById(change.targetId());
+                if (role == null || !WaldurMembership.needsRoleChange(user, role, member)) {
+                    return;
+                }
+                if (member) {
+                    LOGGER.info(String.format("Granting a role %s to a user %s", role.getName(), user.getUsername()));
+                    WaldurTracing.write("grantRole", role.getId(), () -> user.grantRole(role));
+                } else {
+                    LOGGER.info(String.format("Revoking role %s for user %s", role.getName(), user.getUsername()));
+                    WaldurTracing.write("deleteRoleMapping", role.getId(), () -> user.deleteRoleMapping(role));
+                }
+                WaldurMetrics.membershipWrite(change.kind(), member, "background");
+            }
+        });
+    }
+
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    long getCoalesced() {
+        return coalesced.get();
+    }
+
+    long getApplied() {
+        return applied.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("pending=%d coalesced=%d applied=%d", getPendingCount(), getCoalesced(), getApplied());
+    }
+}
@@ -0,0 +1,183 @@
+package org.waldur.keycloak.mapper;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.ClientSessionContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.protocol.ProtocolMapper;
+import org.keycloak.protocol.oidc.mappers.AbstractOIDCProtocolMapper;
+import org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper;
+import org.keycloak.provider.ProviderFactory;
+
+/**
+ * Per token request state for the Waldur mappers, kept as attributes on the
+ * {@link ClientSessionContext}. Keycloak calls {@code setClaim} once for each of the access
+ * token, the ID token and userinfo; storing results here lets the first call do the Waldur round
+ * trip (and any group/role reconciliation) and the others reuse it.
+ *
+ * The first Waldur mapper to run for a token also starts the lookups of every other Waldur
+ * mapper that adds a claim to that token, so their round trips overlap and token latency is that of the
+ * slowest lookup rather than the sum of all of them. Waiting for those lookups is capped by a
+ * latency budget that starts with the first wait and is shared by all mappers of the request.
+ */
+final class WaldurRequestScope {
+
+    private static final Logger LOGGER = Logger.getLogger(WaldurRequestScope.class.getName());
+
+    private static final String RESULT_ATTRIBUTE_PREFIX = "waldur.mapper.result.";
+    private static final String LOOKUP_ATTRIBUTE_PREFIX = "waldur.mapper.lookup.";
+    private static final String PREFETCHED_ATTRIBUTE = "waldur.mapper.prefetched.";
+    private static final String DEADLINE_ATTRIBUTE = "waldur.mapper.deadline";
+    private static final String TOKEN_ATTRIBUTE = "waldur.mapper.token";
+
+    /** The token being built, which decides the mappers whose lookups are started together. */
+    enum Token {
+        ACCESS,
+        ID,
+        USERINFO;
+
+        /** Whether Keycloak runs the mapper for this token, as {@link AbstractOIDCProtocolMapper} decides. */
+        boolean includes(KeycloakSession session, ProtocolMapperModel model) {
+            return switch (this) {
+                case ACCESS -> AbstractOIDCProtocolMapper.getShouldUseLightweightToken(session)
+                        ? OIDCAttributeMapperHelper.includeInLightweightAccessToken(model)
+                        : OIDCAttributeMapperHelper.includeInAccessToken(model);
+                case ID -> OIDCAttributeMapperHelper.includeInIDToken(model);
+                case USERINFO -> OIDCAttributeMapperHelper.includeInUserInfo(model);
+            };
+        }
+    }
+
+    private WaldurRequestScope() {
+    }
+
+    /** Note the token the mappers are about to add their claims to; called before each {@code setClaim}. */
+    static void building(ClientSessionContext clientSessionCtx, Token token) {
+        if (clientSessionCtx != null) {
+            clientSessionCtx.setAttribute(TOKEN_ATTRIBUTE, token);
+        }
+    }
+
+    /**
+     * Return the value computed for this mapper earlier in the same request, or compute it now.
+     * Null results are remembered too. Without a session context every call computes.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T memoize(ClientSessionContext clientSessionCtx, ProtocolMapperModel mappingModel,
+            Supplier<T> supplier) {
+        if (clientSessionCtx == null) {
+            return supplier.get();
+        }
+        String attribute = RESULT_ATTRIBUTE_PREFIX + mapperKey(mappingModel);
+        Optional<T> memo = clientSessionCtx.getAttribute(attribute, Optional.class);
+        if (memo != null) {
+            return memo.orElse(null);
+        }
+        T value = supplier.get();
+        clientSessionCtx.setAttribute(attribute, Optional.ofNullable(value));
+        return value;
+    }
+
+    /**
+     * Return the lookup running for this mapper in the current request, starting the lookups of
+     * the other Waldur mappers of the token being built first if nobody has done so yet. Mappers
+     * that do not add a claim to that token are left alone.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> CompletableFuture<T> lookup(KeycloakSession keycloakSession, ClientSessionContext clientSessionCtx,
+            UserSessionModel userSession, ProtocolMapperModel mappingModel, WaldurLookupMapper mapper) {
+        WaldurClusterCache.listen(keycloakSession);
+        if (clientSessionCtx == null) {
+            return (CompletableFuture<T>) mapper.lookupAsync(keycloakSession, mappingModel, userSession);
+        }
+        Token token = clientSessionCtx.getAttribute(TOKEN_ATTRIBUTE, Token.class);
+        if (token != null && clientSessionCtx.getAttribute(PREFETCHED_ATTRIBUTE + token, Boolean.class) == null) {
+            clientSessionCtx.setAttribute(PREFETCHED_ATTRIBUTE + token, Boolean.TRUE);
+            prefetch(keycloakSession, clientSessionCtx, userSession, token);
+        }
+        String attribute = LOOKUP_ATTRIBUTE_PREFIX + mapperKey(mappingModel);
+        CompletableFuture<T> lookup = clientSessionCtx.getAttribute(attribute, CompletableFuture.class);
+        if (lookup == null) {
+            lookup = (CompletableFuture<T>) mapper.lookupAsync(keycloakSession, mappingModel, userSession);
+            clientSessionCtx.setAttribute(attribute, lookup);
+        }
+        return lookup;
+    }
+
+    /**
+     * Wait for a lookup within what is left of the request's latency budget. When the budget runs
+     * out, or the lookup fails because Waldur is unavailable, {@code fallback} supplies the value
+     * instead; it may return null to skip the claim. A budget of 0 or less waits without limit.
+     * The lookup itself keeps running, so a late answer still lands in the mapper's cache.
+     */
+    static <T> T await(ClientSessionContext clientSessionCtx, CompletableFuture<T> lookup, long budgetMillis,
+            Supplier<T> fallback) {
+        try {
+            if (budgetMillis <= 0) {
+                return lookup.get();
+            }
+            long remainingNanos = deadline(clientSessionCtx, budgetMillis) - System.nanoTime();
+            return lookup.get(Math.max(0, remainingNanos), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            WaldurMetrics.timeout("budget");
+            LOGGER.warnf("Waldur lookup exceeded the token latency budget of %d ms", budgetMillis);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof WaldurUnavailableException) {
+                LOGGER.warn(e.getCause().getMessage());
+            } else {
+                LOGGER.error(e.getMessage(), e);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return fallback.get();
+    }
+
+    private static long deadline(ClientSessionContext clientSessionCtx, long budgetMillis) {
+        if (clientSessionCtx == null) {
+            return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        }
+        Long deadline = clientSessionCtx.getAttribute(DEADLINE_ATTRIBUTE, Long.class);
+        if (deadline == null) {
+            deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+            clientSessionCtx.setAttribute(DEADLINE_ATTRIBUTE, deadline);
+        }
+        return deadline;
+    }
+
+    private static void prefetch(KeycloakSession keycloakSession, ClientSessionContext clientSessionCtx,
+            UserSessionModel userSession, Token token) {
+        KeycloakSessionFactory sessionFactory = keycloakSession.getKeycloakSessionFactory();
+        clientSessionCtx.getProtocolMappersStream().forEach(model -> {
+            String attribute = LOOKUP_ATTRIBUTE_PREFIX + mapperKey(model);
+            if (clientSessionCtx.getAttribute(attribute, CompletableFuture.class) != null
+                    || !token.includes(keycloakSession, model)) {
+                return;
+            }
+            ProviderFactory<ProtocolMapper> factory =
+                    sessionFactory.getProviderFactory(ProtocolMapper.class, model.getProtocolMapper());
+            if (factory instanceof WaldurLookupMapper) {
+                try {
+                    clientSessionCtx.setAttribute(attribute,
+                            ((WaldurLookupMapper) factory).lookupAsync(keycloakSession, model, userSession));
+                } catch (RuntimeException e) {
+                    // Leave it to the mapper's own setClaim to retry and report.
+                    LOGGER.error(e.getMessage(), e);
+                }
+            }
+        });
+    }
+
+    private static String mapperKey(ProtocolMapperModel mappingModel) {
+        return mappingModel.getId() != null ? mappingModel.getId() : mappingModel.getName();
+    }
+}
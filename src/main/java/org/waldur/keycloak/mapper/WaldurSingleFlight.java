@@ -0,0 +1,47 @@
+package org.waldur.keycloak.mapper;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Collapses concurrent calls for the same key into one. The first caller starts the call;
+ * callers arriving while it is still running get the same future. Nothing is remembered once
+ * the call completes, so this sits happily below a result cache or without one.
+ */
+final class WaldurSingleFlight<K, V> {
+
+    private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong shared = new AtomicLong();
+
+    CompletableFuture<V> execute(K key, Supplier<CompletableFuture<V>> call) {
+        CompletableFuture<V> result = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, result);
+        if (running != null) {
+            shared.incrementAndGet();
+            return running;
+        }
+        try {
+            call.get().whenComplete((value, error) -> {
+                inFlight.remove(key, result);
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(value);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(key, result);
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /** Number of callers that were served by another caller's request. */
+    long getShared() {
+        return shared.get();
+    }
+}
@@ -0,0 +1,144 @@
+package org.waldur.keycloak.mapper;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.util.function.Supplier;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.tracing.TracingProvider;
+
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
+
+/**
+ * OpenTelemetry spans of the mappers: one per claim, one per Waldur call and its parsing, and one
+ * per group or role write. Spans are made with Keycloak's tracer, taken from its
+ * {@link TracingProvider} on the first token, so they join Keycloak's own traces when tracing is
+ * enabled ({@code --tracing-enabled=true}) and cost next to nothing when it is not.
+ *
+ * Spans are children of the current context. Work continuing on the HTTP client's threads must
+ * carry the caller's context over, e.g. with {@link Context#wrapFunction}.
+ */
+final class WaldurTracing {
+
+    static final String INSTRUMENTATION_NAME = "org.waldur.keycloak.mapper";
+
+    static final AttributeKey<String> MAPPER_ID = AttributeKey.stringKey("waldur.mapper.id");
+    static final AttributeKey<String> URL_TEMPLATE = AttributeKey.stringKey("url.template");
+    static final AttributeKey<String> HTTP_METHOD = AttributeKey.stringKey("http.request.method");
+    static final AttributeKey<Long> HTTP_STATUS = AttributeKey.longKey("http.response.status_code");
+    static final AttributeKey<String> SERVER_ADDRESS = AttributeKey.stringKey("server.address");
+    static final AttributeKey<Long> SERVER_PORT = AttributeKey.longKey("server.port");
+    static final AttributeKey<String> TARGET_ID = AttributeKey.stringKey("waldur.membership.target");
+    static final AttributeKey<Long> BATCH_SIZE = AttributeKey.longKey("waldur.reconciliation.batch_size");
+
+    private static volatile Tracer tracer = OpenTelemetry.noop().getTracer(INSTRUMENTATION_NAME);
+    private static volatile boolean attached;
+
+    private WaldurTracing() {
+    }
+
+    /** Use Keycloak's tracer from now on; only the first call that finds a tracing provider does anything. */
+    static void attach(KeycloakSession session) {
+        if (attached || session == null) {
+            return;
+        }
+        TracingProvider provider = session.getProvider(TracingProvider.class);
+        if (provider != null) {
+            tracer = provider.getTracer(INSTRUMENTATION_NAME);
+            attached = true;
+        }
+    }
+
+    /** Make spans with {@code tracer}, e.g. one of an in-memory SDK in tests. */
+    static void use(Tracer tracer) {
+        WaldurTracing.tracer = tracer;
+        attached = true;
+    }
+
+    /** The claim of a mapper, with the Waldur calls and writes it makes as children. */
+    static <T> T claim(KeycloakSession session, Class<?> mapperClass, ProtocolMapperModel mappingModel,
+            Supplier<T> claim) {
+        attach(session);
+        Span span = tracer.spanBuilder(mapperClass.getSimpleName() + ".setClaim")
+                .setAttribute(MAPPER_ID, WaldurConfigCache.mapperId(mappingModel))
+                .startSpan();
+        return inSpan(span, claim);
+    }
+
+    /** Parsing of a Waldur response of the endpoint. */
+    static <T> T parse(String endpoint, Supplier<T> parse) {
+        return inSpan(tracer.spanBuilder("WaldurHttpClient.parse").setAttribute(URL_TEMPLATE, endpoint).startSpan(),
+                parse);
+    }
+
+    /** A group or role membership change; {@code name} is e.g. "joinGroup". */
+    static void write(String name, String targetId, Runnable write) {
+        inSpan(tracer.spanBuilder("WaldurMembership." + name).setAttribute(TARGET_ID, targetId).startSpan(), () -> {
+            write.run();
+            return null;
+        });
+    }
+
+    /** A batch of queued membership changes, applied in a transaction of its own outside any request. */
+    static void batch(int size, Runnable apply) {
+        inSpan(tracer.spanBuilder("WaldurReconciliationQueue.flush").setNoParent()
+                .setAttribute(BATCH_SIZE, (long) size).startSpan(), () -> {
+                    apply.run();
+                    return null;
+                });
+    }
+
+    /**
+     * Start the client span of a GET to the endpoint and add its {@code traceparent} to the
+     * request, so Waldur's spans of the call join the trace. The caller ends the span.
+     */
+    static Span startRequest(URI uri, String endpoint, HttpRequest.Builder request) {
+        Span span = tracer.spanBuilder("GET")
+                .setSpanKind(SpanKind.CLIENT)
+                .setAttribute(HTTP_METHOD, "GET")
+                .setAttribute(URL_TEMPLATE, endpoint)
+                .setAttribute(SERVER_ADDRESS, uri.getHost())
+                .setAttribute(SERVER_PORT, (long) (uri.getPort() >= 0 ? uri.getPort()
+                        : "https".equals(uri.getScheme()) ? 443 : 80))
+                .startSpan();
+        W3CTraceContextPropagator.getInstance()
+                .inject(Context.current().with(span), request, HttpRequest.Builder::setHeader);
+        return span;
+    }
+
+    /** End the client span with the response status, or with the error when there was no response. */
+    static void endRequest(Span span, int statusCode, Throwable error) {
+        if (error != null) {
+            span.recordException(error);
+            span.setStatus(StatusCode.ERROR, error.getMessage());
+        } else {
+            span.setAttribute(HTTP_STATUS, (long) statusCode);
+            if (statusCode >= 400) {
+                span.setStatus(StatusCode.ERROR);
+            }
+        }
+        span.end();
+    }
+
+    @SuppressWarnings("try")
+    private static <T> T inSpan(Span span, Supplier<T> work) {
+        try (Scope scope = span.makeCurrent()) {
+            return work.get();
+        } catch (RuntimeException e) {
+            span.recordException(e);
+            span.setStatus(StatusCode.ERROR, e.getMessage());
+            throw e;
+        } finally {
+            span.end();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package org.waldur.keycloak.mapper;
+
+/**
+ * Completes a lookup future when Waldur was not called at all because the circuit breaker for
+ * the endpoint is open. Mappers treat it as "answer unknown" rather than as a negative answer.
+ */
+class WaldurUnavailableException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    WaldurUnavailableException(String endpoint) {
+        super(String.format("Circuit breaker for %s is open", endpoint));
+    }
+}
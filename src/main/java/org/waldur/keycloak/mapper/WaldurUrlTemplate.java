@@ -0,0 +1,15 @@
+package org.waldur.keycloak.mapper;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A Waldur URL with everything but the username filled in, built once per mapper configuration
+ * so that a token only pays for encoding the username.
+ */
+record WaldurUrlTemplate(String prefix, String suffix) {
+
+    String forUser(String username) {
+        return prefix + URLEncoder.encode(username, StandardCharsets.UTF_8) + suffix;
+    }
+}
@@ -0,0 +1,201 @@
+package org.waldur.keycloak.mapper;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.jboss.logging.Logger;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * Last known Waldur result of a mapper for a user, kept in the user's attributes so that it
+ * survives restarts and is shared by all cluster nodes through the database. Each mapper owns
+ * two attributes: {@code waldur.cache.<mapper id>} with the value, and
+ * {@code waldur.cache.<mapper id>.meta} with the fetch time and an HMAC, made with the realm's
+ * {@code HS512} key, of the user, the mapper, a fingerprint of its configuration, the fetch time
+ * and the value. A value whose HMAC does not match is ignored, whether edited by the user,
+ * copied from another user or stored under an older configuration. Users could still delete
+ * their result or put back one they had earlier, so the realm must not let them edit unmanaged
+ * attributes, and a stored result stands in for an unavailable Waldur for at most
+ * {@link #MAX_FALLBACK_AGE}, or the freshness window if that is longer.
+ *
+ * Only results fetched from Waldur during the request are stored, with the time they arrived.
+ * A value read back from the attribute or a cache, or standing in for an unavailable Waldur, is
+ * never stored again, so a stored result grows old until Waldur is actually asked. Writes happen
+ * only when the value changes or half of the freshness window has passed, to keep database
+ * writes off most token requests.
+ */
+final class WaldurUserAttributeCache {
+
+    private static final Logger LOGGER = Logger.getLogger(WaldurUserAttributeCache.class.getName());
+
+    /**
+     * The oldest stored result used while Waldur is unavailable, unless the freshness window is
+     * longer still.
+     */
+    static final Duration MAX_FALLBACK_AGE = Duration.ofHours(24);
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final String ATTRIBUTE_PREFIX = "waldur.cache.";
+    private static final String META_SUFFIX = ".meta";
+    private static final String FETCHED_ATTRIBUTE_PREFIX = "waldur.mapper.fetched.";
+
+    private record Fetched(String value, long fetchedAt) {
+    }
+
+    private WaldurUserAttributeCache() {
+    }
+
+    /**
+     * The stored value when it is younger than {@code maxAgeMillis} and was stored by this mapper
+     * under its current config, or null.
+     */
+    static String read(KeycloakSession session, UserModel user, WaldurMapperConfig config, long maxAgeMillis) {
+        String name = ATTRIBUTE_PREFIX + config.mapperId();
+        String value = user.getFirstAttribute(name);
+        long fetchedAt = verifiedFetchedAt(session, user, config, value, user.getFirstAttribute(name + META_SUFFIX));
+        if (fetchedAt < 0 || System.currentTimeMillis() - fetchedAt >= maxAgeMillis) {
+            return null;
+        }
+        return value;
+    }
+
+    /**
+     * The stored value to use while Waldur is unavailable: as {@link #read}, up to the freshness
+     * window or {@link #MAX_FALLBACK_AGE}, whichever is longer.
+     */
+    static String readFallback(KeycloakSession session, UserModel user, WaldurMapperConfig config) {
+        return read(session, user, config, Math.max(config.persistTtlMillis(), MAX_FALLBACK_AGE.toMillis()));
+    }
+
+    /**
+     * Note the value {@code fetch} completes with as fetched from Waldur for the user during this
+     * request, for {@link #writeFetched}. Call it where the mapper actually asks Waldur.
+     */
+    static CompletableFuture<String> fetching(KeycloakSession session, WaldurMapperConfig config, UserModel user,
+            CompletableFuture<String> fetch) {
+        return fetching(session, config, user, fetch, () -> true);
+    }
+
+    /**
+     * As above, for a fetch that may take part of its value from a cache; {@code fromWaldur} tells
+     * once it is done whether all of it came from Waldur.
+     */
+    static CompletableFuture<String> fetching(KeycloakSession session, WaldurMapperConfig config, UserModel user,
+            CompletableFuture<String> fetch, BooleanSupplier fromWaldur) {
+        if (session == null || config.persistTtlMillis() <= 0) {
+            return fetch;
+        }
+        AtomicReference<Fetched> fetched = new AtomicReference<>();
+        session.setAttribute(fetchedAttribute(config, user), fetched);
+        return fetch.thenApply(value -> {
+            if (value != null && fromWaldur.getAsBoolean()) {
+                fetched.set(new Fetched(value, System.currentTimeMillis()));
+            }
+            return value;
+        });
+    }
+
+    /** Store the result fetched from Waldur for the user during this request, if there is one. */
+    static void writeFetched(KeycloakSession session, UserModel user, WaldurMapperConfig config) {
+        if (session == null || config.persistTtlMillis() <= 0) {
+            return;
+        }
+        AtomicReference<?> holder = session.getAttribute(fetchedAttribute(config, user), AtomicReference.class);
+        if (holder != null && holder.get() instanceof Fetched fetched) {
+            write(session, user, config, fetched.value(), fetched.fetchedAt());
+        }
+    }
+
+    private static String fetchedAttribute(WaldurMapperConfig config, UserModel user) {
+        return FETCHED_ATTRIBUTE_PREFIX + config.mapperId() + "." + user.getId();
+    }
+
+    /**
+     * Store the value fetched at {@code fetchedAt}, unless the same value was stored under this
+     * config from a fetch less than half of its freshness window earlier. Nothing is stored when
+     * the realm has no {@code HS512} key to sign it with.
+     */
+    static void write(KeycloakSession session, UserModel user, WaldurMapperConfig config, String value,
+            long fetchedAt) {
+        String name = ATTRIBUTE_PREFIX + config.mapperId();
+        String stored = user.getFirstAttribute(name);
+        long storedFetchedAt = verifiedFetchedAt(session, user, config, stored,
+                user.getFirstAttribute(name + META_SUFFIX));
+        if (storedFetchedAt >= 0 && fetchedAt - storedFetchedAt < config.persistTtlMillis() / 2
+                && value.equals(stored)) {
+            return;
+        }
+        RealmModel realm = session.getContext().getRealm();
+        KeyWrapper key;
+        try {
+            key = session.keys().getActiveKey(realm, KeyUse.SIG, Algorithm.HS512);
+        } catch (RuntimeException e) {
+            key = null;
+        }
+        if (key == null || key.getSecretKey() == null) {
+            LOGGER.warnf("Realm %s has no active HS512 key, not storing Waldur results for users", realm.getName());
+            return;
+        }
+        String mac = mac(key.getSecretKey(), user, config, fetchedAt, value);
+        user.setSingleAttribute(name, value);
+        user.setSingleAttribute(name + META_SUFFIX, fetchedAt + "/" + mac + "/" + key.getKid());
+    }
+
+    /**
+     * Fetch time from the meta attribute, or -1 when it is missing or unreadable, or its HMAC does
+     * not match the value, the user and the mapper's current config under the realm key it names.
+     */
+    private static long verifiedFetchedAt(KeycloakSession session, UserModel user, WaldurMapperConfig config,
+            String value, String meta) {
+        if (value == null || meta == null) {
+            return -1;
+        }
+        String[] parts = meta.split("/", 3);
+        if (parts.length < 3) {
+            return -1;
+        }
+        long fetchedAt;
+        try {
+            fetchedAt = Long.parseLong(parts[0]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        KeyWrapper key = session.keys().getKey(session.getContext().getRealm(), parts[2], KeyUse.SIG,
+                Algorithm.HS512);
+        if (key == null || key.getSecretKey() == null) {
+            return -1;
+        }
+        String expected = mac(key.getSecretKey(), user, config, fetchedAt, value);
+        boolean matches = MessageDigest.isEqual(expected.getBytes(StandardCharsets.US_ASCII),
+                parts[1].getBytes(StandardCharsets.US_ASCII));
+        return matches ? fetchedAt : -1;
+    }
+
+    private static String mac(SecretKey key, UserModel user, WaldurMapperConfig config, long fetchedAt, String value) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key.getEncoded(), MAC_ALGORITHM));
+            String signed = String.join("\n", user.getId(), config.mapperId(), config.fingerprint(),
+                    Long.toString(fetchedAt), value);
+            return Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString(mac.doFinal(signed.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
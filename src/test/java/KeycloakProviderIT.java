@@ -23,7 +23,7 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 /**
  * Boots Keycloak in a container with the freshly-built shaded JAR mounted as a provider
  * (mirroring how waldur-docker-compose deploys it), then queries the admin REST API
- * to confirm all three Waldur protocol mappers are registered.
+ * to confirm all four Waldur protocol mappers are registered.
  *
  * Skipped automatically when Docker is unavailable (e.g. CI without docker:dind), so it
  * never breaks `mvn install` runs that don't have a container runtime.
@@ -68,6 +68,8 @@ class KeycloakProviderIT {
                 "Offering access mapper not registered. Available: " + registered);
         assertTrue(registered.contains("oidc-waldurusernamemapper"),
                 "Username mapper not registered. Available: " + registered);
+        assertTrue(registered.contains("oidc-waldur-multi-offering-access-mapper"),
+                "Multi-offering access mapper not registered. Available: " + registered);
     }
 
     private static String fetchAdminToken(String authBase) throws Exception {
@@ -0,0 +1,102 @@
+package org.waldur.keycloak.mapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OfferingUserIndexTest {
+
+    private static final List<String> PAGES = List.of(
+            "[{\"user_username\":\"alice\",\"username\":\"alice_hpc\"},"
+                    + "{\"user_username\":\"bob\",\"username\":\"bob_hpc\"}]",
+            "[{\"user_username\":\"carol\",\"username\":\"carol_hpc\"}]");
+
+    private HttpServer server;
+    private String waldurUrl;
+    private final AtomicBoolean failing = new AtomicBoolean();
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/marketplace-offering-users/", this::respond);
+        server.start();
+        waldurUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/api/";
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+        WaldurHttpClientRegistry.clear();
+    }
+
+    @Test
+    void sync_indexesEveryPage() {
+        OfferingUserIndex index = newIndex();
+
+        index.sync();
+
+        assertEquals(3, index.size());
+        assertEquals("alice_hpc", index.lookup("alice"));
+        assertEquals("carol_hpc", index.lookup("carol"));
+        assertNull(index.lookup("dave"));
+    }
+
+    @Test
+    void sync_keepsThePreviousIndexWhenWaldurFails() {
+        OfferingUserIndex index = newIndex();
+        index.sync();
+
+        failing.set(true);
+        index.sync();
+
+        assertEquals("bob_hpc", index.lookup("bob"));
+    }
+
+    @Test
+    void syncUnlessIdle_dropsAnIndexNobodyLooksUp() {
+        OfferingUserIndex index = OfferingUserIndex.forMapper("idle", waldurUrl, "offering", "token", true,
+                WaldurCallPolicy.DEFAULT, 3600);
+        try {
+            index.lookup("alice");
+            index.syncUnlessIdle("idle", TimeUnit.HOURS.toNanos(1));
+            assertTrue(OfferingUserIndex.isRunning("idle"));
+            assertEquals("carol_hpc", index.lookup("carol"));
+
+            index.syncUnlessIdle("idle", 0);
+            assertFalse(OfferingUserIndex.isRunning("idle"));
+        } finally {
+            OfferingUserIndex.remove("idle");
+        }
+    }
+
+    private OfferingUserIndex newIndex() {
+        return new OfferingUserIndex(waldurUrl, "offering", "token", true, WaldurCallPolicy.DEFAULT, 2);
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getQuery();
+        int page = Integer.parseInt(query.replaceAll(".*&page=(\\d+).*", "$1"));
+        byte[] body = page <= PAGES.size() ? PAGES.get(page - 1).getBytes(StandardCharsets.UTF_8) : new byte[0];
+        exchange.getResponseHeaders().add("X-Result-Count", "3");
+        exchange.sendResponseHeaders(failing.get() ? 500 : 200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.waldur.keycloak.mapper;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.Inflater;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ScopeClaimEncodingTest {
+
+    private static final String FIRST = "5f0f3b2e8c1d4e6fa2b3c4d5e6f70819";
+    private static final String SECOND = "0b6d2f4e-1a3c-4e5f-9a7b-8c9d0e1f2a3b";
+    private static final String SCOPES = FIRST + "," + SECOND;
+
+    @Test
+    void string_isUnchanged() {
+        assertEquals(SCOPES, ScopeClaimEncoding.STRING.encode(SCOPES));
+    }
+
+    @Test
+    void json_isAListOfScopes() {
+        assertEquals(List.of(FIRST, SECOND), ScopeClaimEncoding.JSON.encode(SCOPES));
+    }
+
+    @Test
+    void base64url_packsSixteenBytesPerUuid() {
+        String encoded = (String) ScopeClaimEncoding.BASE64URL.encode(SCOPES);
+
+        assertEquals(List.of(ScopeClaimEncoding.parseUuid(FIRST), UUID.fromString(SECOND)),
+                unpack(Base64.getUrlDecoder().decode(encoded)));
+        assertEquals(43, encoded.length(), "two UUIDs are 32 bytes, 43 base64url characters");
+        assertTrue(encoded.length() < SCOPES.length());
+    }
+
+    @Test
+    void base64urlDeflate_roundTrips() throws Exception {
+        String encoded = (String) ScopeClaimEncoding.BASE64URL_DEFLATE.encode(SCOPES);
+
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(Base64.getUrlDecoder().decode(encoded));
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+        byte[] chunk = new byte[64];
+        while (!inflater.finished()) {
+            inflated.write(chunk, 0, inflater.inflate(chunk));
+        }
+        inflater.end();
+
+        assertEquals(List.of(ScopeClaimEncoding.parseUuid(FIRST), UUID.fromString(SECOND)),
+                unpack(inflated.toByteArray()));
+    }
+
+    @Test
+    void binaryEncodings_fallBackToStringForNonUuidScopes() {
+        assertEquals("c1,c2", ScopeClaimEncoding.BASE64URL.encode("c1,c2"));
+    }
+
+    @Test
+    void fromConfig_defaultsToString() {
+        assertEquals(ScopeClaimEncoding.STRING, ScopeClaimEncoding.fromConfig(null));
+        assertEquals(ScopeClaimEncoding.BASE64URL_DEFLATE, ScopeClaimEncoding.fromConfig("base64url-deflate"));
+    }
+
+    private static List<UUID> unpack(byte[] packed) {
+        ByteBuffer buffer = ByteBuffer.wrap(packed);
+        List<UUID> uuids = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            uuids.add(new UUID(buffer.getLong(), buffer.getLong()));
+        }
+        return uuids;
+    }
+}
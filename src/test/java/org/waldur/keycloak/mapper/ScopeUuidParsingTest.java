@@ -0,0 +1,63 @@
+package org.waldur.keycloak.mapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ScopeUuidParsingTest {
+
+    @Test
+    void parseScopeUuids_extractsScopeUuidsAndSkipsOtherFields() {
+        String body = "[{\"scope_uuid\":\"c1\",\"role\":{\"name\":\"owner\",\"tags\":[1,2]}},"
+                + "{\"user\":\"alice\",\"scope_uuid\":\"c2\"}]";
+
+        assertEquals(List.of("c1", "c2"), WaldurOIDCMinIOMapper.parseScopeUuids(stream(body)));
+    }
+
+    @Test
+    void parseScopeUuids_returnsEmptyForNoPermissions() {
+        assertEquals(List.of(), WaldurOIDCMinIOMapper.parseScopeUuids(stream("[]")));
+    }
+
+    @Test
+    void parseScopeUuids_rejectsUnexpectedPayloads() {
+        assertNull(WaldurOIDCMinIOMapper.parseScopeUuids(stream("{\"detail\":\"Not found.\"}")));
+        assertNull(WaldurOIDCMinIOMapper.parseScopeUuids(stream("[{\"scope_uuid\":")));
+    }
+
+    @Test
+    void parsers_rejectListsThatAreNotAllPermissionObjects() {
+        String nonObject = "[{\"scope_type\":\"customer\",\"scope_uuid\":\"c1\"},\"c2\",{\"scope_uuid\":\"c3\"}]";
+        String unterminated = "[{\"scope_type\":\"customer\",\"scope_uuid\":\"c1\"}";
+
+        assertNull(WaldurOIDCMinIOMapper.parseScopeUuids(stream(nonObject)));
+        assertNull(WaldurOIDCMinIOMapper.parseScopeUuids(stream(unterminated)));
+        assertNull(WaldurOIDCMinIOMapper.parseScopes(stream(nonObject)));
+        assertNull(WaldurOIDCMinIOMapper.parseScopes(stream(unterminated)));
+    }
+
+    @Test
+    void parseScopes_partitionsCustomersAndProjectsInOnePass() {
+        String body = "[{\"scope_type\":\"customer\",\"scope_uuid\":\"c1\"},"
+                + "{\"scope_uuid\":\"p1\",\"scope_type\":\"project\"},"
+                + "{\"scope_type\":\"offering\",\"scope_uuid\":\"o1\"},"
+                + "{\"scope_type\":\"project\",\"scope_uuid\":\"p2\"}]";
+
+        List<WaldurOIDCMinIOMapper.Scope> scopes = WaldurOIDCMinIOMapper.parseScopes(stream(body));
+
+        assertEquals(4, scopes.size());
+        assertEquals("c1;p1,p2", scopes.stream().collect(WaldurOIDCMinIOMapper.CUSTOMERS_AND_PROJECTS));
+        assertEquals(";", List.<WaldurOIDCMinIOMapper.Scope>of().stream()
+                .collect(WaldurOIDCMinIOMapper.CUSTOMERS_AND_PROJECTS));
+    }
+
+    private static InputStream stream(String body) {
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,77 @@
+package org.waldur.keycloak.mapper;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class StaleWhileRevalidateCacheTest {
+
+    private static final long HOUR = 3_600_000;
+
+    @Test
+    void freshEntry_isServedWithoutCallingLoader() {
+        StaleWhileRevalidateCache<String, String> cache = new StaleWhileRevalidateCache<>("test", 10);
+        AtomicInteger loads = new AtomicInteger();
+        cache.get("alice", HOUR, HOUR, () -> CompletableFuture.completedFuture("v" + loads.incrementAndGet()))
+                .join();
+
+        assertEquals("v1", cache.get("alice", HOUR, HOUR,
+                () -> CompletableFuture.completedFuture("v" + loads.incrementAndGet())).join());
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void staleEntry_isServedWhileOneBackgroundRefreshRuns() {
+        StaleWhileRevalidateCache<String, String> cache = new StaleWhileRevalidateCache<>("test", 10);
+        cache.get("alice", HOUR, HOUR, () -> CompletableFuture.completedFuture("old")).join();
+
+        CompletableFuture<String> refresh = new CompletableFuture<>();
+        AtomicInteger refreshes = new AtomicInteger();
+        for (int i = 0; i < 5; i++) {
+            CompletableFuture<String> value = cache.get("alice", 0, HOUR, () -> {
+                refreshes.incrementAndGet();
+                return refresh;
+            });
+            assertEquals("old", value.getNow(null), "stale value must be served without waiting");
+        }
+        refresh.complete("new");
+
+        assertEquals(1, refreshes.get(), "only one refresh may run per key");
+        assertEquals(5, cache.getStaleHits());
+        assertEquals("new", cache.get("alice", HOUR, HOUR, () -> CompletableFuture.completedFuture("unused"))
+                .join());
+    }
+
+    @Test
+    void failedRefresh_keepsTheStaleEntryAndAllowsTheNextRefresh() {
+        StaleWhileRevalidateCache<String, String> cache = new StaleWhileRevalidateCache<>("test", 10);
+        cache.get("alice", HOUR, HOUR, () -> CompletableFuture.completedFuture("old")).join();
+
+        assertEquals("old", cache.get("alice", 0, HOUR,
+                () -> CompletableFuture.failedFuture(new IllegalStateException("timeout"))).join());
+        assertEquals("old", cache.get("alice", 0, HOUR, () -> {
+            throw new IllegalStateException("no client");
+        }).join());
+
+        AtomicInteger refreshes = new AtomicInteger();
+        assertEquals("old", cache.get("alice", 0, HOUR, () -> {
+            refreshes.incrementAndGet();
+            return CompletableFuture.completedFuture("new");
+        }).join());
+        assertEquals(1, refreshes.get());
+        assertEquals("new", cache.get("alice", HOUR, HOUR, () -> CompletableFuture.completedFuture("unused"))
+                .join());
+    }
+
+    @Test
+    void failedLoad_isNotCached() {
+        StaleWhileRevalidateCache<String, String> cache = new StaleWhileRevalidateCache<>("test", 10);
+
+        assertNull(cache.get("alice", HOUR, HOUR, () -> CompletableFuture.completedFuture(null)).join());
+        assertEquals("ok", cache.get("alice", HOUR, HOUR, () -> CompletableFuture.completedFuture("ok")).join());
+    }
+}
@@ -18,6 +18,15 @@ class UrlBuildingTest {
                 url);
     }
 
+    @Test
+    void minioMapper_buildsUnfilteredPermissionsUrl_forBothScopes() {
+        String url = WaldurOIDCMinIOMapper.buildPermissionsUrl(BASE_URL, "alice", "both");
+
+        assertEquals(
+                "https://waldur.example.com/api/user-permissions/?field=scope_type&field=scope_uuid&username=alice",
+                url);
+    }
+
     @Test
     void minioMapper_encodesUsernameWithSpecialChars() {
         String url = WaldurOIDCMinIOMapper.buildPermissionsUrl(BASE_URL, "alice+bob@example.com", "project");
@@ -63,4 +72,17 @@ class UrlBuildingTest {
         assertTrue(url.contains("user_username=a%26b"),
                 "ampersand in username must be percent-encoded so it doesn't end the query param, got: " + url);
     }
+
+    @Test
+    void endpointOf_groupsUrlsThatOnlyDifferInUuidsAndQuery() {
+        String first = WaldurHttpClient.endpointOf(WaldurOIDCOfferingAccessMapper.buildHasResourceAccessUrl(
+                BASE_URL, "5f0f3b2e8c1d4e6fa2b3c4d5e6f70819", "alice"));
+        String second = WaldurHttpClient.endpointOf(WaldurOIDCOfferingAccessMapper.buildHasResourceAccessUrl(
+                BASE_URL, "0b6d2f4e-1a3c-4e5f-9a7b-8c9d0e1f2a3b", "bob"));
+
+        assertEquals(
+                "https://waldur.example.com/api/marketplace-provider-offerings/{uuid}/user_has_resource_access/",
+                first);
+        assertEquals(first, second);
+    }
 }
@@ -0,0 +1,65 @@
+package org.waldur.keycloak.mapper;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class WaldurCacheTest {
+
+    private static final long TTL = 60_000;
+
+    @Test
+    void hit_returnsStoredValueAndCountsIt() {
+        WaldurCache<String, Boolean> cache = new WaldurCache<>(10);
+        cache.put("alice", true);
+
+        assertEquals(Boolean.TRUE, cache.get("alice", TTL));
+        assertEquals(1, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    void expiredEntry_isAMiss() {
+        WaldurCache<String, Boolean> cache = new WaldurCache<>(10);
+        cache.put("alice", true);
+
+        assertNull(cache.get("alice", 0));
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    void overCapacity_evictsLeastRecentlyUsed() {
+        WaldurCache<String, Boolean> cache = new WaldurCache<>(2);
+        cache.put("alice", true);
+        cache.put("bob", false);
+        cache.get("alice", TTL);
+
+        cache.put("carol", true);
+
+        assertEquals(Boolean.TRUE, cache.get("alice", TTL));
+        assertNull(cache.get("bob", TTL), "bob was least recently used and must have been evicted");
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    void overWeight_evictsLeastRecentlyUsedUntilItFits() {
+        WaldurCache<String, String> cache = new WaldurCache<>(10, 10, String::length);
+        cache.put("alice", "aaaa");
+        cache.put("bob", "bbbb");
+        cache.get("alice", TTL);
+
+        cache.put("carol", "cccccc");
+
+        assertEquals("aaaa", cache.get("alice", TTL));
+        assertNull(cache.get("bob", TTL), "bob was least recently used and must have been evicted");
+        assertEquals(10, cache.weight());
+
+        cache.put("alice", "a");
+        assertEquals(7, cache.weight());
+        cache.put("dave", "dddddddddddd");
+        assertNull(cache.get("dave", TTL), "a value heavier than the whole cache is not kept");
+        assertEquals(7, cache.weight());
+    }
+}
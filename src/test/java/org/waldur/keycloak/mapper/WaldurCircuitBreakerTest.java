@@ -0,0 +1,63 @@
+package org.waldur.keycloak.mapper;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WaldurCircuitBreakerTest {
+
+    private static final WaldurCallPolicy POLICY = new WaldurCallPolicy(3, 60_000);
+
+    @Test
+    void opensAfterConsecutiveFailuresAndFailsFast() {
+        WaldurCircuitBreaker breaker = new WaldurCircuitBreaker("test");
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(breaker.tryAcquire(POLICY));
+            breaker.onFailure(POLICY);
+        }
+
+        assertEquals(WaldurCircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire(POLICY));
+    }
+
+    @Test
+    void successResetsTheFailureCount() {
+        WaldurCircuitBreaker breaker = new WaldurCircuitBreaker("test");
+
+        breaker.onFailure(POLICY);
+        breaker.onFailure(POLICY);
+        breaker.onSuccess();
+        breaker.onFailure(POLICY);
+
+        assertEquals(WaldurCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void halfOpenLetsOneProbeThroughAndClosesOnSuccess() {
+        WaldurCallPolicy noWait = new WaldurCallPolicy(1, 0);
+        WaldurCircuitBreaker breaker = new WaldurCircuitBreaker("test");
+        breaker.onFailure(noWait);
+
+        assertTrue(breaker.tryAcquire(noWait), "the open period is over, so a probe goes out");
+        assertFalse(breaker.tryAcquire(noWait), "only one probe at a time");
+
+        breaker.onSuccess();
+        assertEquals(WaldurCircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire(noWait));
+    }
+
+    @Test
+    void failedProbeReopens() {
+        WaldurCallPolicy noWait = new WaldurCallPolicy(1, 0);
+        WaldurCircuitBreaker breaker = new WaldurCircuitBreaker("test");
+        breaker.onFailure(noWait);
+        breaker.tryAcquire(noWait);
+
+        breaker.onFailure(noWait);
+
+        assertEquals(WaldurCircuitBreaker.State.OPEN, breaker.getState());
+    }
+}
@@ -0,0 +1,116 @@
+package org.waldur.keycloak.mapper;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.infinispan.Cache;
+import org.infinispan.manager.DefaultCacheManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.cache.infinispan.events.CacheKeyInvalidatedEvent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WaldurClusterCacheTest {
+
+    private static final long MINUTE = 60_000;
+
+    private DefaultCacheManager cacheManager;
+    private Cache<String, String> cache;
+
+    private final AtomicInteger fetches = new AtomicInteger();
+
+    @BeforeEach
+    void startCacheManager() {
+        cacheManager = new DefaultCacheManager();
+        cache = WaldurClusterCache.createCache(cacheManager, false);
+    }
+
+    @AfterEach
+    void stopCacheManager() {
+        cacheManager.stop();
+    }
+
+    @Test
+    void resultFetchedByOneNodeIsServedToAnother() {
+        // Two nodes sharing one cache, as the replicated cache makes them.
+        WaldurClusterCache first = new WaldurClusterCache(cache);
+        WaldurClusterCache second = new WaldurClusterCache(cache);
+        WaldurMapperConfig mapper = mapper("offering-a");
+
+        assertEquals("c1,c2", first.getOrFetch(mapper, user("u1"), MINUTE, () -> fetch("c1,c2")).join());
+        assertEquals("c1,c2", second.getOrFetch(mapper, user("u1"), MINUTE, () -> fetch("other")).join());
+        assertEquals(1, fetches.get());
+
+        second.getOrFetch(mapper, user("u2"), MINUTE, () -> fetch("c3")).join();
+        assertEquals(2, fetches.get(), "users are cached apart");
+    }
+
+    @Test
+    void failedLookupsAndOtherConfigurationsAreNotShared() {
+        WaldurClusterCache clusterCache = new WaldurClusterCache(cache);
+
+        assertNull(clusterCache.getOrFetch(mapper("offering-a"), user("u1"), MINUTE, () -> fetch(null)).join());
+        clusterCache.getOrFetch(mapper("offering-a"), user("u1"), MINUTE, () -> fetch("true")).join();
+        clusterCache.getOrFetch(mapper("offering-b"), user("u1"), MINUTE, () -> fetch("false")).join();
+
+        assertEquals(3, fetches.get());
+    }
+
+    @Test
+    void entriesExpireAfterTheirLifespan() throws InterruptedException {
+        WaldurClusterCache clusterCache = new WaldurClusterCache(cache);
+        WaldurMapperConfig mapper = mapper("offering-a");
+
+        clusterCache.getOrFetch(mapper, user("u1"), 50, () -> fetch("alice_hpc")).join();
+        Thread.sleep(100);
+        clusterCache.getOrFetch(mapper, user("u1"), 50, () -> fetch("alice_hpc")).join();
+
+        assertEquals(2, fetches.get());
+    }
+
+    @Test
+    void invalidationEventsReachListeners() {
+        List<String> invalidated = new ArrayList<>();
+        Consumer<String> listener = invalidated::add;
+        WaldurClusterCache.onInvalidation(listener);
+        try {
+            WaldurClusterCache.eventReceived(new CacheKeyInvalidatedEvent("mapper-1"));
+
+            assertTrue(invalidated.contains("mapper-1"));
+        } finally {
+            WaldurClusterCache.removeInvalidationListener(listener);
+        }
+    }
+
+    private CompletableFuture<String> fetch(String value) {
+        fetches.incrementAndGet();
+        return CompletableFuture.completedFuture(value);
+    }
+
+    private static WaldurMapperConfig mapper(String offering) {
+        return WaldurConfigHelper.readShared("mapper-1",
+                new WaldurConfigReader(Map.of("uuid.waldur.offering.value", offering)), false);
+    }
+
+    private static UserModel user(String id) {
+        return (UserModel) Proxy.newProxyInstance(
+                UserModel.class.getClassLoader(),
+                new Class<?>[] {UserModel.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("getId")) {
+                        return id;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}
@@ -0,0 +1,71 @@
+package org.waldur.keycloak.mapper;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.protocol.ProtocolMapperConfigException;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WaldurConfigCacheTest {
+
+    private final AtomicInteger compilations = new AtomicInteger();
+    private final WaldurConfigCache<WaldurMapperConfig> configs = new WaldurConfigCache<>((id, reader) -> {
+        compilations.incrementAndGet();
+        return WaldurConfigHelper.readShared(id, reader, true);
+    });
+
+    @Test
+    void configIsCompiledOnceUntilItChanges() {
+        ProtocolMapperModel mapper = mapper("https://waldur.example.com/api/");
+
+        WaldurMapperConfig first = configs.get(mapper);
+        assertSame(first, configs.get(mapper));
+        assertEquals(1, compilations.get());
+
+        mapper.getConfig().put(WaldurConfigHelper.LATENCY_BUDGET_KEY, "250");
+        assertEquals(250, configs.get(mapper).latencyBudgetMillis());
+        assertEquals(2, compilations.get());
+
+        configs.invalidate("mapper-1");
+        configs.get(mapper);
+        assertEquals(3, compilations.get());
+    }
+
+    @Test
+    void invalidSettingsAreRejectedOnSave() {
+        assertDoesNotThrow(() -> configs.validate(mapper("https://waldur.example.com/api/")));
+
+        ProtocolMapperModel mapper = mapper("https://waldur.example.com/api");
+        mapper.getConfig().put(WaldurConfigHelper.PERSIST_TTL_KEY, "soon");
+        ProtocolMapperConfigException e = assertThrows(ProtocolMapperConfigException.class,
+                () -> configs.validate(mapper));
+        assertTrue(e.getMessage().contains("must end with a slash"), e.getMessage());
+        assertTrue(e.getMessage().contains("Stored result freshness must be a whole number"), e.getMessage());
+    }
+
+    @Test
+    void invalidSettingsFallBackToDefaultsAtRuntime() {
+        ProtocolMapperModel mapper = mapper("https://waldur.example.com/api/");
+        mapper.getConfig().put(WaldurConfigHelper.LATENCY_BUDGET_KEY, "-5");
+
+        assertEquals(WaldurConfigHelper.DEFAULT_LATENCY_BUDGET_MILLIS, configs.get(mapper).latencyBudgetMillis());
+    }
+
+    private static ProtocolMapperModel mapper(String apiUrl) {
+        ProtocolMapperModel mapper = new ProtocolMapperModel();
+        mapper.setId("mapper-1");
+        mapper.setName("waldur");
+        mapper.setConfig(new HashMap<>(Map.of(
+                WaldurConfigHelper.API_URL_KEY, apiUrl,
+                WaldurConfigHelper.API_TOKEN_KEY, "token")));
+        return mapper;
+    }
+}
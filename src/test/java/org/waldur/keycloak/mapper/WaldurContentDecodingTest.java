@@ -0,0 +1,66 @@
+package org.waldur.keycloak.mapper;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Serves a permission list gzip- or deflate-encoded when the request accepts it. */
+class WaldurContentDecodingTest {
+
+    private static final String BODY = "[" + "{\"scope_uuid\":\"c1\"},".repeat(200) + "{\"scope_uuid\":\"c2\"}]";
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private WaldurStubServer server;
+    private String baseUrl;
+
+    private final WaldurHttpClient client = new WaldurHttpClient("token", true);
+
+    @BeforeEach
+    void start() throws IOException {
+        Metrics.addRegistry(registry);
+        server = new WaldurStubServer(0, 0, 0);
+        server.serve("gzip/", () -> BODY, WaldurStubServer.Validator.NONE, "gzip");
+        server.serve("deflate/", () -> BODY, WaldurStubServer.Validator.NONE, "deflate");
+        baseUrl = server.apiUrl();
+    }
+
+    @AfterEach
+    void stop() {
+        server.close();
+        Metrics.removeRegistry(registry);
+    }
+
+    @Test
+    void streamedBodyIsDecompressedIntoTheParser() {
+        List<String> scopes = client.getStreamAsync(baseUrl + "gzip/", WaldurOIDCMinIOMapper::parseScopeUuids,
+                WaldurCallPolicy.DEFAULT).join();
+
+        assertEquals(201, scopes.size());
+        assertEquals("c2", scopes.get(200));
+        double wire = bytes(baseUrl + "gzip/", "wire");
+        double decoded = bytes(baseUrl + "gzip/", "decoded");
+        assertEquals(BODY.length(), decoded);
+        assertTrue(wire < decoded / 10, "gzip should shrink the repetitive body, got " + wire);
+    }
+
+    @Test
+    void wholeBodyIsDecompressed() {
+        assertEquals(BODY, client.get(baseUrl + "deflate/"));
+        assertEquals(BODY.length(), bytes(baseUrl + "deflate/", "decoded"));
+    }
+
+    private double bytes(String endpoint, String form) {
+        return registry.get(WaldurMetrics.RESPONSE_BYTES_COUNTER)
+                .tags("endpoint", endpoint, "form", form).counter().count();
+    }
+}
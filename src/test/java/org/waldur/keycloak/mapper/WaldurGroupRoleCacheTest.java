@@ -0,0 +1,142 @@
+package org.waldur.keycloak.mapper;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class WaldurGroupRoleCacheTest {
+
+    private final Map<String, String> groupNames = new HashMap<>(Map.of("g1", "offering-users"));
+    private final Map<String, String> roleNames = new HashMap<>(Map.of("r1", "offering-user"));
+    private final AtomicInteger resolutions = new AtomicInteger();
+    private final RealmModel realm = realm("realm-1");
+
+    @BeforeEach
+    void clearCache() {
+        WaldurGroupRoleCache.clear("realm-1");
+    }
+
+    @Test
+    void groupIsResolvedByPathOnce() {
+        GroupModel first = WaldurGroupRoleCache.group(realm, "/offering-users", this::resolveGroup);
+        GroupModel second = WaldurGroupRoleCache.group(realm, "/offering-users", this::resolveGroup);
+
+        assertEquals("g1", first.getId());
+        assertEquals("g1", second.getId());
+        assertEquals(1, resolutions.get());
+    }
+
+    @Test
+    void renamedOrRemovedGroupIsResolvedAgain() {
+        WaldurGroupRoleCache.group(realm, "/offering-users", this::resolveGroup);
+
+        groupNames.put("g1", "renamed");
+        assertNull(WaldurGroupRoleCache.group(realm, "/offering-users", this::resolveGroup));
+        assertEquals(2, resolutions.get());
+
+        groupNames.put("g2", "offering-users");
+        assertEquals("g2", WaldurGroupRoleCache.group(realm, "/offering-users", this::resolveGroup).getId());
+        groupNames.remove("g2");
+        assertNull(WaldurGroupRoleCache.group(realm, "/offering-users", this::resolveGroup));
+    }
+
+    @Test
+    void groupEventDropsTheRealmsIds() {
+        WaldurGroupRoleCache.group(realm, "/offering-users", this::resolveGroup);
+
+        GroupModel group = group("g1");
+        WaldurGroupRoleCache.onEvent(new GroupModel.GroupRemovedEvent() {
+            @Override
+            public RealmModel getRealm() {
+                return realm;
+            }
+
+            @Override
+            public GroupModel getGroup() {
+                return group;
+            }
+
+            @Override
+            public KeycloakSession getKeycloakSession() {
+                return stub(KeycloakSession.class, Map.of());
+            }
+        });
+        WaldurGroupRoleCache.group(realm, "/offering-users", this::resolveGroup);
+
+        assertEquals(2, resolutions.get());
+    }
+
+    @Test
+    void roleIsResolvedByNameOnce() {
+        RoleModel first = WaldurGroupRoleCache.role(null, realm, "offering-user");
+        RoleModel second = WaldurGroupRoleCache.role(null, realm, "offering-user");
+
+        assertEquals("r1", first.getId());
+        assertEquals("r1", second.getId());
+        assertEquals(1, resolutions.get());
+    }
+
+    private GroupModel resolveGroup(String path) {
+        resolutions.incrementAndGet();
+        return groupNames.entrySet().stream()
+                .filter(entry -> path.equals("/" + entry.getValue()))
+                .map(entry -> group(entry.getKey()))
+                .findFirst()
+                .orElse(null);
+    }
+
+    private GroupModel group(String id) {
+        return (GroupModel) Proxy.newProxyInstance(GroupModel.class.getClassLoader(),
+                new Class<?>[] {GroupModel.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "getId" -> id;
+                    case "getName" -> groupNames.get(id);
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    private RoleModel role(String id) {
+        return (RoleModel) Proxy.newProxyInstance(RoleModel.class.getClassLoader(),
+                new Class<?>[] {RoleModel.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "getId" -> id;
+                    case "getName" -> roleNames.get(id);
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    private RealmModel realm(String id) {
+        return (RealmModel) Proxy.newProxyInstance(RealmModel.class.getClassLoader(),
+                new Class<?>[] {RealmModel.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "getId" -> id;
+                    case "getGroupById" -> groupNames.containsKey((String) args[0]) ? group((String) args[0]) : null;
+                    case "getRoleById" -> roleNames.containsKey((String) args[0]) ? role((String) args[0]) : null;
+                    case "getRole" -> {
+                        resolutions.incrementAndGet();
+                        yield roleNames.entrySet().stream()
+                                .filter(entry -> entry.getValue().equals(args[0]))
+                                .map(entry -> role(entry.getKey()))
+                                .findFirst()
+                                .orElse(null);
+                    }
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    private static <T> T stub(Class<T> type, Map<String, Object> answers) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+                (proxy, method, args) -> answers.get(method.getName())));
+    }
+}
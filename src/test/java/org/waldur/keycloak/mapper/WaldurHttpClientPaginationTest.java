@@ -0,0 +1,119 @@
+package org.waldur.keycloak.mapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/** Serves items 1..TOTAL as plain-text pages of numbers, with Waldur's pagination headers. */
+class WaldurHttpClientPaginationTest {
+
+    private static final int TOTAL = 23;
+
+    private HttpServer server;
+    private String listUrl;
+    private boolean sendCount = true;
+    private int failingPage = -1;
+    private int serverPageCap = Integer.MAX_VALUE;
+
+    private final WaldurHttpClient client = new WaldurHttpClient("token", true);
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/items/", this::respond);
+        server.start();
+        listUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/api/items/?kind=test";
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void getAllPagesAsync_collectsEveryPageInOrderUsingTheCount() {
+        assertEquals(expected(), collect(2));
+    }
+
+    @Test
+    void getAllPagesAsync_followsNextLinksWithoutACount() {
+        sendCount = false;
+
+        assertEquals(expected(), collect(5));
+    }
+
+    @Test
+    void getAllPagesAsync_handlesServerCappedPageSize() {
+        serverPageCap = 3;
+
+        assertEquals(expected(), collect(10));
+    }
+
+    @Test
+    void getAllPagesAsync_returnsNullWhenAnyPageFails() {
+        failingPage = 7;
+
+        assertNull(collect(2));
+    }
+
+    private String collect(int pageSize) {
+        return client.getAllPagesAsync(listUrl, pageSize, WaldurHttpClientPaginationTest::parseNumbers,
+                Collectors.joining(","), WaldurCallPolicy.DEFAULT).join();
+    }
+
+    private static String expected() {
+        List<String> numbers = new ArrayList<>();
+        for (int i = 1; i <= TOTAL; i++) {
+            numbers.add(Integer.toString(i));
+        }
+        return String.join(",", numbers);
+    }
+
+    private static List<String> parseNumbers(InputStream body) {
+        try {
+            String text = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+            return text.isEmpty() ? List.of() : Arrays.asList(text.split(" "));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getQuery();
+        int page = Integer.parseInt(query.replaceAll(".*&page=(\\d+).*", "$1"));
+        int pageSize = Math.min(serverPageCap, Integer.parseInt(query.replaceAll(".*page_size=(\\d+).*", "$1")));
+
+        List<String> items = new ArrayList<>();
+        for (int i = (page - 1) * pageSize + 1; i <= Math.min(TOTAL, page * pageSize); i++) {
+            items.add(Integer.toString(i));
+        }
+        if (sendCount) {
+            exchange.getResponseHeaders().add("X-Result-Count", Integer.toString(TOTAL));
+        }
+        if (page * pageSize < TOTAL) {
+            String next = listUrl + "&page=" + (page + 1) + "&page_size=" + pageSize;
+            exchange.getResponseHeaders().add("Link", "<" + next + ">; rel=\"next\"");
+        }
+        byte[] body = String.join(" ", items).getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(page == failingPage ? 404 : 200, body.length == 0 ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
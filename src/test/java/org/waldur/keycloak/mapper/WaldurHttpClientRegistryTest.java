@@ -0,0 +1,46 @@
+package org.waldur.keycloak.mapper;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WaldurHttpClientRegistryTest {
+
+    private static final String BASE_URL = "https://waldur.example.com/api/";
+
+    @AfterEach
+    void clearRegistry() {
+        WaldurHttpClientRegistry.clear();
+    }
+
+    @Test
+    void sameSettings_shareOneClient() {
+        WaldurHttpClient first = WaldurHttpClientRegistry.get(BASE_URL, "token", true);
+        WaldurHttpClient second = WaldurHttpClientRegistry.get(BASE_URL, "token", true);
+
+        assertSame(first, second);
+    }
+
+    @Test
+    void differentTokenOrTlsMode_getSeparateClients() {
+        WaldurHttpClient strict = WaldurHttpClientRegistry.get(BASE_URL, "token", true);
+
+        assertNotSame(strict, WaldurHttpClientRegistry.get(BASE_URL, "token", false));
+        assertNotSame(strict, WaldurHttpClientRegistry.get(BASE_URL, "other-token", true));
+    }
+
+    @Test
+    void evict_forcesANewClientOnNextLookup() {
+        WaldurHttpClient before = WaldurHttpClientRegistry.get(BASE_URL, "token", true);
+        long evictedBefore = WaldurHttpClientRegistry.stats().evicted();
+
+        WaldurHttpClientRegistry.evict(BASE_URL, "token", true);
+
+        assertNotSame(before, WaldurHttpClientRegistry.get(BASE_URL, "token", true));
+        assertTrue(WaldurHttpClientRegistry.stats().evicted() > evictedBefore,
+                "eviction must be reflected in pool statistics");
+    }
+}
@@ -0,0 +1,120 @@
+package org.waldur.keycloak.mapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/** Serves a body with an ETag or a Last-Modified date and answers 304 when it is sent back. */
+class WaldurHttpClientRevalidationTest {
+
+    private WaldurStubServer server;
+    private String baseUrl;
+    private volatile String version = "v1";
+    private final AtomicInteger parses = new AtomicInteger();
+
+    private final WaldurHttpClient client = new WaldurHttpClient("token", true);
+
+    /** Results are kept per parser instance, so each test reuses one, as the mappers do. */
+    private final Function<String, List<String>> parser = this::parse;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = new WaldurStubServer(0, 0, 0);
+        server.serve("etag/", () -> version, WaldurStubServer.Validator.ETAG, null);
+        server.serve("last-modified/", () -> version, WaldurStubServer.Validator.LAST_MODIFIED, null);
+        server.serve("plain/", () -> version, WaldurStubServer.Validator.NONE, null);
+        server.serve("large/", () -> version.repeat((int) WaldurHttpClient.REVALIDATION_MAX_RESULT_BYTES),
+                WaldurStubServer.Validator.ETAG, null);
+        baseUrl = server.apiUrl();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.close();
+    }
+
+    @Test
+    void notModifiedReusesTheParsedResultWithoutParsing() {
+        String url = baseUrl + "etag/";
+
+        List<String> first = client.getAsync(url, parser, WaldurCallPolicy.DEFAULT).join();
+        List<String> second = client.getAsync(url, parser, WaldurCallPolicy.DEFAULT).join();
+
+        assertEquals(List.of("v1"), first);
+        assertSame(first, second);
+        assertEquals(1, parses.get());
+        assertEquals(1, server.notModified());
+
+        version = "v2";
+        assertEquals(List.of("v2"), client.getAsync(url, parser, WaldurCallPolicy.DEFAULT).join());
+        assertEquals(2, parses.get());
+    }
+
+    @Test
+    void lastModifiedIsRevalidatedForStreamedResults() {
+        String url = baseUrl + "last-modified/";
+
+        Function<InputStream, String> streamParser = body -> "parsed " + parses.incrementAndGet();
+
+        String first = client.getStreamAsync(url, streamParser, WaldurCallPolicy.DEFAULT).join();
+        String second = client.getStreamAsync(url, streamParser, WaldurCallPolicy.DEFAULT).join();
+
+        assertEquals("parsed 1", first);
+        assertEquals("parsed 1", second);
+        assertEquals(1, parses.get());
+        assertEquals(1, server.notModified());
+    }
+
+    @Test
+    void parsersOfTheSameUrlEachGetTheirOwnResult() {
+        String url = baseUrl + "etag/";
+        Function<String, Integer> length = String::length;
+
+        CompletableFuture<List<String>> list = client.getAsync(url, parser, WaldurCallPolicy.DEFAULT);
+        CompletableFuture<Integer> size = client.getAsync(url, length, WaldurCallPolicy.DEFAULT);
+        assertEquals(List.of("v1"), list.join());
+        assertEquals(2, size.join());
+
+        // Revalidated, each parser gets back the result it parsed.
+        assertEquals(List.of("v1"), client.getAsync(url, parser, WaldurCallPolicy.DEFAULT).join());
+        assertEquals(2, client.getAsync(url, length, WaldurCallPolicy.DEFAULT).join());
+        assertEquals(2, server.notModified());
+    }
+
+    @Test
+    void responsesWithoutValidatorsAreFetchedInFull() {
+        String url = baseUrl + "plain/";
+
+        client.getAsync(url, parser, WaldurCallPolicy.DEFAULT).join();
+        client.getAsync(url, parser, WaldurCallPolicy.DEFAULT).join();
+
+        assertEquals(2, parses.get());
+        assertEquals(0, server.notModified());
+    }
+
+    @Test
+    void resultsOfLargeBodiesAreNotKept() {
+        String url = baseUrl + "large/";
+
+        client.getAsync(url, parser, WaldurCallPolicy.DEFAULT).join();
+        client.getAsync(url, parser, WaldurCallPolicy.DEFAULT).join();
+
+        assertEquals(2, parses.get());
+        assertEquals(0, server.notModified());
+    }
+
+    private List<String> parse(String body) {
+        parses.incrementAndGet();
+        return List.of(body);
+    }
+}
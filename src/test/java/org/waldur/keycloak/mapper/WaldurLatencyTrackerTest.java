@@ -0,0 +1,242 @@
+package org.waldur.keycloak.mapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WaldurLatencyTrackerTest {
+
+    private static final WaldurCallPolicy HEDGING = new WaldurCallPolicy(5, 30_000, true, true);
+    private static final WaldurCallPolicy ADAPTIVE = new WaldurCallPolicy(5, 30_000, true, false);
+
+    private HttpServer server;
+    private String baseUrl;
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile long slowingDelayMillis;
+    private final CountDownLatch loserAborted = new CountDownLatch(1);
+
+    @BeforeEach
+    void start() throws IOException {
+        WaldurLatencyTracker.reset();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/api/slow-first/", this::respond);
+        server.createContext("/api/slowing/", this::respondAfterDelay);
+        server.createContext("/api/slow-stream/", this::stream);
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/api/";
+    }
+
+    @AfterEach
+    void stop() {
+        server.stop(0);
+        WaldurLatencyTracker.reset();
+    }
+
+    @Test
+    void timeoutFollowsTheRecentP99WithinBounds() {
+        WaldurLatencyTracker tracker = new WaldurLatencyTracker();
+        Duration ceiling = Duration.ofSeconds(15);
+        assertEquals(ceiling, tracker.timeout(ceiling));
+        assertEquals(-1, tracker.p95Millis());
+
+        // 10 ms to 960 ms; percentiles are refreshed every 16 responses, so after the last one here.
+        for (int i = 1; i <= 96; i++) {
+            tracker.record(i * 10_000_000L);
+        }
+        assertEquals(920, tracker.p95Millis());
+        assertEquals(Duration.ofMillis(960 * WaldurLatencyTracker.TIMEOUT_P99_MULTIPLE), tracker.timeout(ceiling));
+        assertEquals(Duration.ofSeconds(3), tracker.timeout(Duration.ofSeconds(3)));
+
+        for (int i = 0; i < WaldurLatencyTracker.WINDOW; i++) {
+            tracker.record(1_000_000L);
+        }
+        assertEquals(WaldurLatencyTracker.MIN_TIMEOUT, tracker.timeout(ceiling));
+    }
+
+    @Test
+    void losingStreamedExchangeIsAborted() throws InterruptedException {
+        WaldurHttpClient client = new WaldurHttpClient("token", true);
+        String url = baseUrl + "slow-stream/";
+        WaldurLatencyTracker tracker = WaldurLatencyTracker.forEndpoint(WaldurHttpClient.endpointOf(url));
+        for (int i = 0; i < 100; i++) {
+            tracker.record(50_000_000L);
+            WaldurLatencyTracker.onCall();
+        }
+
+        String body = client.getStreamAsync(url, WaldurLatencyTrackerTest::readAll, HEDGING).join();
+
+        assertEquals("second", body);
+        assertTrue(loserAborted.await(10, TimeUnit.SECONDS),
+                "the losing response should be aborted rather than left open with nobody reading it");
+    }
+
+    @Test
+    void timeoutsInARowDoubleTheTimeoutUntilAResponseComes() {
+        WaldurLatencyTracker tracker = new WaldurLatencyTracker();
+        Duration ceiling = Duration.ofSeconds(15);
+        for (int i = 0; i < 32; i++) {
+            tracker.record(1_000_000L);
+        }
+        assertEquals(WaldurLatencyTracker.MIN_TIMEOUT, tracker.timeout(ceiling));
+
+        tracker.recordTimeout(2_000_000_000L);
+        assertEquals(Duration.ofSeconds(4), tracker.timeout(ceiling));
+        tracker.recordTimeout(4_000_000_000L);
+        tracker.recordTimeout(8_000_000_000L);
+        assertEquals(ceiling, tracker.timeout(ceiling));
+
+        tracker.record(1_000_000L);
+        assertEquals(WaldurLatencyTracker.MIN_TIMEOUT, tracker.timeout(ceiling));
+    }
+
+    @Test
+    void endpointThatSlowsDownPastTheLearnedTimeoutIsGivenMoreTime() {
+        WaldurHttpClient client = new WaldurHttpClient("token", true);
+        String url = baseUrl + "slowing/";
+        WaldurLatencyTracker tracker = WaldurLatencyTracker.forEndpoint(WaldurHttpClient.endpointOf(url));
+        for (int i = 0; i < 32; i++) {
+            tracker.record(5_000_000L);
+        }
+        assertEquals(WaldurLatencyTracker.MIN_TIMEOUT, tracker.timeout(Duration.ofSeconds(15)));
+
+        slowingDelayMillis = WaldurLatencyTracker.MIN_TIMEOUT.toMillis() + 500;
+        assertNull(client.getAsync(url, b -> b, ADAPTIVE).join(), "the first slow call outlasts the learned timeout");
+        assertEquals("slow", client.getAsync(url, b -> b, ADAPTIVE).join());
+        assertEquals(WaldurCircuitBreaker.State.CLOSED,
+                WaldurCircuitBreaker.forEndpoint(WaldurHttpClient.endpointOf(url)).getState());
+    }
+
+    @Test
+    void hedgesAreCappedByTheGlobalBudget() {
+        assertFalse(WaldurLatencyTracker.tryHedge());
+        for (int i = 0; i < 10_000; i++) {
+            WaldurLatencyTracker.onCall();
+        }
+
+        int hedges = 0;
+        while (WaldurLatencyTracker.tryHedge()) {
+            hedges++;
+        }
+        assertEquals(WaldurLatencyTracker.HEDGE_BURST, hedges);
+
+        for (int i = 0; i < 19; i++) {
+            WaldurLatencyTracker.onCall();
+        }
+        assertFalse(WaldurLatencyTracker.tryHedge());
+        WaldurLatencyTracker.onCall();
+        assertTrue(WaldurLatencyTracker.tryHedge());
+    }
+
+    @Test
+    void slowCallIsHedgedAndTheFirstResponseWins() {
+        WaldurHttpClient client = new WaldurHttpClient("token", true);
+        String endpoint = WaldurHttpClient.endpointOf(baseUrl + "slow-first/");
+        WaldurLatencyTracker tracker = WaldurLatencyTracker.forEndpoint(endpoint);
+        for (int i = 0; i < 100; i++) {
+            tracker.record(50_000_000L);
+            WaldurLatencyTracker.onCall();
+        }
+
+        long start = System.nanoTime();
+        String body = client.getAsync(baseUrl + "slow-first/", b -> b, HEDGING).join();
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        assertEquals("second", body);
+        assertEquals(2, requests.get());
+        assertTrue(elapsedMillis < 2000, "the hedge should answer long before the stuck call, took " + elapsedMillis);
+    }
+
+    /**
+     * The first request answers after half a second with a body far larger than the socket
+     * buffers, so writing it only gets through if the client reads it, and fails once the client
+     * has aborted the exchange; later ones answer at once.
+     */
+    private void stream(HttpExchange exchange) throws IOException {
+        if (requests.incrementAndGet() > 1) {
+            byte[] body = "second".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+            return;
+        }
+        try {
+            Thread.sleep(500);
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+            byte[] chunk = new byte[64 * 1024];
+            for (int i = 0; i < 1024; i++) {
+                out.write(chunk);
+            }
+            out.close();
+        } catch (IOException e) {
+            loserAborted.countDown();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String readAll(InputStream in) {
+        try {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Answers after {@link #slowingDelayMillis}. */
+    private void respondAfterDelay(HttpExchange exchange) throws IOException {
+        try {
+            Thread.sleep(slowingDelayMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        byte[] body = "slow".getBytes(StandardCharsets.UTF_8);
+        try (OutputStream out = exchange.getResponseBody()) {
+            exchange.sendResponseHeaders(200, body.length);
+            out.write(body);
+        } catch (IOException e) {
+            // The client gave up on the call.
+        }
+    }
+
+    /** The first request gets stuck for three seconds; later ones answer at once. */
+    private void respond(HttpExchange exchange) throws IOException {
+        boolean first = requests.incrementAndGet() == 1;
+        if (first) {
+            try {
+                Thread.sleep(3000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        byte[] body = (first ? "first" : "second").getBytes(StandardCharsets.UTF_8);
+        try (OutputStream out = exchange.getResponseBody()) {
+            exchange.sendResponseHeaders(200, body.length);
+            out.write(body);
+        } catch (IOException e) {
+            // The client cancelled the losing request.
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package org.waldur.keycloak.mapper;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.ClientSessionContext;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.GroupProvider;
+import org.keycloak.models.GroupProviderFactory;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.representations.AccessToken;
+
+/**
+ * Mints tokens with all three Waldur mappers from many threads at once against a
+ * {@link WaldurStubServer}, the way Keycloak would for one client with the three mappers, and
+ * reports throughput, token latency percentiles and thread usage. Keycloak itself is stubbed, so
+ * the numbers are what the mappers and their Waldur calls cost, without Keycloak's own work.
+ */
+final class WaldurLoadHarness {
+
+    private static final String OFFERING_UUID = "0f3c6ad2b8e14d0a9a3c1f1f6f3e2b7c";
+    private static final AtomicInteger RUNS = new AtomicInteger();
+
+    /**
+     * One load run. With {@code cached} off, the mappers' own caches and the offering user index
+     * are disabled, so every token waits for Waldur.
+     */
+    record Options(int latencyMillis, double errorRate, int payloadSize, int threads, int users,
+            Duration duration, boolean cached) {
+
+        /** Options from {@code waldur.load.*} system properties, with the given Waldur latency. */
+        static Options fromSystemProperties(int latencyMillis) {
+            return new Options(latencyMillis,
+                    Double.parseDouble(System.getProperty("waldur.load.error-rate", "0")),
+                    Integer.getInteger("waldur.load.payload", 100),
+                    Integer.getInteger("waldur.load.threads", 64),
+                    Integer.getInteger("waldur.load.users", 10_000),
+                    Duration.ofSeconds(Integer.getInteger("waldur.load.seconds", 20)),
+                    Boolean.parseBoolean(System.getProperty("waldur.load.cached", "false")));
+        }
+    }
+
+    record Report(Options options, long tokens, long incompleteTokens, long p50Nanos, long p99Nanos,
+            long p999Nanos, int peakThreads, int peakHttpClientThreads, long waldurRequests, long waldurErrors) {
+
+        double tokensPerSecond() {
+            return tokens / (options.duration().toNanos() / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Waldur latency %d ms, error rate %.2f, payload %d, %d threads, %d users, caches %s:%n"
+                    + "  %d tokens (%.1f/s), %d without all claims%n"
+                    + "  token latency p50 %.1f ms, p99 %.1f ms, p99.9 %.1f ms%n"
+                    + "  peak threads %d, of which HTTP client %d%n"
+                    + "  Waldur requests %d, errors %d",
+                    options.latencyMillis(), options.errorRate(), options.payloadSize(), options.threads(),
+                    options.users(), options.cached() ? "on" : "off",
+                    tokens, tokensPerSecond(), incompleteTokens,
+                    p50Nanos / 1e6, p99Nanos / 1e6, p999Nanos / 1e6,
+                    peakThreads, peakHttpClientThreads, waldurRequests, waldurErrors);
+        }
+    }
+
+    private WaldurLoadHarness() {
+    }
+
+    static Report run(Options options) throws Exception {
+        // The mappers log every token at INFO; written to the console, that would be what gets measured.
+        Logger mapperLogger = Logger.getLogger(WaldurLoadHarness.class.getPackageName());
+        Level level = mapperLogger.getLevel();
+        mapperLogger.setLevel(Level.WARNING);
+        try (WaldurStubServer waldur = new WaldurStubServer(options.latencyMillis(), options.errorRate(),
+                options.payloadSize())) {
+            return run(options, waldur);
+        } finally {
+            mapperLogger.setLevel(level);
+        }
+    }
+
+    private static Report run(Options options, WaldurStubServer waldur) throws Exception {
+        // Fresh mapper ids so caches and breakers of an earlier run do not carry over.
+        String run = "load-" + RUNS.incrementAndGet();
+        WaldurOIDCMinIOMapper minioMapper = new WaldurOIDCMinIOMapper();
+        WaldurOIDCOfferingUserUsernameMapper usernameMapper = new WaldurOIDCOfferingUserUsernameMapper();
+        WaldurOIDCOfferingAccessMapper accessMapper = new WaldurOIDCOfferingAccessMapper();
+
+        ProtocolMapperModel minioModel = WaldurOIDCMinIOMapper.create("minio", waldur.apiUrl(), "token", "project",
+                "policy", false, "username", true, false, false);
+        minioModel.setId(run + "-minio");
+        ProtocolMapperModel usernameModel = WaldurOIDCOfferingUserUsernameMapper.create("username", waldur.apiUrl(),
+                OFFERING_UUID, "token", "waldur_username", false, true, false, false);
+        usernameModel.setId(run + "-username");
+        ProtocolMapperModel accessModel = WaldurOIDCOfferingAccessMapper.create("access", waldur.apiUrl(),
+                OFFERING_UUID, "token", "username", "offering-users", true, "offering-user", true,
+                "offering_group", true, false, false);
+        accessModel.setId(run + "-access");
+        if (!options.cached()) {
+            minioModel.getConfig().put("cache.waldur.soft-ttl", "0");
+            usernameModel.getConfig().put("sync.waldur.interval", "0");
+            accessModel.getConfig().put("cache.waldur.ttl", "0");
+        }
+        List<ProtocolMapperModel> models = List.of(minioModel, usernameModel, accessModel);
+        Map<String, Object> mappers = Map.of(WaldurOIDCMinIOMapper.PROVIDER_ID, minioMapper,
+                WaldurOIDCOfferingUserUsernameMapper.PROVIDER_ID, usernameMapper,
+                WaldurOIDCOfferingAccessMapper.PROVIDER_ID, accessMapper);
+
+        KeycloakSession session = keycloakSession(mappers);
+        List<UserSessionModel> userSessions = new ArrayList<>(options.users());
+        for (int i = 0; i < options.users(); i++) {
+            userSessions.add(userSession("user" + i));
+        }
+
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        threadBean.resetPeakThreadCount();
+        AtomicInteger peakHttpClientThreads = new AtomicInteger();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(
+                () -> peakHttpClientThreads.accumulateAndGet(httpClientThreads(threadBean), Math::max),
+                0, 100, TimeUnit.MILLISECONDS);
+
+        long deadline = System.nanoTime() + options.duration().toNanos();
+        AtomicLong incomplete = new AtomicLong();
+        ExecutorService drivers = Executors.newFixedThreadPool(options.threads());
+        List<Future<long[]>> results = new ArrayList<>();
+        for (int t = 0; t < options.threads(); t++) {
+            results.add(drivers.submit(() -> {
+                long[] latencies = new long[1024];
+                int count = 0;
+                while (System.nanoTime() < deadline) {
+                    UserSessionModel userSession = userSessions.get(
+                            ThreadLocalRandom.current().nextInt(userSessions.size()));
+                    ClientSessionContext context = clientSessionContext(models);
+                    AccessToken token = new AccessToken();
+
+                    long start = System.nanoTime();
+                    minioMapper.setClaim(token, minioModel, userSession, session, context);
+                    usernameMapper.setClaim(token, usernameModel, userSession, session, context);
+                    accessMapper.setClaim(token, accessModel, userSession, session, context);
+                    long elapsed = System.nanoTime() - start;
+
+                    if (token.getOtherClaims().size() < models.size()) {
+                        incomplete.incrementAndGet();
+                    }
+                    if (count == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    }
+                    latencies[count++] = elapsed;
+                }
+                return Arrays.copyOf(latencies, count);
+            }));
+        }
+
+        List<long[]> perThread = new ArrayList<>();
+        for (Future<long[]> result : results) {
+            perThread.add(result.get());
+        }
+        drivers.shutdown();
+        sampler.shutdownNow();
+
+        long[] latencies = perThread.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+        return new Report(options, latencies.length, incomplete.get(), percentile(latencies, 0.50),
+                percentile(latencies, 0.99), percentile(latencies, 0.999), threadBean.getPeakThreadCount(),
+                peakHttpClientThreads.get(), waldur.requests(), waldur.errors());
+    }
+
+    private static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(quantile * sorted.length) - 1)];
+    }
+
+    /** Threads of the JDK HTTP clients' executors, which carry the Waldur calls. */
+    private static int httpClientThreads(ThreadMXBean threadBean) {
+        int count = 0;
+        for (ThreadInfo info : threadBean.getThreadInfo(threadBean.getAllThreadIds())) {
+            if (info != null && info.getThreadName().startsWith("HttpClient-")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static ClientSessionContext clientSessionContext(List<ProtocolMapperModel> models) {
+        Map<String, Object> attributes = new ConcurrentHashMap<>();
+        return stub(ClientSessionContext.class, (method, args) -> switch (method) {
+            case "getAttribute" -> attributes.get((String) args[0]);
+            case "setAttribute" -> attributes.put((String) args[0], args[1]);
+            case "getProtocolMappersStream" -> models.stream();
+            default -> null;
+        });
+    }
+
+    private static UserSessionModel userSession(String username) {
+        UserModel user = stub(UserModel.class, (method, args) -> switch (method) {
+            case "getId" -> "id-" + username;
+            case "getUsername" -> username;
+            // Already a direct member, so the access mapper reads memberships without writing them.
+            case "getGroupsStream" -> Stream.of(stub(GroupModel.class,
+                    (groupMethod, groupArgs) -> groupMethod.equals("getId") ? "group-id" : null));
+            case "isMemberOf", "hasRole", "hasDirectRole" -> true;
+            default -> null;
+        });
+        return stub(UserSessionModel.class, (method, args) -> method.equals("getUser") ? user : null);
+    }
+
+    /** A session with just enough of a realm, group, role and provider lookup for the three mappers. */
+    private static KeycloakSession keycloakSession(Map<String, Object> mappers) {
+        GroupModel group = stub(GroupModel.class, (method, args) -> switch (method) {
+            case "getId" -> "group-id";
+            case "getName" -> "offering-users";
+            default -> null;
+        });
+        RoleModel role = stub(RoleModel.class, (method, args) -> switch (method) {
+            case "getId" -> "role-id";
+            case "getName" -> "offering-user";
+            default -> null;
+        });
+        RealmModel realm = stub(RealmModel.class, (method, args) -> switch (method) {
+            case "getId" -> "realm-id";
+            case "getRole", "getRoleById" -> role;
+            case "getGroupById" -> group;
+            default -> null;
+        });
+        ClientModel client = stub(ClientModel.class, (method, args) -> null);
+        KeycloakContext context = stub(KeycloakContext.class, (method, args) -> switch (method) {
+            case "getRealm" -> realm;
+            case "getClient" -> client;
+            default -> null;
+        });
+        GroupProvider groups = stub(GroupProvider.class,
+                (method, args) -> method.equals("getGroupByName") ? group : null);
+        GroupProviderFactory<?> groupProviderFactory = stub(GroupProviderFactory.class, (method, args) -> null);
+        KeycloakSessionFactory sessionFactory = stub(KeycloakSessionFactory.class, (method, args) -> {
+            if (!method.equals("getProviderFactory")) {
+                return null;
+            }
+            return args.length == 1 ? groupProviderFactory : mappers.get((String) args[1]);
+        });
+        return stub(KeycloakSession.class, (method, args) -> switch (method) {
+            case "getContext" -> context;
+            case "getKeycloakSessionFactory" -> sessionFactory;
+            case "groups" -> groups;
+            default -> null;
+        });
+    }
+
+    private interface Answer {
+        Object answer(String method, Object[] args);
+    }
+
+    /** A proxy answering from {@code answer}, with false or zero where it has nothing for a primitive. */
+    private static <T> T stub(Class<T> type, Answer answer) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+                (instance, method, args) -> {
+                    Object value = answer.answer(method.getName(), args);
+                    if (value != null || !method.getReturnType().isPrimitive()) {
+                        return value;
+                    }
+                    if (method.getReturnType() == boolean.class) {
+                        return false;
+                    }
+                    if (method.getReturnType() == void.class) {
+                        return null;
+                    }
+                    return method.getReturnType() == long.class ? 0L : 0;
+                }));
+    }
+}
@@ -0,0 +1,53 @@
+package org.waldur.keycloak.mapper;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.logging.Logger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WaldurLoadHarnessTest {
+
+    private static final Logger LOGGER = Logger.getLogger(WaldurLoadHarnessTest.class.getName());
+
+    static final Path REPORT = Path.of("target", "waldur-load-report.txt");
+
+    /** Keeps the harness working; a second of light load in which every token gets its claims. */
+    @Test
+    void smokeRun() throws Exception {
+        WaldurLoadHarness.Report report = WaldurLoadHarness.run(
+                new WaldurLoadHarness.Options(5, 0, 10, 4, 20, Duration.ofSeconds(1), false));
+
+        assertTrue(report.tokens() > 0);
+        assertEquals(0, report.incompleteTokens());
+        // Without caches every token calls Waldur, though concurrent identical calls are shared.
+        assertTrue(report.waldurRequests() > 0 && report.waldurRequests() <= 3 * report.tokens());
+    }
+
+    /**
+     * The load test proper, for Waldur answering in 20 ms, 200 ms and 2 s:
+     * {@code mvn test -Dtest=WaldurLoadHarnessTest -Dwaldur.load=true}. See the README for its
+     * other {@code waldur.load.*} settings. The reports are logged and written to {@link #REPORT}.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "waldur.load", matches = "true")
+    void loadRun() throws Exception {
+        List<String> reports = new ArrayList<>();
+        for (String latency : System.getProperty("waldur.load.latencies", "20,200,2000").split(",")) {
+            String report = WaldurLoadHarness.run(
+                    WaldurLoadHarness.Options.fromSystemProperties(Integer.parseInt(latency.trim()))).toString();
+            LOGGER.info(report);
+            reports.add(report);
+        }
+        Files.createDirectories(REPORT.getParent());
+        Files.write(REPORT, reports, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,80 @@
+package org.waldur.keycloak.mapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class WaldurMetricsTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private HttpServer server;
+    private String baseUrl;
+
+    private final WaldurHttpClient client = new WaldurHttpClient("token", true);
+
+    @BeforeEach
+    void start() throws IOException {
+        Metrics.addRegistry(registry);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/ok/", exchange -> respond(exchange, 200, "not json"));
+        server.createContext("/api/broken/", exchange -> respond(exchange, 500, "{}"));
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/api/";
+    }
+
+    @AfterEach
+    void stop() {
+        server.stop(0);
+        Metrics.removeRegistry(registry);
+    }
+
+    @Test
+    void waldurCallsAreTimedByEndpointAndStatus() {
+        client.get(baseUrl + "ok/?username=alice");
+        client.get(baseUrl + "ok/?username=bob");
+        client.get(baseUrl + "broken/");
+
+        assertEquals(2, registry.get(WaldurMetrics.REQUEST_TIMER)
+                .tags("endpoint", baseUrl + "ok/", "status", "200").timer().count());
+        assertEquals(1, registry.get(WaldurMetrics.REQUEST_TIMER)
+                .tags("endpoint", baseUrl + "broken/", "status", "500").timer().count());
+    }
+
+    @Test
+    void unparseableResponsesAreCounted() {
+        assertNull(client.get(baseUrl + "ok/", body -> null));
+
+        assertEquals(1, registry.get(WaldurMetrics.PARSE_FAILURE_COUNTER)
+                .tag("endpoint", baseUrl + "ok/").counter().count());
+    }
+
+    @Test
+    void claimsAreTimedPerMapperType() {
+        assertEquals("claim", WaldurMetrics.timeClaim("oidc-test-mapper", () -> "claim"));
+
+        assertEquals(1, registry.get(WaldurMetrics.CLAIM_TIMER).tag("mapper", "oidc-test-mapper").timer().count());
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.waldur.keycloak.mapper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WaldurOIDCMultiOfferingAccessMapperTest {
+
+    private static final String API_URL = "https://waldur.example.com/api/";
+
+    @Test
+    void offeringTableIsParsedIntoGroupsAndRoles() {
+        WaldurConfigReader reader = reader("[{\"key\":\"o1\",\"value\":\"hpc-users,hpc-role\"},"
+                + "{\"key\":\"o2\",\"value\":\"gpu-users\"},{\"key\":\" o3 \",\"value\":\",storage-role\"}]");
+
+        List<WaldurOIDCMultiOfferingAccessMapper.Offering> offerings =
+                WaldurOIDCMultiOfferingAccessMapper.parseOfferings(reader, API_URL);
+
+        assertTrue(reader.problems().isEmpty(), reader.problems().toString());
+        assertEquals(3, offerings.size());
+        assertEquals("hpc-users", offerings.get(0).groupName());
+        assertEquals("hpc-role", offerings.get(0).roleName());
+        assertEquals("", offerings.get(1).roleName());
+        assertEquals("o3", offerings.get(2).uuid());
+        assertEquals("", offerings.get(2).groupName());
+        assertEquals(API_URL + "marketplace-provider-offerings/o3/user_has_resource_access/?username=alice",
+                offerings.get(2).accessUrl().forUser("alice"));
+    }
+
+    @Test
+    void invalidRowsAreReported() {
+        WaldurConfigReader reader = reader("[{\"key\":\"o1\",\"value\":\"a\"},{\"key\":\"o1\",\"value\":\"b\"},"
+                + "{\"key\":\"o2\",\"value\":\" , \"},{\"key\":\"\",\"value\":\"c\"}]");
+
+        List<WaldurOIDCMultiOfferingAccessMapper.Offering> offerings =
+                WaldurOIDCMultiOfferingAccessMapper.parseOfferings(reader, API_URL);
+
+        assertEquals(1, offerings.size());
+        assertEquals(List.of("Offering o1 is listed more than once", "Offering o2 has neither a group nor a role",
+                "Offerings has a row without an offering UUID"), reader.problems());
+    }
+
+    @Test
+    void checksRunAtMostParallelismAtATime() {
+        List<Integer> items = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            items.add(i);
+        }
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        List<CompletableFuture<Boolean>> pending = new ArrayList<>();
+
+        CompletableFuture<Map<Integer, Boolean>> all = WaldurOIDCMultiOfferingAccessMapper.checkAll(items, 3, item -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            CompletableFuture<Boolean> check = new CompletableFuture<>();
+            pending.add(check);
+            return check.whenComplete((access, error) -> inFlight.decrementAndGet());
+        });
+        for (int next = 0; next < pending.size(); next++) {
+            int item = next;
+            if (item == 4) {
+                pending.get(item).completeExceptionally(new IllegalStateException("timeout"));
+            } else {
+                pending.get(item).complete(item == 7 ? null : item % 2 == 0);
+            }
+        }
+
+        Map<Integer, Boolean> results = all.join();
+        assertEquals(3, maxInFlight.get());
+        assertEquals(10, pending.size());
+        assertEquals(8, results.size());
+        assertEquals(true, results.get(2));
+        assertEquals(false, results.get(3));
+        assertNull(results.get(4));
+        assertNull(results.get(7));
+    }
+
+    @Test
+    void sharedTargetIsGrantedByAnyOfferingAndRevokedOnlyByAll() {
+        Map<String, Boolean> targets = new LinkedHashMap<>();
+        WaldurOIDCMultiOfferingAccessMapper.combine(targets, "granted", false);
+        WaldurOIDCMultiOfferingAccessMapper.combine(targets, "granted", null);
+        WaldurOIDCMultiOfferingAccessMapper.combine(targets, "granted", true);
+        WaldurOIDCMultiOfferingAccessMapper.combine(targets, "unknown", false);
+        WaldurOIDCMultiOfferingAccessMapper.combine(targets, "unknown", null);
+        WaldurOIDCMultiOfferingAccessMapper.combine(targets, "unknown", false);
+        WaldurOIDCMultiOfferingAccessMapper.combine(targets, "revoked", false);
+        WaldurOIDCMultiOfferingAccessMapper.combine(targets, "revoked", false);
+        WaldurOIDCMultiOfferingAccessMapper.combine(targets, "", true);
+
+        assertEquals(Boolean.TRUE, targets.get("granted"));
+        assertTrue(targets.containsKey("unknown"));
+        assertNull(targets.get("unknown"));
+        assertEquals(Boolean.FALSE, targets.get("revoked"));
+        assertEquals(3, targets.size());
+        assertEquals(Map.of("o1", true, "o2", false), WaldurOIDCMultiOfferingAccessMapper
+                .decode(WaldurOIDCMultiOfferingAccessMapper.encode(new LinkedHashMap<>(Map.of("o1", true, "o2", false)))));
+    }
+
+    private static WaldurConfigReader reader(String offerings) {
+        Map<String, String> config = new HashMap<>();
+        config.put("offerings.waldur.value", offerings);
+        return new WaldurConfigReader(config);
+    }
+}
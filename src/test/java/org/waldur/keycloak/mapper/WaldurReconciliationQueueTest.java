@@ -0,0 +1,201 @@
+package org.waldur.keycloak.mapper;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WaldurReconciliationQueueTest {
+
+    private static final long NEVER = 3_600_000;
+
+    /** Alice's direct groups and roles, by id, as the stubbed Keycloak stores them. */
+    private final Set<String> memberships = ConcurrentHashMap.newKeySet();
+    /** The group and role Alice has only through a subgroup or composite role. */
+    private final Set<String> inherited = ConcurrentHashMap.newKeySet();
+    private final List<String> writes = new ArrayList<>();
+    private final AtomicInteger transactions = new AtomicInteger();
+
+    private final GroupModel group = stub(GroupModel.class, (method, args) -> switch (method) {
+        case "getId" -> "group";
+        case "getName" -> "offering-users";
+        default -> null;
+    });
+    private final RoleModel role = stub(RoleModel.class, (method, args) -> switch (method) {
+        case "getId" -> "role";
+        case "getName" -> "offering-user";
+        default -> null;
+    });
+    private final RealmModel realm = stub(RealmModel.class, (method, args) -> switch (method) {
+        case "getId" -> "realm";
+        case "getGroupById" -> group;
+        case "getRoleById" -> role;
+        default -> null;
+    });
+    private final UserModel alice = stub(UserModel.class, (method, args) -> switch (method) {
+        case "getId", "getUsername" -> "alice";
+        case "getGroupsStream" -> memberships.contains("group") ? Stream.of(group) : Stream.empty();
+        case "isMemberOf" -> memberships.contains("group") || inherited.contains("group");
+        case "hasRole" -> memberships.contains("role") || inherited.contains("role");
+        case "hasDirectRole" -> memberships.contains("role");
+        case "joinGroup" -> write(method, "group", true);
+        case "grantRole" -> write(method, "role", true);
+        case "leaveGroup" -> write(method, "group", false);
+        case "deleteRoleMapping" -> write(method, "role", false);
+        default -> null;
+    });
+
+    @Test
+    void repeatedChangesForTheSameUserCollapse() {
+        WaldurReconciliationQueue queue = new WaldurReconciliationQueue(null, NEVER);
+        WaldurReconciliationQueue.Change join = new WaldurReconciliationQueue.Change(
+                "realm", "alice", WaldurReconciliationQueue.Kind.GROUP, "group");
+
+        for (int i = 0; i < 5; i++) {
+            queue.enqueue(join, true);
+        }
+
+        assertEquals(1, queue.getPendingCount());
+        assertEquals(4, queue.getCoalesced());
+    }
+
+    @Test
+    void groupAndRoleChangesAreKeptApart() {
+        WaldurReconciliationQueue queue = new WaldurReconciliationQueue(null, NEVER);
+
+        queue.enqueue(new WaldurReconciliationQueue.Change(
+                "realm", "alice", WaldurReconciliationQueue.Kind.GROUP, "target"), true);
+        queue.enqueue(new WaldurReconciliationQueue.Change(
+                "realm", "alice", WaldurReconciliationQueue.Kind.ROLE, "target"), true);
+        queue.enqueue(new WaldurReconciliationQueue.Change(
+                "realm", "bob", WaldurReconciliationQueue.Kind.GROUP, "target"), false);
+
+        assertEquals(3, queue.getPendingCount());
+        assertEquals(0, queue.getCoalesced());
+    }
+
+    @Test
+    void flushAppliesTheQueuedChangesInOneTransaction() {
+        WaldurReconciliationQueue queue = new WaldurReconciliationQueue(sessionFactory(), NEVER);
+
+        WaldurMembership.reconcileGroup(queue, realm, alice, group, true);
+        WaldurMembership.reconcileRole(queue, realm, alice, role, true);
+        assertTrue(memberships.isEmpty(), "nothing is written before the flush");
+        queue.flush();
+
+        assertEquals(Set.of("group", "role"), memberships);
+        assertEquals(Set.of("joinGroup", "grantRole"), Set.copyOf(writes));
+        assertEquals(1, transactions.get());
+        assertEquals(2, queue.getApplied());
+        assertEquals(0, queue.getPendingCount());
+    }
+
+    @Test
+    void accessRegainedBeforeTheFlushCancelsTheQueuedRemoval() {
+        WaldurReconciliationQueue queue = new WaldurReconciliationQueue(sessionFactory(), NEVER);
+        memberships.addAll(Set.of("group", "role"));
+
+        WaldurMembership.reconcileGroup(queue, realm, alice, group, false);
+        WaldurMembership.reconcileRole(queue, realm, alice, role, false);
+        // Alice is still a member until the flush, but the queued removals must not win.
+        WaldurMembership.reconcileGroup(queue, realm, alice, group, true);
+        WaldurMembership.reconcileRole(queue, realm, alice, role, true);
+        queue.flush();
+
+        assertEquals(Set.of("group", "role"), memberships);
+        assertTrue(writes.isEmpty(), "expected no writes, got " + writes);
+        assertEquals(2, queue.getCoalesced());
+    }
+
+    @Test
+    void accessLostBeforeTheFlushCancelsTheQueuedJoin() {
+        WaldurReconciliationQueue queue = new WaldurReconciliationQueue(sessionFactory(), NEVER);
+
+        WaldurMembership.reconcileGroup(queue, realm, alice, group, true);
+        WaldurMembership.reconcileGroup(queue, realm, alice, group, false);
+        queue.flush();
+
+        assertFalse(memberships.contains("group"));
+        assertTrue(writes.isEmpty(), "expected no writes, got " + writes);
+    }
+
+    @Test
+    void inheritedMembershipIsLeftAloneAsInline() {
+        WaldurReconciliationQueue queue = new WaldurReconciliationQueue(sessionFactory(), NEVER);
+        inherited.addAll(Set.of("group", "role"));
+
+        queue.enqueue(new WaldurReconciliationQueue.Change(
+                "realm", "alice", WaldurReconciliationQueue.Kind.GROUP, "group"), false);
+        queue.enqueue(new WaldurReconciliationQueue.Change(
+                "realm", "alice", WaldurReconciliationQueue.Kind.ROLE, "role"), false);
+        queue.flush();
+        assertTrue(writes.isEmpty(), "only direct memberships can be removed, got " + writes);
+
+        queue.enqueue(new WaldurReconciliationQueue.Change(
+                "realm", "alice", WaldurReconciliationQueue.Kind.GROUP, "group"), true);
+        queue.enqueue(new WaldurReconciliationQueue.Change(
+                "realm", "alice", WaldurReconciliationQueue.Kind.ROLE, "role"), true);
+        queue.flush();
+        assertTrue(writes.isEmpty(), "Alice has the group and role already, got " + writes);
+    }
+
+    private Object write(String method, String target, boolean member) {
+        writes.add(method);
+        if (member) {
+            memberships.add(target);
+        } else {
+            memberships.remove(target);
+        }
+        return null;
+    }
+
+    /** Sessions whose transactions are counted and whose realm and user are the ones above. */
+    private KeycloakSessionFactory sessionFactory() {
+        RealmProvider realms = stub(RealmProvider.class, (method, args) -> "getRealm".equals(method) ? realm : null);
+        UserProvider users = stub(UserProvider.class, (method, args) -> "getUserById".equals(method) ? alice : null);
+        KeycloakTransactionManager transactionManager = stub(KeycloakTransactionManager.class, (method, args) -> {
+            if ("begin".equals(method)) {
+                transactions.incrementAndGet();
+            }
+            return null;
+        });
+        KeycloakSession session = stub(KeycloakSession.class, (method, args) -> switch (method) {
+            case "realms" -> realms;
+            case "users" -> users;
+            case "getTransactionManager" -> transactionManager;
+            default -> null;
+        });
+        return stub(KeycloakSessionFactory.class, (method, args) -> "create".equals(method) ? session : null);
+    }
+
+    private interface Answer {
+        Object answer(String method, Object[] args);
+    }
+
+    /** A proxy answering from {@code answer}, with false where it has nothing for a boolean. */
+    private static <T> T stub(Class<T> type, Answer answer) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+                (instance, method, args) -> {
+                    Object value = answer.answer(method.getName(), args);
+                    return value == null && method.getReturnType() == boolean.class ? false : value;
+                }));
+    }
+}
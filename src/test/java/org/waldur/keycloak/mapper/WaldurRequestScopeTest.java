@@ -0,0 +1,198 @@
+package org.waldur.keycloak.mapper;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.ClientSessionContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper;
+import org.keycloak.provider.ProviderFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class WaldurRequestScopeTest {
+
+    @Test
+    void memoize_computesOncePerRequest() {
+        ClientSessionContext context = clientSessionContext();
+        ProtocolMapperModel mapper = mapper("mapper-1");
+        AtomicInteger calls = new AtomicInteger();
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("scopes", WaldurRequestScope.memoize(context, mapper, () -> {
+                calls.incrementAndGet();
+                return "scopes";
+            }));
+        }
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void memoize_remembersNullResults() {
+        ClientSessionContext context = clientSessionContext();
+        ProtocolMapperModel mapper = mapper("mapper-1");
+        AtomicInteger calls = new AtomicInteger();
+
+        WaldurRequestScope.memoize(context, mapper, () -> {
+            calls.incrementAndGet();
+            return null;
+        });
+        assertNull(WaldurRequestScope.memoize(context, mapper, () -> "late"));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void memoize_keepsMappersApart() {
+        ClientSessionContext context = clientSessionContext();
+
+        WaldurRequestScope.memoize(context, mapper("mapper-1"), () -> "one");
+
+        assertEquals("two", WaldurRequestScope.memoize(context, mapper("mapper-2"), () -> "two"));
+    }
+
+    @Test
+    void lookup_startsEveryWaldurMapperOfTheRequestOnFirstUse() {
+        ProtocolMapperModel first = mapper("mapper-1", "waldur-a");
+        ProtocolMapperModel second = mapper("mapper-2", "waldur-b");
+        ProtocolMapperModel other = mapper("mapper-3", "oidc-usermodel-attribute-mapper");
+        ClientSessionContext context = clientSessionContext(first, second, other);
+
+        List<String> started = new ArrayList<>();
+        WaldurLookupMapper lookupMapper = lookupMapper((keycloakSession, mappingModel, userSession) -> {
+            started.add(mappingModel.getId());
+            return CompletableFuture.completedFuture(mappingModel.getId());
+        });
+        KeycloakSession session = keycloakSession(Map.of("waldur-a", lookupMapper, "waldur-b", lookupMapper));
+        WaldurRequestScope.building(context, WaldurRequestScope.Token.ID);
+
+        assertEquals("mapper-1", WaldurRequestScope.lookup(session, context, null, first, lookupMapper).join());
+        assertEquals(List.of("mapper-1", "mapper-2"), started, "both Waldur lookups start on the first call");
+
+        assertEquals("mapper-2", WaldurRequestScope.lookup(session, context, null, second, lookupMapper).join());
+        assertEquals(2, started.size(), "the second mapper joins the lookup already running");
+    }
+
+    @Test
+    void lookup_leavesMappersOfOtherTokensAlone() {
+        ProtocolMapperModel idToken = mapper("mapper-1", "waldur-a");
+        ProtocolMapperModel userInfoOnly = mapper("mapper-2", "waldur-b");
+        userInfoOnly.getConfig().put(OIDCAttributeMapperHelper.INCLUDE_IN_ID_TOKEN, "false");
+        userInfoOnly.getConfig().put(OIDCAttributeMapperHelper.INCLUDE_IN_USERINFO, "true");
+        ClientSessionContext context = clientSessionContext(idToken, userInfoOnly);
+
+        List<String> started = new ArrayList<>();
+        WaldurLookupMapper lookupMapper = lookupMapper((keycloakSession, mappingModel, userSession) -> {
+            started.add(mappingModel.getId());
+            return CompletableFuture.completedFuture(mappingModel.getId());
+        });
+        KeycloakSession session = keycloakSession(Map.of("waldur-a", lookupMapper, "waldur-b", lookupMapper));
+
+        WaldurRequestScope.building(context, WaldurRequestScope.Token.ID);
+        WaldurRequestScope.lookup(session, context, null, idToken, lookupMapper).join();
+        assertEquals(List.of("mapper-1"), started, "the userinfo-only mapper does not run for the ID token");
+
+        WaldurRequestScope.building(context, WaldurRequestScope.Token.USERINFO);
+        WaldurRequestScope.lookup(session, context, null, userInfoOnly, lookupMapper).join();
+        assertEquals(List.of("mapper-1", "mapper-2"), started);
+    }
+
+    @Test
+    void await_fallsBackWhenTheBudgetRunsOut() {
+        ClientSessionContext context = clientSessionContext();
+
+        assertEquals("cached", WaldurRequestScope.await(context, new CompletableFuture<String>(), 10,
+                () -> "cached"));
+        assertEquals("cached", WaldurRequestScope.await(context, new CompletableFuture<String>(), 60_000,
+                () -> "cached"), "the budget is shared, so a later wait in the same request gets what is left");
+    }
+
+    @Test
+    void await_fallsBackWhenWaldurIsUnavailable() {
+        CompletableFuture<String> lookup =
+                CompletableFuture.failedFuture(new WaldurUnavailableException("endpoint"));
+
+        assertNull(WaldurRequestScope.await(clientSessionContext(), lookup, 0, () -> null));
+    }
+
+    private static ProtocolMapperModel mapper(String id) {
+        return mapper(id, "waldur");
+    }
+
+    private static ProtocolMapperModel mapper(String id, String providerId) {
+        ProtocolMapperModel mapper = new ProtocolMapperModel();
+        mapper.setId(id);
+        mapper.setProtocolMapper(providerId);
+        mapper.setConfig(new HashMap<>(Map.of(OIDCAttributeMapperHelper.INCLUDE_IN_ID_TOKEN, "true")));
+        return mapper;
+    }
+
+    /** Provider factory that is also a lookup mapper, like the real Waldur mappers. */
+    private static WaldurLookupMapper lookupMapper(WaldurLookupMapper lookup) {
+        return (WaldurLookupMapper) Proxy.newProxyInstance(
+                WaldurLookupMapper.class.getClassLoader(),
+                new Class<?>[] {ProviderFactory.class, WaldurLookupMapper.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("lookupAsync")) {
+                        return lookup.lookupAsync((KeycloakSession) args[0], (ProtocolMapperModel) args[1],
+                                (UserSessionModel) args[2]);
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    private static KeycloakSession keycloakSession(Map<String, Object> providers) {
+        KeycloakSessionFactory sessionFactory = (KeycloakSessionFactory) Proxy.newProxyInstance(
+                KeycloakSessionFactory.class.getClassLoader(),
+                new Class<?>[] {KeycloakSessionFactory.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("getProviderFactory") && args.length == 2) {
+                        return providers.get((String) args[1]);
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+        return (KeycloakSession) Proxy.newProxyInstance(
+                KeycloakSession.class.getClassLoader(),
+                new Class<?>[] {KeycloakSession.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("getKeycloakSessionFactory")) {
+                        return sessionFactory;
+                    }
+                    if (method.getName().equals("getProvider")) {
+                        // Not clustered.
+                        return null;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    /** Session context that supports attributes and the mapper list, which is all the request scope uses. */
+    private static ClientSessionContext clientSessionContext(ProtocolMapperModel... mappers) {
+        Map<String, Object> attributes = new HashMap<>();
+        return (ClientSessionContext) Proxy.newProxyInstance(
+                ClientSessionContext.class.getClassLoader(),
+                new Class<?>[] {ClientSessionContext.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "setAttribute":
+                            attributes.put((String) args[0], args[1]);
+                            return null;
+                        case "getAttribute":
+                            return ((Class<?>) args[1]).cast(attributes.get((String) args[0]));
+                        case "getProtocolMappersStream":
+                            return List.of(mappers).stream();
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
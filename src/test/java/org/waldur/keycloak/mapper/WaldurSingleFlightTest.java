@@ -0,0 +1,51 @@
+package org.waldur.keycloak.mapper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class WaldurSingleFlightTest {
+
+    @Test
+    void concurrentCallersForSameKey_shareOneCall() throws Exception {
+        WaldurSingleFlight<String, String> singleFlight = new WaldurSingleFlight<>();
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<String> response = new CompletableFuture<>();
+
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            results.add(singleFlight.execute("alice", () -> {
+                calls.incrementAndGet();
+                return response;
+            }));
+        }
+        for (CompletableFuture<String> result : results) {
+            assertFalse(result.isDone(), "callers must wait for the shared call");
+        }
+        response.complete("body");
+
+        for (CompletableFuture<String> result : results) {
+            assertEquals("body", result.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, calls.get());
+        assertEquals(3, singleFlight.getShared());
+    }
+
+    @Test
+    void completedCalls_areNotRemembered() {
+        WaldurSingleFlight<String, Integer> singleFlight = new WaldurSingleFlight<>();
+        AtomicInteger calls = new AtomicInteger();
+
+        singleFlight.execute("alice", () -> CompletableFuture.completedFuture(calls.incrementAndGet())).join();
+        singleFlight.execute("alice", () -> CompletableFuture.completedFuture(calls.incrementAndGet())).join();
+
+        assertEquals(2, calls.get());
+    }
+}
@@ -0,0 +1,178 @@
+package org.waldur.keycloak.mapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the three Waldur endpoints the mappers call: user permissions, offering
+ * users and offering access. Every answer is delayed by {@code latencyMillis}, a share of
+ * {@code errorRate} of them are 500s, and permission and offering user lists carry
+ * {@code payloadSize} entries (one offering user when filtered by username).
+ *
+ * Tests can {@link #serve} further bodies under the API, revalidated by ETag or Last-Modified
+ * and compressed when the request accepts it.
+ */
+final class WaldurStubServer implements AutoCloseable {
+
+    /** The Last-Modified date of bodies served with {@link Validator#LAST_MODIFIED}. */
+    static final String LAST_MODIFIED = "Wed, 14 Oct 2026 10:00:00 GMT";
+
+    /** How a served body can be revalidated: not at all, by an ETag of its content, or by date. */
+    enum Validator {
+        NONE, ETAG, LAST_MODIFIED
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final int latencyMillis;
+    private final double errorRate;
+    private final byte[] permissions;
+    private final byte[] offeringUsers;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+
+    WaldurStubServer(int latencyMillis, double errorRate, int payloadSize) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.errorRate = errorRate;
+
+        StringBuilder scopes = new StringBuilder("[");
+        StringBuilder users = new StringBuilder("[");
+        for (int i = 0; i < payloadSize; i++) {
+            String separator = i > 0 ? "," : "";
+            scopes.append(separator).append("{\"scope_uuid\":\"")
+                    .append(UUID.randomUUID().toString().replace("-", "")).append("\"}");
+            users.append(separator).append("{\"user_username\":\"user").append(i)
+                    .append("\",\"username\":\"user").append(i).append("_hpc\"}");
+        }
+        this.permissions = scopes.append(']').toString().getBytes(StandardCharsets.UTF_8);
+        this.offeringUsers = users.append(']').toString().getBytes(StandardCharsets.UTF_8);
+
+        // Answers are delayed by sleeping, so every request in flight holds one server thread.
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "waldur-stub-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        server.createContext("/api/user-permissions/", exchange -> respond(exchange, permissions, Validator.NONE, null));
+        server.createContext("/api/marketplace-offering-users/", this::offeringUsers);
+        server.createContext("/api/marketplace-provider-offerings/",
+                exchange -> respond(exchange, "{\"has_access\":true}".getBytes(StandardCharsets.UTF_8),
+                        Validator.NONE, null));
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /** The Waldur API URL to configure the mappers with, ending in a slash. */
+    String apiUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/api/";
+    }
+
+    /**
+     * Serve {@code body} at {@code path} under the API URL, revalidated with {@code validator}
+     * and, when the request accepts {@code encoding} ({@code gzip} or {@code deflate}), compressed
+     * with it; a null {@code encoding} always sends the body as is.
+     */
+    void serve(String path, Supplier<String> body, Validator validator, String encoding) {
+        server.createContext("/api/" + path, exchange -> respond(exchange,
+                body.get().getBytes(StandardCharsets.UTF_8), validator, encoding));
+    }
+
+    long requests() {
+        return requests.get();
+    }
+
+    long errors() {
+        return errors.get();
+    }
+
+    /** Requests answered 304 because the client's validator still matched. */
+    long notModified() {
+        return notModified.get();
+    }
+
+    private void offeringUsers(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+        int at = query == null ? -1 : query.indexOf("user_username=");
+        if (at < 0) {
+            respond(exchange, offeringUsers, Validator.NONE, null);
+            return;
+        }
+        String username = query.substring(at + "user_username=".length()).split("&", 2)[0];
+        respond(exchange, ("[{\"user_username\":\"" + username + "\",\"username\":\"" + username + "_hpc\"}]")
+                .getBytes(StandardCharsets.UTF_8), Validator.NONE, null);
+    }
+
+    private void respond(HttpExchange exchange, byte[] body, Validator validator, String encoding)
+            throws IOException {
+        requests.incrementAndGet();
+        try (exchange) {
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                errors.incrementAndGet();
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
+            if (validator == Validator.ETAG) {
+                String etag = "\"" + Integer.toHexString(Arrays.hashCode(body)) + "\"";
+                if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    notModified.incrementAndGet();
+                    exchange.sendResponseHeaders(304, -1);
+                    return;
+                }
+                exchange.getResponseHeaders().set("ETag", etag);
+            } else if (validator == Validator.LAST_MODIFIED) {
+                if (LAST_MODIFIED.equals(exchange.getRequestHeaders().getFirst("If-Modified-Since"))) {
+                    notModified.incrementAndGet();
+                    exchange.sendResponseHeaders(304, -1);
+                    return;
+                }
+                exchange.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+            }
+            String accepted = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (encoding != null && accepted != null && accepted.contains(encoding)) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                try (OutputStream out = encoding.equals("gzip")
+                        ? new GZIPOutputStream(compressed) : new DeflaterOutputStream(compressed)) {
+                    out.write(body);
+                }
+                body = compressed.toByteArray();
+                exchange.getResponseHeaders().set("Content-Encoding", encoding);
+            }
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,113 @@
+package org.waldur.keycloak.mapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.ProtocolMapperModel;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.sdk.testing.exporter.InMemorySpanExporter;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class WaldurTracingTest {
+
+    private final InMemorySpanExporter exporter = InMemorySpanExporter.create();
+    private final SdkTracerProvider tracerProvider = SdkTracerProvider.builder()
+            .addSpanProcessor(SimpleSpanProcessor.create(exporter))
+            .build();
+    private final Map<String, String> traceparents = new ConcurrentHashMap<>();
+
+    private HttpServer server;
+    private String baseUrl;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        WaldurTracing.use(tracerProvider.get(WaldurTracing.INSTRUMENTATION_NAME));
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/", this::respond);
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/api/";
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+        WaldurTracing.use(OpenTelemetry.noop().getTracer(WaldurTracing.INSTRUMENTATION_NAME));
+        tracerProvider.close();
+    }
+
+    @Test
+    void waldurCallIsTracedUnderTheClaimAndPropagated() {
+        WaldurHttpClient client = new WaldurHttpClient("token", true);
+        ProtocolMapperModel mapper = new ProtocolMapperModel();
+        mapper.setId("mapper-1");
+
+        String claim = WaldurTracing.claim(null, WaldurOIDCMinIOMapper.class, mapper,
+                () -> client.getAsync(baseUrl + "ok/", body -> body.trim()).join());
+
+        assertEquals("value", claim);
+        SpanData setClaim = span("WaldurOIDCMinIOMapper.setClaim");
+        SpanData get = span("GET");
+        SpanData parse = span("WaldurHttpClient.parse");
+        assertEquals("mapper-1", setClaim.getAttributes().get(WaldurTracing.MAPPER_ID));
+        assertEquals(SpanKind.CLIENT, get.getKind());
+        assertEquals(200L, get.getAttributes().get(WaldurTracing.HTTP_STATUS));
+        assertEquals(setClaim.getSpanId(), get.getParentSpanId());
+        assertEquals(setClaim.getSpanId(), parse.getParentSpanId());
+        assertEquals(setClaim.getTraceId(), parse.getTraceId());
+        assertEquals("00-" + get.getTraceId() + "-" + get.getSpanId() + "-01", traceparents.get("/api/ok/"));
+    }
+
+    @Test
+    void failuresMarkTheirSpans() {
+        WaldurHttpClient client = new WaldurHttpClient("token", true);
+
+        client.getAsync(baseUrl + "missing/", body -> body).join();
+        assertThrows(IllegalStateException.class, () -> WaldurTracing.write("joinGroup", "group-1", () -> {
+            throw new IllegalStateException("constraint violation");
+        }));
+
+        SpanData get = span("GET");
+        assertEquals(404L, get.getAttributes().get(WaldurTracing.HTTP_STATUS));
+        assertEquals(StatusCode.ERROR, get.getStatus().getStatusCode());
+        SpanData write = span("WaldurMembership.joinGroup");
+        assertEquals("group-1", write.getAttributes().get(WaldurTracing.TARGET_ID));
+        assertEquals(StatusCode.ERROR, write.getStatus().getStatusCode());
+    }
+
+    private SpanData span(String name) {
+        List<SpanData> spans = exporter.getFinishedSpanItems().stream()
+                .filter(span -> span.getName().equals(name))
+                .toList();
+        assertEquals(1, spans.size(), "spans named " + name);
+        return spans.get(0);
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        traceparents.put(path, exchange.getRequestHeaders().getFirst("traceparent"));
+        byte[] body = "value".getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(path.equals("/api/ok/") ? 200 : 404, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package org.waldur.keycloak.mapper;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.models.KeyManager;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WaldurUserAttributeCacheTest {
+
+    private static final long HOUR = 3_600_000;
+
+    private final Map<String, String> attributes = new HashMap<>();
+    private final AtomicInteger writes = new AtomicInteger();
+    private final UserModel user = user("alice", attributes);
+    private final KeycloakSession session = session();
+
+    @Test
+    void storedValueIsReadWhileFresh() {
+        WaldurMapperConfig mapper = mapper("offering-a");
+
+        WaldurUserAttributeCache.write(session, user, mapper, "c1,c2", System.currentTimeMillis());
+
+        assertEquals("c1,c2", WaldurUserAttributeCache.read(session, user, mapper, HOUR));
+        assertNull(WaldurUserAttributeCache.read(session, user, mapper, 0), "nothing is fresh within a zero window");
+    }
+
+    @Test
+    void sameValueIsNotRewrittenWithinHalfTheWindow() {
+        WaldurMapperConfig mapper = mapper("offering-a");
+
+        long now = System.currentTimeMillis();
+        WaldurUserAttributeCache.write(session, user, mapper, "alice_hpc", now);
+        int afterFirstWrite = writes.get();
+        WaldurUserAttributeCache.write(session, user, mapper, "alice_hpc", now + 1000);
+        assertEquals(afterFirstWrite, writes.get());
+
+        WaldurUserAttributeCache.write(session, user, mapper, "alice_new", now + 2000);
+        assertEquals("alice_new", WaldurUserAttributeCache.read(session, user, mapper, HOUR));
+    }
+
+    @Test
+    void valueStoredUnderAnotherConfigurationIsIgnored() {
+        WaldurUserAttributeCache.write(session, user, mapper("offering-a"), "true", System.currentTimeMillis());
+
+        assertNull(WaldurUserAttributeCache.read(session, user, mapper("offering-b"), HOUR));
+    }
+
+    @Test
+    void valueEditedByTheUserIsIgnored() {
+        WaldurMapperConfig mapper = mapper("offering-a");
+        WaldurUserAttributeCache.write(session, user, mapper, "false", System.currentTimeMillis());
+
+        attributes.put("waldur.cache.mapper-1", "true");
+
+        assertNull(WaldurUserAttributeCache.read(session, user, mapper, HOUR));
+        assertNull(WaldurUserAttributeCache.readFallback(session, user, mapper));
+    }
+
+    @Test
+    void valueCopiedFromAnotherUserIsIgnored() {
+        WaldurMapperConfig mapper = mapper("offering-a");
+        Map<String, String> bobAttributes = new HashMap<>();
+        WaldurUserAttributeCache.write(session, user("bob", bobAttributes), mapper, "true", System.currentTimeMillis());
+
+        attributes.putAll(bobAttributes);
+
+        assertNull(WaldurUserAttributeCache.read(session, user, mapper, HOUR));
+    }
+
+    @Test
+    void fallbackIsLimitedInAge() {
+        WaldurMapperConfig mapper = mapper("offering-a");
+        long maxAge = WaldurUserAttributeCache.MAX_FALLBACK_AGE.toMillis();
+        WaldurUserAttributeCache.write(session, user, mapper, "true", System.currentTimeMillis() - maxAge + HOUR);
+        assertEquals("true", WaldurUserAttributeCache.readFallback(session, user, mapper));
+
+        attributes.clear();
+        WaldurUserAttributeCache.write(session, user, mapper, "true", System.currentTimeMillis() - maxAge - HOUR);
+        assertNull(WaldurUserAttributeCache.readFallback(session, user, mapper));
+    }
+
+    @Test
+    void servedValueKeepsTheTimeItWasFetched() {
+        WaldurMapperConfig mapper = mapper("offering-a");
+        long fetchedAt = System.currentTimeMillis() - HOUR * 3 / 4;
+        WaldurUserAttributeCache.write(session, user, mapper, "true", fetchedAt);
+        String meta = attributes.get("waldur.cache.mapper-1.meta");
+
+        // Served while fresh, then again as the stand-in for an unavailable Waldur.
+        assertEquals("true", WaldurUserAttributeCache.read(session, user, mapper, HOUR));
+        WaldurUserAttributeCache.writeFetched(session, user, mapper);
+        assertEquals("true", WaldurUserAttributeCache.readFallback(session, user, mapper));
+        WaldurUserAttributeCache.writeFetched(session, user, mapper);
+
+        assertEquals(meta, attributes.get("waldur.cache.mapper-1.meta"));
+        assertTrue(meta.startsWith(fetchedAt + "/"), meta);
+    }
+
+    @Test
+    void fetchedValueIsStoredWithItsFetchTime() {
+        WaldurMapperConfig mapper = mapper("offering-a");
+        WaldurUserAttributeCache.write(session, user, mapper, "true", System.currentTimeMillis() - HOUR * 3 / 4);
+
+        CompletableFuture<String> fetch = new CompletableFuture<>();
+        CompletableFuture<String> noted = WaldurUserAttributeCache.fetching(session, mapper, user, fetch);
+        long before = System.currentTimeMillis();
+        fetch.complete("false");
+        noted.join();
+        long after = System.currentTimeMillis();
+        WaldurUserAttributeCache.writeFetched(session, user, mapper);
+
+        assertEquals("false", attributes.get("waldur.cache.mapper-1"));
+        String meta = attributes.get("waldur.cache.mapper-1.meta");
+        long storedAt = Long.parseLong(meta.substring(0, meta.indexOf('/')));
+        assertTrue(storedAt >= before && storedAt <= after, meta);
+    }
+
+    private static WaldurMapperConfig mapper(String offering) {
+        return WaldurConfigHelper.readShared("mapper-1", new WaldurConfigReader(Map.of(
+                "uuid.waldur.offering.value", offering,
+                WaldurConfigHelper.PERSIST_TTL_KEY, String.valueOf(HOUR / 1000))), false);
+    }
+
+    /** User that supports single-valued attributes, which is all the attribute cache uses. */
+    private UserModel user(String id, Map<String, String> attributes) {
+        return (UserModel) Proxy.newProxyInstance(
+                UserModel.class.getClassLoader(),
+                new Class<?>[] {UserModel.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getId":
+                            return id;
+                        case "getFirstAttribute":
+                            return attributes.get((String) args[0]);
+                        case "setSingleAttribute":
+                            writes.incrementAndGet();
+                            attributes.put((String) args[0], (String) args[1]);
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * Session that supports attributes, where a request's fetches are noted, and a realm with one
+     * HS512 key.
+     */
+    private static KeycloakSession session() {
+        Map<String, Object> sessionAttributes = new HashMap<>();
+        KeyWrapper key = new KeyWrapper();
+        key.setKid("hs512-1");
+        key.setSecretKey(new SecretKeySpec("0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.US_ASCII),
+                "HmacSHA512"));
+        RealmModel realm = (RealmModel) Proxy.newProxyInstance(
+                RealmModel.class.getClassLoader(),
+                new Class<?>[] {RealmModel.class},
+                (proxy, method, args) -> "getName".equals(method.getName()) ? "test" : null);
+        KeycloakContext context = (KeycloakContext) Proxy.newProxyInstance(
+                KeycloakContext.class.getClassLoader(),
+                new Class<?>[] {KeycloakContext.class},
+                (proxy, method, args) -> "getRealm".equals(method.getName()) ? realm : null);
+        KeyManager keys = (KeyManager) Proxy.newProxyInstance(
+                KeyManager.class.getClassLoader(),
+                new Class<?>[] {KeyManager.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "getActiveKey" -> key;
+                    case "getKey" -> key.getKid().equals(args[1]) ? key : null;
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+        return (KeycloakSession) Proxy.newProxyInstance(
+                KeycloakSession.class.getClassLoader(),
+                new Class<?>[] {KeycloakSession.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getContext":
+                            return context;
+                        case "keys":
+                            return keys;
+                        case "getAttribute":
+                            return sessionAttributes.get((String) args[0]);
+                        case "setAttribute":
+                            sessionAttributes.put((String) args[0], args[1]);
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}